@@ -31,6 +31,7 @@ public class Bot {
     static final Logger logger = LogManager.getLogger(Bot.class);
     static ChatXP chatXP;
     static JDA jda;
+    static JobScheduler scheduler;
 
     public static void main(String[] args) throws IOException, LoginException, InterruptedException, NoSuchAlgorithmException {
 //        Configurator.setLevel(BotRateLimiter.class.getName(), Level.TRACE);
@@ -40,7 +41,7 @@ public class Bot {
 //        new CommandDispatcher();
 
 
-        RestAPI api = new RestAPI(6570, "api", jda, new ObjectMapper());
+        RestAPI api = new RestAPI(6570, "api", 1024, jda, scheduler, new ObjectMapper());
         ArrayList<String> argList = new ArrayList<>(Arrays.asList(args));
         if (argList.contains("-genToken")){
             Database.AUTH_TOKEN_STORAGE.addAuthToken(System.currentTimeMillis() + 1000L * 60 * 60 * 24 * 365, "Year-long token", bytes -> {
@@ -58,7 +59,7 @@ public class Bot {
                 .setChunkingFilter(ChunkingFilter.ALL)
                 .addEventListeners(manager)
                 .build();
-        JobScheduler scheduler = new JobScheduler(database, jda);
+        scheduler = new JobScheduler(database, jda);
         CommandDispatcher dispatcher = new CommandDispatcher();
         dispatcher.loadScheduler(scheduler);
         manager.setDispatcher(dispatcher);
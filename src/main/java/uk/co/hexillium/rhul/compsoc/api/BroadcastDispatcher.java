@@ -0,0 +1,270 @@
+package uk.co.hexillium.rhul.compsoc.api;
+
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.MessageEmbed;
+import net.dv8tion.jda.api.entities.TextChannel;
+import net.dv8tion.jda.api.requests.restaction.MessageAction;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends one message to many channels, tracking how each delivery went.
+ * <p>
+ * Discord rate limits message sends per channel, so every channel has its own queue and only one message in flight
+ * at a time, and a channel with more to send goes to the back of the line once its send completes.  On top of that,
+ * only so many sends are in flight across all channels, so a large broadcast can't fill JDA's request queue and hold
+ * up the bot's other requests.  JDA still paces each request against its rate limit bucket, and retries any that are
+ * rate limited anyway.
+ * <p>
+ * Nothing here blocks.  Each completed send starts the next on the common pool, rather than on the thread that
+ * completed it, so a sender that completes straight away can't recurse down the stack.
+ */
+public class BroadcastDispatcher {
+
+    /**
+     * Sends a message to a channel.
+     */
+    public interface MessageSender {
+        /**
+         * @return a future completing with the ID of the message sent, or failing if it couldn't be sent.
+         */
+        CompletableFuture<Long> send(long channelID, String content, Collection<MessageEmbed> embeds);
+    }
+
+    public enum Status {
+        QUEUED, SENDING, SENT, FAILED
+    }
+
+    private static final Logger logger = LogManager.getLogger(BroadcastDispatcher.class);
+
+    private final MessageSender sender;
+    private final int maxInFlight;
+    private final int maxQueued;
+    private final AtomicLong nextID = new AtomicLong(1);
+
+    private final Map<Long, Broadcast> broadcasts = new ConcurrentHashMap<>();
+    /**
+     * Deliveries waiting to be sent, by channel.  A channel stays in here while its last send is in flight.  Guarded
+     * by this.
+     */
+    private final Map<Long, ArrayDeque<Delivery>> channelQueues = new HashMap<>();
+    /**
+     * Channels with something to send and nothing in flight, in the order they'll be served.  Guarded by this.
+     */
+    private final ArrayDeque<Long> ready = new ArrayDeque<>();
+    private int inFlight = 0;
+    private int queued = 0;
+
+    /**
+     * @param sender      sends each message
+     * @param maxInFlight most sends in flight at once, across every channel
+     * @param maxQueued   most deliveries waiting to be sent before new broadcasts are turned away
+     */
+    public BroadcastDispatcher(MessageSender sender, int maxInFlight, int maxQueued){
+        this.sender = sender;
+        this.maxInFlight = maxInFlight;
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * @return a sender that sends through JDA.
+     */
+    public static MessageSender jdaSender(JDA jda){
+        return (channelID, content, embeds) -> {
+            TextChannel channel = jda.getTextChannelById(channelID);
+            if (channel == null){
+                return CompletableFuture.failedFuture(new IllegalStateException("Channel " + channelID + " no longer exists"));
+            }
+            MessageAction action = content.isEmpty() ? channel.sendMessageEmbeds(embeds) : channel.sendMessage(content).setEmbeds(embeds);
+            return action.submit().thenApply(Message::getIdLong);
+        };
+    }
+
+    /**
+     * Queues a message for each channel.
+     *
+     * @return the broadcast, or null if too much is already waiting to be sent.
+     */
+    public Broadcast broadcast(long guildID, List<Long> channelIDs, String content, Collection<MessageEmbed> embeds){
+        Broadcast broadcast = new Broadcast(nextID.getAndIncrement(), guildID, content, embeds);
+        synchronized (this){
+            if (queued + channelIDs.size() > maxQueued) return null;
+            for (long channelID : channelIDs){
+                Delivery delivery = new Delivery(broadcast, channelID);
+                if (broadcast.deliveries.putIfAbsent(channelID, delivery) != null) continue;
+                ArrayDeque<Delivery> queue = channelQueues.get(channelID);
+                //a channel already in the map is either in line already, or will be put back in line when its
+                //current send completes
+                if (queue == null){
+                    queue = new ArrayDeque<>();
+                    channelQueues.put(channelID, queue);
+                    ready.add(channelID);
+                }
+                queue.add(delivery);
+                queued++;
+            }
+            broadcasts.put(broadcast.id, broadcast);
+        }
+        pump();
+        return broadcast;
+    }
+
+    public Broadcast getBroadcast(long broadcastID){
+        return broadcasts.get(broadcastID);
+    }
+
+    /**
+     * Forgets broadcasts that finished before the given time.
+     */
+    public void evictFinished(long before){
+        broadcasts.values().removeIf(broadcast -> broadcast.getFinished() != 0 && broadcast.getFinished() < before);
+    }
+
+    public synchronized int getQueued(){
+        return queued;
+    }
+
+    public synchronized int getInFlight(){
+        return inFlight;
+    }
+
+    /**
+     * Starts as many sends as there is room for.
+     */
+    private void pump(){
+        while (true){
+            Delivery delivery;
+            synchronized (this){
+                if (inFlight >= maxInFlight || ready.isEmpty()) return;
+                long channelID = ready.poll();
+                delivery = channelQueues.get(channelID).poll();
+                queued--;
+                inFlight++;
+                delivery.status = Status.SENDING;
+            }
+            delivery.broadcast.publish(delivery);
+            CompletableFuture<Long> future;
+            try {
+                future = sender.send(delivery.channelID, delivery.broadcast.content, delivery.broadcast.embeds);
+            } catch (RuntimeException ex){
+                future = CompletableFuture.failedFuture(ex);
+            }
+            future.whenCompleteAsync((messageID, ex) -> complete(delivery, messageID, ex));
+        }
+    }
+
+    private void complete(Delivery delivery, Long messageID, Throwable ex){
+        if (ex == null){
+            delivery.messageID = messageID;
+            delivery.status = Status.SENT;
+        } else {
+            Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+            logger.warn("Failed to deliver broadcast " + delivery.broadcast.id + " to " + delivery.channelID + ": " + cause.getMessage());
+            delivery.error = cause.getMessage() == null ? cause.getClass().getSimpleName() : cause.getMessage();
+            delivery.status = Status.FAILED;
+        }
+        synchronized (this){
+            inFlight--;
+            ArrayDeque<Delivery> queue = channelQueues.get(delivery.channelID);
+            if (queue.isEmpty()){
+                channelQueues.remove(delivery.channelID);
+            } else {
+                ready.add(delivery.channelID);
+            }
+        }
+        delivery.broadcast.delivered(delivery);
+        pump();
+    }
+
+    public static class Broadcast {
+        private final long id;
+        private final long guildID;
+        private final String content;
+        private final Collection<MessageEmbed> embeds;
+        private final long created = System.currentTimeMillis();
+        private final Map<Long, Delivery> deliveries = new LinkedHashMap<>();
+        private int remaining = -1;
+        private volatile long finished = 0;
+
+        Broadcast(long id, long guildID, String content, Collection<MessageEmbed> embeds){
+            this.id = id;
+            this.guildID = guildID;
+            this.content = content;
+            this.embeds = embeds;
+        }
+
+        public long getId(){
+            return id;
+        }
+
+        /**
+         * @return when every delivery had been sent or had failed, or 0 if some are still to go.
+         */
+        public long getFinished(){
+            return finished;
+        }
+
+        /**
+         * @return the broadcast and the status of every delivery, ready to be serialised.
+         */
+        public synchronized Map<String, Object> toMap(){
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("broadcastId", String.valueOf(id));
+            map.put("guildId", String.valueOf(guildID));
+            map.put("created", created);
+            map.put("finished", finished == 0 ? null : finished);
+            Map<String, Object> channels = new LinkedHashMap<>();
+            deliveries.forEach((channelID, delivery) -> channels.put(String.valueOf(channelID), delivery.toMap()));
+            map.put("channels", channels);
+            return map;
+        }
+
+        private void publish(Delivery delivery){
+            Map<String, Object> data = delivery.toMap();
+            data.put("broadcastId", String.valueOf(id));
+            data.put("channelId", String.valueOf(delivery.channelID));
+            LiveEvents.publish("broadcast", guildID, id + ":" + delivery.channelID, data);
+        }
+
+        private synchronized void delivered(Delivery delivery){
+            if (remaining < 0) remaining = deliveries.size();
+            if (--remaining == 0){
+                finished = System.currentTimeMillis();
+            }
+            publish(delivery);
+        }
+    }
+
+    private static class Delivery {
+        final Broadcast broadcast;
+        final long channelID;
+        volatile Status status = Status.QUEUED;
+        volatile Long messageID;
+        volatile String error;
+
+        Delivery(Broadcast broadcast, long channelID){
+            this.broadcast = broadcast;
+            this.channelID = channelID;
+        }
+
+        Map<String, Object> toMap(){
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("status", status.name());
+            map.put("messageId", messageID == null ? null : String.valueOf(messageID));
+            map.put("error", error);
+            return map;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package uk.co.hexillium.rhul.compsoc.api;
+
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.entities.Category;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.GuildChannel;
+import net.dv8tion.jda.api.entities.TextChannel;
+import net.dv8tion.jda.api.events.GenericEvent;
+import net.dv8tion.jda.api.events.channel.category.CategoryDeleteEvent;
+import net.dv8tion.jda.api.events.channel.category.GenericCategoryEvent;
+import net.dv8tion.jda.api.events.channel.store.GenericStoreChannelEvent;
+import net.dv8tion.jda.api.events.channel.store.StoreChannelDeleteEvent;
+import net.dv8tion.jda.api.events.channel.text.GenericTextChannelEvent;
+import net.dv8tion.jda.api.events.channel.text.TextChannelDeleteEvent;
+import net.dv8tion.jda.api.events.channel.voice.GenericVoiceChannelEvent;
+import net.dv8tion.jda.api.events.channel.voice.VoiceChannelDeleteEvent;
+import net.dv8tion.jda.api.events.guild.GuildLeaveEvent;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberJoinEvent;
+import net.dv8tion.jda.api.events.guild.member.GuildMemberRemoveEvent;
+import net.dv8tion.jda.api.events.guild.update.GenericGuildUpdateEvent;
+import net.dv8tion.jda.api.hooks.EventListener;
+import net.dv8tion.jda.api.utils.data.DataArray;
+import net.dv8tion.jda.api.utils.data.DataObject;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+/**
+ * An immutable snapshot of each guild's info: its name, member count and channels.
+ * <p>
+ * A guild's snapshot is built from JDA's cache the first time it is asked for, and from then on gateway events patch
+ * it, one channel or count at a time, so serving it never walks the guild's channels or takes JDA's cache locks.
+ * Every patch makes a new snapshot with a new version, which the ETag is built from.
+ */
+public class GuildSnapshots implements EventListener {
+
+    private final String nonce = Long.toString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE, 36);
+    private final AtomicLong versions = new AtomicLong();
+    private final Map<Long, GuildSnapshot> snapshots = new ConcurrentHashMap<>();
+
+    public GuildSnapshots(JDA jda){
+        jda.addEventListener(this);
+    }
+
+    @Override
+    public void onEvent(@NotNull GenericEvent genericEvent) {
+        if (genericEvent instanceof GenericGuildUpdateEvent){
+            Guild guild = ((GenericGuildUpdateEvent<?>) genericEvent).getGuild();
+            patch(guild.getIdLong(), snapshot -> snapshot.withName(guild.getName()));
+        }
+        if (genericEvent instanceof GuildMemberJoinEvent){
+            Guild guild = ((GuildMemberJoinEvent) genericEvent).getGuild();
+            patch(guild.getIdLong(), snapshot -> snapshot.withMemberCount(guild.getMemberCount()));
+        }
+        if (genericEvent instanceof GuildMemberRemoveEvent){
+            Guild guild = ((GuildMemberRemoveEvent) genericEvent).getGuild();
+            patch(guild.getIdLong(), snapshot -> snapshot.withMemberCount(guild.getMemberCount()));
+        }
+        if (genericEvent instanceof GuildLeaveEvent){
+            snapshots.remove(((GuildLeaveEvent) genericEvent).getGuild().getIdLong());
+        }
+        //creates and updates both put the channel as it now is
+        if (genericEvent instanceof GenericTextChannelEvent){
+            channelChanged(((GenericTextChannelEvent) genericEvent).getChannel(), genericEvent instanceof TextChannelDeleteEvent);
+        }
+        if (genericEvent instanceof GenericVoiceChannelEvent){
+            channelChanged(((GenericVoiceChannelEvent) genericEvent).getChannel(), genericEvent instanceof VoiceChannelDeleteEvent);
+        }
+        if (genericEvent instanceof GenericStoreChannelEvent){
+            channelChanged(((GenericStoreChannelEvent) genericEvent).getChannel(), genericEvent instanceof StoreChannelDeleteEvent);
+        }
+        if (genericEvent instanceof GenericCategoryEvent){
+            channelChanged(((GenericCategoryEvent) genericEvent).getCategory(), genericEvent instanceof CategoryDeleteEvent);
+        }
+    }
+
+    /**
+     * @return the guild's snapshot, building it if this is the first time it has been asked for.
+     */
+    public GuildSnapshot get(Guild guild){
+        return snapshots.computeIfAbsent(guild.getIdLong(), id -> build(guild));
+    }
+
+    /**
+     * @return a strong ETag for the snapshot.
+     */
+    public String getTag(GuildSnapshot snapshot){
+        return "\"info-" + nonce + "-" + snapshot.guildID + "-" + snapshot.version + "\"";
+    }
+
+    private void channelChanged(GuildChannel channel, boolean deleted){
+        long guildID = channel.getGuild().getIdLong();
+        if (deleted){
+            patch(guildID, snapshot -> snapshot.withoutChannel(channel.getIdLong()));
+        } else {
+            ChannelEntry entry = new ChannelEntry(channel);
+            patch(guildID, snapshot -> snapshot.withChannel(entry));
+        }
+    }
+
+    /**
+     * Applies a change to a guild's snapshot, if it has one yet; one built later will include the change anyway.
+     */
+    private void patch(long guildID, UnaryOperator<GuildSnapshot> change){
+        snapshots.computeIfPresent(guildID, (id, snapshot) -> change.apply(snapshot));
+    }
+
+    private GuildSnapshot build(Guild guild){
+        Map<Long, ChannelEntry> channels = new HashMap<>();
+        for (GuildChannel channel : guild.getChannels()){
+            channels.put(channel.getIdLong(), new ChannelEntry(channel));
+        }
+        return new GuildSnapshot(versions.incrementAndGet(), guild.getIdLong(), guild.getName(), guild.getMemberCount(), channels);
+    }
+
+    public class GuildSnapshot {
+        private final long version;
+        private final long guildID;
+        private final String name;
+        private final int memberCount;
+        private final Map<Long, ChannelEntry> channels;
+
+        GuildSnapshot(long version, long guildID, String name, int memberCount, Map<Long, ChannelEntry> channels){
+            this.version = version;
+            this.guildID = guildID;
+            this.name = name;
+            this.memberCount = memberCount;
+            this.channels = Collections.unmodifiableMap(channels);
+        }
+
+        GuildSnapshot withName(String name){
+            return new GuildSnapshot(versions.incrementAndGet(), guildID, name, memberCount, channels);
+        }
+
+        GuildSnapshot withMemberCount(int memberCount){
+            return new GuildSnapshot(versions.incrementAndGet(), guildID, name, memberCount, channels);
+        }
+
+        GuildSnapshot withChannel(ChannelEntry entry){
+            Map<Long, ChannelEntry> next = new HashMap<>(channels);
+            next.put(entry.id, entry);
+            return new GuildSnapshot(versions.incrementAndGet(), guildID, name, memberCount, next);
+        }
+
+        GuildSnapshot withoutChannel(long channelID){
+            if (!channels.containsKey(channelID)) return this;
+            Map<Long, ChannelEntry> next = new HashMap<>(channels);
+            next.remove(channelID);
+            return new GuildSnapshot(versions.incrementAndGet(), guildID, name, memberCount, next);
+        }
+
+        /**
+         * @return the channels in the order Discord lists them: channels outside any category first, then each
+         * category followed by its channels, with text channels before voice channels within each.
+         */
+        public List<ChannelEntry> getOrderedChannels(){
+            Comparator<ChannelEntry> order = Comparator.<ChannelEntry>comparingInt(entry -> entry.sortBucket)
+                    .thenComparingInt(entry -> entry.rawPosition)
+                    .thenComparingLong(entry -> entry.id);
+            List<ChannelEntry> categories = new ArrayList<>();
+            Map<Long, List<ChannelEntry>> children = new HashMap<>();
+            for (ChannelEntry entry : channels.values()){
+                if (entry.category){
+                    categories.add(entry);
+                } else {
+                    //a channel whose category isn't known is listed with the uncategorised ones
+                    long parent = channels.containsKey(entry.parentID) ? entry.parentID : 0;
+                    children.computeIfAbsent(parent, id -> new ArrayList<>()).add(entry);
+                }
+            }
+            categories.sort(order);
+            List<ChannelEntry> ordered = new ArrayList<>(channels.size());
+            List<ChannelEntry> top = children.getOrDefault(0L, Collections.emptyList());
+            top.sort(order);
+            ordered.addAll(top);
+            for (ChannelEntry category : categories){
+                ordered.add(category);
+                List<ChannelEntry> inside = children.getOrDefault(category.id, Collections.emptyList());
+                inside.sort(order);
+                ordered.addAll(inside);
+            }
+            return ordered;
+        }
+
+        /**
+         * @return the snapshot as served by the info route.
+         */
+        public String toJson(){
+            DataObject guildObj = DataObject.empty();
+            guildObj.put("name", name);
+            guildObj.put("snowflake", String.valueOf(guildID));
+            guildObj.put("memberCount", memberCount);
+            //a channel's pos counts only channels of the same kind, as JDA's getPosition() does
+            Map<Integer, List<ChannelEntry>> byBucket = new HashMap<>();
+            for (ChannelEntry entry : channels.values()){
+                byBucket.computeIfAbsent(entry.sortBucket, bucket -> new ArrayList<>()).add(entry);
+            }
+            Map<Long, Integer> positions = new HashMap<>();
+            byBucket.values().forEach(list -> {
+                list.sort(Comparator.<ChannelEntry>comparingInt(entry -> entry.rawPosition).thenComparingLong(entry -> entry.id));
+                for (int i = 0; i < list.size(); i++){
+                    positions.put(list.get(i).id, i);
+                }
+            });
+            DataArray channelArray = DataArray.empty();
+            for (ChannelEntry entry : getOrderedChannels()){
+                DataObject channelObj = DataObject.empty();
+                channelObj.put("name", entry.name);
+                if (entry.text) {
+                    channelObj.put("description", entry.topic);
+                }
+                channelObj.put("pos", positions.get(entry.id));
+                channelObj.put("type", entry.type);
+                channelObj.put("snowflake", String.valueOf(entry.id));
+                channelArray.add(channelObj);
+            }
+            guildObj.put("channels", channelArray);
+            return guildObj.toString();
+        }
+    }
+
+    /**
+     * What the snapshot keeps of a channel, copied out of JDA's entity when the event arrives.
+     */
+    static class ChannelEntry {
+        final long id;
+        final String name;
+        final String type;
+        final int sortBucket;
+        final int rawPosition;
+        final long parentID;
+        final boolean category;
+        final boolean text;
+        final String topic;
+
+        ChannelEntry(GuildChannel channel){
+            this.id = channel.getIdLong();
+            this.name = channel.getName();
+            this.type = channel.getType().name();
+            this.sortBucket = channel.getType().getSortBucket();
+            this.rawPosition = channel.getPositionRaw();
+            Category parent = channel.getParent();
+            this.parentID = parent == null ? 0 : parent.getIdLong();
+            this.category = channel instanceof Category;
+            this.text = channel instanceof TextChannel;
+            this.topic = text ? ((TextChannel) channel).getTopic() : null;
+        }
+    }
+}
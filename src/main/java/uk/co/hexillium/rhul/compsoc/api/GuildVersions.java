@@ -0,0 +1,99 @@
+package uk.co.hexillium.rhul.compsoc.api;
+
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.events.GenericEvent;
+import net.dv8tion.jda.api.events.guild.GuildLeaveEvent;
+import net.dv8tion.jda.api.events.guild.update.GenericGuildUpdateEvent;
+import net.dv8tion.jda.api.hooks.EventListener;
+import org.jetbrains.annotations.NotNull;
+import uk.co.hexillium.rhul.compsoc.persistence.ExperienceStorage;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Version counters for what the API serves about each guild, bumped whenever the guild changes in a way that shows
+ * up in a response.  A response's ETag is built from the version it was rendered at, so whether a client's copy is
+ * still current can be answered from memory, without asking the database.
+ * <p>
+ * Counters only ever go up while the bot is running, and every ETag carries a nonce chosen at startup, so a tag handed
+ * out before a restart can never match one handed out after it.
+ * <p>
+ * A guild's info is versioned by its {@link GuildSnapshots} instead.
+ */
+public class GuildVersions implements EventListener {
+
+    private final String nonce = Long.toString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE, 36);
+
+    private final Map<Long, AtomicLong> members = new ConcurrentHashMap<>();
+    /**
+     * Bumped by changes that could touch any guild's members, such as a user changing their name
+     */
+    private final AtomicLong allMembers = new AtomicLong();
+
+    public GuildVersions(JDA jda){
+        jda.addEventListener(this);
+    }
+
+    @Override
+    public void onEvent(@NotNull GenericEvent genericEvent) {
+        if (genericEvent instanceof GenericGuildUpdateEvent){
+            //the member list carries the guild's name and icon
+            bump(members, ((GenericGuildUpdateEvent<?>) genericEvent).getGuild().getIdLong());
+        }
+        if (genericEvent instanceof GuildLeaveEvent){
+            //bumped rather than removed, as a counter starting again from zero would hand out tags that were used before
+            bump(members, ((GuildLeaveEvent) genericEvent).getGuild().getIdLong());
+        }
+    }
+
+    /**
+     * Called once a write to a guild's members has been committed.
+     *
+     * @param guildID the guild written to, or {@link ExperienceStorage#ALL_GUILDS}
+     */
+    public void membersChanged(long guildID){
+        if (guildID == ExperienceStorage.ALL_GUILDS){
+            allMembers.incrementAndGet();
+        } else {
+            bump(members, guildID);
+        }
+    }
+
+    /**
+     * The ETag must be taken before the response is rendered, so that a change landing part way through leaves the
+     * response tagged with the older version and it is rendered again next time.
+     *
+     * @return a strong ETag for the guild's member list as it is now.
+     */
+    public String getMembersTag(long guildID){
+        return "\"members-" + nonce + "-" + guildID + "-" + version(members, guildID) + "." + allMembers.get() + "\"";
+    }
+
+    /**
+     * @param ifNoneMatch the request's If-None-Match header, which may be null
+     * @param etag        the current ETag
+     * @return true if the client already has the current version, and should be sent a 304.
+     */
+    public static boolean matches(String ifNoneMatch, String etag){
+        if (ifNoneMatch == null) return false;
+        for (String candidate : ifNoneMatch.split(",")){
+            candidate = candidate.trim();
+            if (candidate.equals("*")) return true;
+            //If-None-Match compares weakly, so a weak copy of the tag still counts
+            if (candidate.startsWith("W/")) candidate = candidate.substring(2);
+            if (candidate.equals(etag) || candidate.equals(Gzip.tag(etag))) return true;
+        }
+        return false;
+    }
+
+    private static void bump(Map<Long, AtomicLong> versions, long guildID){
+        versions.computeIfAbsent(guildID, id -> new AtomicLong()).incrementAndGet();
+    }
+
+    private static long version(Map<Long, AtomicLong> versions, long guildID){
+        return versions.computeIfAbsent(guildID, id -> new AtomicLong()).get();
+    }
+}
@@ -0,0 +1,109 @@
+package uk.co.hexillium.rhul.compsoc.api;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gzip compression for response bodies, using pooled {@link Deflater}s.
+ * <p>
+ * A {@link Deflater} holds a sizeable native buffer which is only freed by {@link Deflater#end()}, so making one for
+ * every response, as {@link java.util.zip.GZIPOutputStream} does, churns native memory.  These are reset and reused
+ * instead.
+ */
+public class Gzip {
+
+    /**
+     * Most deflaters kept idle; any more than this are ended when returned
+     */
+    private static final int POOL_SIZE = 16;
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private static final BlockingQueue<Deflater> pool = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private Gzip(){}
+
+    /**
+     * @param data the bytes to compress
+     * @return the bytes in gzip format.
+     */
+    public static byte[] compress(byte[] data){
+        Deflater deflater = pool.poll();
+        if (deflater == null){
+            //raw deflate; the gzip header and trailer are written here
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + HEADER.length + 8);
+            out.write(HEADER, 0, HEADER.length);
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()){
+                int written = deflater.deflate(buffer);
+                out.write(buffer, 0, written);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length);
+            writeIntLE(out, (int) crc.getValue());
+            writeIntLE(out, data.length);
+            return out.toByteArray();
+        } finally {
+            deflater.reset();
+            if (!pool.offer(deflater)){
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * @param acceptEncoding the request's Accept-Encoding header, which may be null
+     * @return true if the client will take a gzip response.
+     */
+    public static boolean accepted(String acceptEncoding){
+        if (acceptEncoding == null) return false;
+        boolean accepted = false;
+        for (String coding : acceptEncoding.split(",")){
+            String[] parts = coding.split(";");
+            String name = parts[0].trim().toLowerCase();
+            if (!name.equals("gzip") && !name.equals("x-gzip") && !name.equals("*")) continue;
+            double quality = 1;
+            for (int i = 1; i < parts.length; i++){
+                String param = parts[i].trim();
+                if (param.startsWith("q=")){
+                    try {
+                        quality = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException ex){
+                        quality = 0;
+                    }
+                }
+            }
+            //an explicit gzip;q=0 wins over a wildcard
+            if (!name.equals("*") && quality <= 0) return false;
+            if (quality > 0) accepted = true;
+        }
+        return accepted;
+    }
+
+    /**
+     * A strong ETag names one exact representation, so the gzipped body gets a tag of its own.
+     *
+     * @param etag the ETag of the uncompressed body
+     * @return the ETag of the gzipped body.
+     */
+    public static String tag(String etag){
+        if (etag.endsWith("\"")){
+            return etag.substring(0, etag.length() - 1) + "-gzip\"";
+        }
+        return etag + "-gzip";
+    }
+
+    private static void writeIntLE(ByteArrayOutputStream out, int value){
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+}
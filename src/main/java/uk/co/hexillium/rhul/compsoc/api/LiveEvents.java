@@ -0,0 +1,178 @@
+package uk.co.hexillium.rhul.compsoc.api;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pushes what happens in the bot, such as XP gains, trivia answers, poll votes and member joins, to every client
+ * connected to the live stream, so dashboards don't have to poll for it.
+ * <p>
+ * Each event is serialised once, however many subscribers there are.  Every subscriber has its own bounded buffer
+ * and at most one write in flight, so a slow client only ever falls behind itself.  Events that only say what
+ * something is now, such as a member's XP, carry a key, and a newer event with the same key replaces one still
+ * waiting to be sent.  Once a buffer is full the oldest events are dropped, and the client is told how many.
+ */
+public class LiveEvents {
+
+    /**
+     * Most events waiting to be sent to a single subscriber
+     */
+    private static final int BUFFER_SIZE = 256;
+
+    private static final Logger logger = LogManager.getLogger(LiveEvents.class);
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private static final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private static final AtomicLong sequence = new AtomicLong();
+    private static final LongAdder published = new LongAdder();
+    private static final LongAdder dropped = new LongAdder();
+
+    private LiveEvents(){}
+
+    /**
+     * Sends an event to every subscriber watching the guild.  This never blocks, so it is safe to call from gateway
+     * and database threads.
+     *
+     * @param type     what happened, such as "xp" or "member_join"
+     * @param guildID  the guild it happened in
+     * @param coalesce a key for events that supersede earlier ones with the same key, or null if every event matters
+     * @param data     the details, which must serialise to JSON
+     */
+    public static void publish(String type, long guildID, String coalesce, Map<String, Object> data){
+        if (subscribers.isEmpty()) return;
+        Map<String, Object> event = new LinkedHashMap<>();
+        event.put("type", type);
+        event.put("guildId", String.valueOf(guildID));
+        event.put("time", System.currentTimeMillis());
+        event.put("data", data);
+        String json;
+        try {
+            json = mapper.writeValueAsString(event);
+        } catch (JsonProcessingException ex){
+            logger.error("Failed to serialise live event " + type, ex);
+            return;
+        }
+        published.increment();
+        //keyed events only coalesce with events of the same type, so keys can't collide across types
+        Object key = coalesce == null ? sequence.incrementAndGet() : type + ":" + coalesce;
+        for (Subscriber subscriber : subscribers){
+            if (subscriber.guildID == 0 || subscriber.guildID == guildID){
+                subscriber.offer(key, json);
+            }
+        }
+    }
+
+    /**
+     * Sends a heartbeat to every subscriber, so idle connections aren't closed by proxies or the idle timeout.
+     */
+    public static void heartbeat(){
+        String json = "{\"type\":\"heartbeat\",\"time\":" + System.currentTimeMillis() + "}";
+        for (Subscriber subscriber : subscribers){
+            subscriber.offer("heartbeat", json);
+        }
+    }
+
+    /**
+     * @param session the client's connection
+     * @param guildID the only guild the client wants events for, or 0 for every guild
+     */
+    static void subscribe(Session session, long guildID){
+        subscribers.add(new Subscriber(session, guildID));
+    }
+
+    static void unsubscribe(Session session){
+        subscribers.removeIf(subscriber -> subscriber.session == session);
+    }
+
+    public static int getSubscriberCount(){
+        return subscribers.size();
+    }
+
+    public static long getPublishedCount(){
+        return published.sum();
+    }
+
+    public static long getDroppedCount(){
+        return dropped.sum();
+    }
+
+    private static class Subscriber implements WriteCallback {
+        final Session session;
+        final long guildID;
+        /**
+         * Events waiting to be sent, by coalescing key.  Guarded by this.
+         */
+        private final LinkedHashMap<Object, String> pending = new LinkedHashMap<>();
+        private boolean sending = false;
+        private long missed = 0;
+
+        Subscriber(Session session, long guildID){
+            this.session = session;
+            this.guildID = guildID;
+        }
+
+        synchronized void offer(Object key, String json){
+            //replacing a key keeps its place in the queue, so a busy member doesn't starve everyone else
+            if (pending.put(key, json) == null && pending.size() > BUFFER_SIZE){
+                Iterator<String> eldest = pending.values().iterator();
+                eldest.next();
+                eldest.remove();
+                missed++;
+                dropped.increment();
+            }
+            if (!sending){
+                sendNext();
+            }
+        }
+
+        /**
+         * Starts the next write, if there is anything to send.  Must hold the lock.
+         */
+        private void sendNext(){
+            String next;
+            if (missed > 0){
+                next = "{\"type\":\"dropped\",\"time\":" + System.currentTimeMillis() + ",\"data\":{\"count\":" + missed + "}}";
+                missed = 0;
+            } else {
+                Iterator<String> first = pending.values().iterator();
+                if (!first.hasNext()){
+                    sending = false;
+                    return;
+                }
+                next = first.next();
+                first.remove();
+            }
+            if (!session.isOpen()){
+                sending = false;
+                unsubscribe(session);
+                return;
+            }
+            sending = true;
+            session.getRemote().sendString(next, this);
+        }
+
+        @Override
+        public synchronized void writeSuccess(){
+            sendNext();
+        }
+
+        @Override
+        public void writeFailed(Throwable ex){
+            logger.warn("Failed to write to live stream subscriber " + session.getRemoteAddress() + ", dropping it", ex);
+            unsubscribe(session);
+            session.close();
+        }
+    }
+}
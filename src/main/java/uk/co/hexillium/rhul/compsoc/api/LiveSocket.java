@@ -0,0 +1,64 @@
+package uk.co.hexillium.rhul.compsoc.api;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketError;
+import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * The WebSocket end of {@link LiveEvents}.  Clients connect with the same X-Auth-Token header as the rest of the API,
+ * and may add a guild query parameter to only get that guild's events.  Anything the client sends is ignored.
+ */
+@WebSocket
+public class LiveSocket {
+
+    private static final Logger logger = LogManager.getLogger(LiveSocket.class);
+
+    private final Predicate<String> tokenCheck;
+
+    /**
+     * @param tokenCheck checks the X-Auth-Token header, as the API's other routes do
+     */
+    public LiveSocket(Predicate<String> tokenCheck){
+        this.tokenCheck = tokenCheck;
+    }
+
+    @OnWebSocketConnect
+    public void onConnect(Session session){
+        //websocket upgrades skip Spark's filters, so the token is checked here
+        if (!tokenCheck.test(session.getUpgradeRequest().getHeader("X-Auth-Token"))){
+            session.close(StatusCode.POLICY_VIOLATION, "Invalid, expired, incorrect or missing token.");
+            return;
+        }
+        long guildID = 0;
+        List<String> guild = session.getUpgradeRequest().getParameterMap().get("guild");
+        if (guild != null && !guild.isEmpty()){
+            try {
+                guildID = Long.parseLong(guild.get(0));
+            } catch (NumberFormatException ex){
+                session.close(StatusCode.BAD_PAYLOAD, "invalid guild data type");
+                return;
+            }
+        }
+        LiveEvents.subscribe(session, guildID);
+        logger.info("Live stream subscriber connected from " + session.getRemoteAddress() + (guildID == 0 ? "" : " for guild " + guildID));
+    }
+
+    @OnWebSocketClose
+    public void onClose(Session session, int statusCode, String reason){
+        LiveEvents.unsubscribe(session);
+    }
+
+    @OnWebSocketError
+    public void onError(Session session, Throwable ex){
+        logger.warn("Live stream subscriber " + session.getRemoteAddress() + " failed", ex);
+        LiveEvents.unsubscribe(session);
+    }
+}
@@ -0,0 +1,63 @@
+package uk.co.hexillium.rhul.compsoc.api;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+
+/**
+ * Where a page of the member leaderboard left off: the XP and ID of the last member on it, and which way it was
+ * sorted.  Clients get it as an opaque string and hand it back for the next page.
+ */
+public class MemberCursor {
+
+    private static final byte VERSION = 1;
+    private static final int LENGTH = 1 + 1 + 8 + 8;
+
+    private final boolean descending;
+    private final long xp;
+    private final long memberID;
+
+    public MemberCursor(boolean descending, long xp, long memberID){
+        this.descending = descending;
+        this.xp = xp;
+        this.memberID = memberID;
+    }
+
+    /**
+     * @return a cursor before the first member, in the given order.
+     */
+    public static MemberCursor start(boolean descending){
+        return descending ? new MemberCursor(true, Long.MAX_VALUE, Long.MAX_VALUE) : new MemberCursor(false, Long.MIN_VALUE, Long.MIN_VALUE);
+    }
+
+    /**
+     * @param cursor a cursor from {@link #encode()}
+     * @return the cursor.
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    public static MemberCursor decode(String cursor){
+        byte[] bytes = Base64.getUrlDecoder().decode(cursor);
+        if (bytes.length != LENGTH || bytes[0] != VERSION){
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 1, LENGTH - 1);
+        return new MemberCursor(buffer.get() == 1, buffer.getLong(), buffer.getLong());
+    }
+
+    public String encode(){
+        ByteBuffer buffer = ByteBuffer.allocate(LENGTH);
+        buffer.put(VERSION).put((byte) (descending ? 1 : 0)).putLong(xp).putLong(memberID);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(buffer.array());
+    }
+
+    public boolean isDescending(){
+        return descending;
+    }
+
+    public long getXp(){
+        return xp;
+    }
+
+    public long getMemberID(){
+        return memberID;
+    }
+}
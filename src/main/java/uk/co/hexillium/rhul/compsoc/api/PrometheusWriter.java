@@ -0,0 +1,65 @@
+package uk.co.hexillium.rhul.compsoc.api;
+
+/**
+ * Builds a response in the Prometheus text exposition format.
+ */
+public class PrometheusWriter {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final StringBuilder out = new StringBuilder();
+
+    public PrometheusWriter header(String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        return this;
+    }
+
+    public PrometheusWriter sample(String name, String labels, double value) {
+        out.append(name);
+        if (labels != null && !labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+        return this;
+    }
+
+    /**
+     * Writes a metric with a single unlabelled sample.
+     */
+    public PrometheusWriter gauge(String name, String help, double value) {
+        return header(name, "gauge", help).sample(name, null, value);
+    }
+
+    public PrometheusWriter counter(String name, String help, double value) {
+        return header(name, "counter", help).sample(name, null, value);
+    }
+
+    /**
+     * @param pairs label names and values, alternating
+     * @return the labels, ready to go between the braces.
+     */
+    public static String labels(String... pairs) {
+        StringBuilder labels = new StringBuilder();
+        for (int i = 0; i + 1 < pairs.length; i += 2) {
+            if (i > 0) labels.append(',');
+            labels.append(pairs[i]).append("=\"").append(escape(pairs[i + 1])).append('"');
+        }
+        return labels.toString();
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    @Override
+    public String toString() {
+        return out.toString();
+    }
+}
@@ -0,0 +1,112 @@
+package uk.co.hexillium.rhul.compsoc.api;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histograms for API requests, one per method, route and status.  Recording is a lookup and a couple of
+ * atomic increments, so it is safe to call from every Jetty worker at once.
+ */
+public class RequestMetrics {
+
+    /**
+     * Upper bounds of the histogram buckets, in seconds
+     */
+    private static final double[] BOUNDS = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+    /**
+     * The methods given a label of their own; the method is sent by the client, even one without a token, so any
+     * other is counted as "other" rather than letting clients make as many series as they like
+     */
+    private static final Set<String> KNOWN_METHODS = Set.of("GET", "HEAD", "POST", "PUT", "PATCH", "DELETE", "OPTIONS");
+
+    private final Map<Key, Histogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * @param method the HTTP method, as sent
+     * @param route  the route pattern that matched, rather than the path, so that IDs don't each get their own series
+     * @param status the response status
+     * @param nanos  how long the request took
+     */
+    public void record(String method, String route, int status, long nanos) {
+        String label = method != null && KNOWN_METHODS.contains(method) ? method : "other";
+        histograms.computeIfAbsent(new Key(label, route, status), k -> new Histogram()).record(nanos);
+    }
+
+    /**
+     * Writes every histogram in the Prometheus text format.
+     */
+    public void writeTo(PrometheusWriter out) {
+        out.header("api_request_duration_seconds", "histogram", "Time taken to handle API requests");
+        //sorted, so series appear in a stable order between scrapes
+        Map<Key, Histogram> sorted = new TreeMap<>(histograms);
+        sorted.forEach((key, histogram) -> {
+            String labels = PrometheusWriter.labels("method", key.method, "route", key.route, "status", String.valueOf(key.status));
+            long cumulative = 0;
+            for (int i = 0; i < BOUNDS.length; i++) {
+                cumulative += histogram.buckets.get(i);
+                out.sample("api_request_duration_seconds_bucket", labels + ",le=\"" + BOUNDS[i] + "\"", cumulative);
+            }
+            long count = histogram.count.sum();
+            out.sample("api_request_duration_seconds_bucket", labels + ",le=\"+Inf\"", count);
+            out.sample("api_request_duration_seconds_sum", labels, histogram.sumNanos.sum() / 1e9);
+            out.sample("api_request_duration_seconds_count", labels, count);
+        });
+    }
+
+    private static class Histogram {
+        final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+        final LongAdder count = new LongAdder();
+        final LongAdder sumNanos = new LongAdder();
+
+        void record(long nanos) {
+            double seconds = nanos / 1e9;
+            int bucket = 0;
+            while (bucket < BOUNDS.length && seconds > BOUNDS[bucket]) {
+                bucket++;
+            }
+            buckets.incrementAndGet(bucket);
+            count.increment();
+            sumNanos.add(nanos);
+        }
+    }
+
+    private static class Key implements Comparable<Key> {
+        final String method;
+        final String route;
+        final int status;
+
+        Key(String method, String route, int status) {
+            this.method = method;
+            this.route = route;
+            this.status = status;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return status == key.status && method.equals(key.method) && route.equals(key.route);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(method, route, status);
+        }
+
+        @Override
+        public int compareTo(Key o) {
+            int cmp = route.compareTo(o.route);
+            if (cmp != 0) return cmp;
+            cmp = method.compareTo(o.method);
+            if (cmp != 0) return cmp;
+            return Integer.compare(status, o.status);
+        }
+    }
+}
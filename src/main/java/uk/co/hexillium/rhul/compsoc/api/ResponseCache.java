@@ -0,0 +1,92 @@
+package uk.co.hexillium.rhul.compsoc.api;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Rendered response bodies, each stored against the ETag it was rendered at, so a request for a version already
+ * rendered is answered without going to the database or serialising again.  Large bodies are kept gzipped as well,
+ * so they aren't compressed again either.
+ * <p>
+ * Only the latest version of each key is kept.  The least recently used bodies are dropped once the total size goes
+ * over the limit.
+ */
+public class ResponseCache {
+
+    private final long maxBytes;
+    private long bytes = 0;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param maxBytes roughly how much memory the cached bodies may take up
+     */
+    public ResponseCache(long maxBytes){
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param key  what the response is for, such as the route and guild
+     * @param etag the ETag of the version wanted
+     * @return the response rendered at that version, or null if it isn't cached.
+     */
+    public synchronized Entry get(String key, String etag){
+        Entry entry = entries.get(key);
+        if (entry == null || !entry.etag.equals(etag)) return null;
+        return entry;
+    }
+
+    /**
+     * Caches a body, replacing any older version held for the key.
+     *
+     * @param gzipped the body already gzipped, or null if it is too small to be worth compressing
+     * @return the entry, which is not kept if it alone is over the limit.
+     */
+    public synchronized Entry put(String key, String etag, String body, byte[] gzipped){
+        Entry entry = new Entry(etag, body, gzipped);
+        if (entry.size > maxBytes) return entry;
+        Entry old = entries.put(key, entry);
+        if (old != null) bytes -= old.size;
+        bytes += entry.size;
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (bytes > maxBytes && eldest.hasNext()){
+            bytes -= eldest.next().size;
+            eldest.remove();
+        }
+        return entry;
+    }
+
+    public synchronized int size(){
+        return entries.size();
+    }
+
+    public synchronized long getBytes(){
+        return bytes;
+    }
+
+    public static class Entry {
+        private final String etag;
+        private final String body;
+        private final byte[] gzipped;
+        private final long size;
+
+        Entry(String etag, String body, byte[] gzipped){
+            this.etag = etag;
+            this.body = body;
+            this.gzipped = gzipped;
+            //two bytes a char, plus a little for the entry itself
+            this.size = body.length() * 2L + (gzipped == null ? 0 : gzipped.length) + 64;
+        }
+
+        public String getBody(){
+            return body;
+        }
+
+        /**
+         * @return the body gzipped, or null if it is too small to be worth compressing.
+         */
+        public byte[] getGzipped(){
+            return gzipped;
+        }
+    }
+}
@@ -1,9 +1,10 @@
 package uk.co.hexillium.rhul.compsoc.api;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.zaxxer.hikari.HikariPoolMXBean;
 import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.entities.Guild;
-import net.dv8tion.jda.api.entities.GuildChannel;
 import net.dv8tion.jda.api.entities.MessageEmbed;
 import net.dv8tion.jda.api.entities.TextChannel;
 import net.dv8tion.jda.api.exceptions.ParsingException;
@@ -14,16 +15,28 @@ import net.dv8tion.jda.internal.entities.EntityBuilder;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import spark.Filter;
-import spark.Request;
 import spark.Route;
 import uk.co.hexillium.rhul.compsoc.persistence.Database;
+import uk.co.hexillium.rhul.compsoc.persistence.entities.ChannelActivity;
 import uk.co.hexillium.rhul.compsoc.persistence.entities.GameAccountBinding;
+import uk.co.hexillium.rhul.compsoc.persistence.entities.GuildXPData;
+import uk.co.hexillium.rhul.compsoc.persistence.entities.GuildXPPage;
+import uk.co.hexillium.rhul.compsoc.persistence.entities.HourlyActivity;
+import uk.co.hexillium.rhul.compsoc.persistence.entities.MemberXPData;
+import uk.co.hexillium.rhul.compsoc.time.JobScheduler;
 
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.function.Consumer;
 
 import static spark.Spark.*;
 
@@ -44,23 +57,85 @@ public class RestAPI {
     private Filter guildCheck;
     private Filter channelCheck;
     private Route getGuildInfo;
+    private Route getGuildStats;
     private Route sendMessage;
+    private Route getSchedulerStats;
+    private Route getMetrics;
+    private Route batchLookup;
+    private Route broadcast;
+    private Route getBroadcast;
 
     private ScheduledExecutorService timer;
 
     private ObjectMapper mapper;
 
-    private List<Token> tokens;
+    /**
+     * How far back each incremental token refresh looks past the latest change already seen, to catch changes
+     * that committed out of order
+     */
+    private static final long TOKEN_REFRESH_OVERLAP_MS = 60 * 1000;
 
-    private Map<Request, Long> timings = new HashMap<>();
+    private final TokenIndex tokens = new TokenIndex();
 
-    public RestAPI(int port, String slug, JDA jda, ObjectMapper om){
+    /**
+     * Request attributes, so that per-request state lives and dies with the request
+     */
+    private static final String START_ATTRIBUTE = "compsoc.start-nanos";
+    private static final String ROUTE_ATTRIBUTE = "compsoc.route";
+    private static final String GZIPPED_ATTRIBUTE = "compsoc.gzipped";
+
+    private final RequestMetrics requestMetrics = new RequestMetrics();
+
+    /**
+     * Upper bound on the memory taken by cached response bodies
+     */
+    private static final long RESPONSE_CACHE_BYTES = 32 * 1024 * 1024;
+
+    private final GuildVersions versions;
+    private final GuildSnapshots snapshots;
+    private final ResponseCache responseCache = new ResponseCache(RESPONSE_CACHE_BYTES);
+    private final int compressionThreshold;
+
+    /**
+     * Most lookups a single batch request may make
+     */
+    private static final int BATCH_LIMIT = 1000;
+
+    /**
+     * Members per page of the leaderboard when the client doesn't say, and the most it may ask for
+     */
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    /**
+     * Most messages being sent at once by broadcasts, most waiting to be sent, and how long a finished broadcast's
+     * status is kept
+     */
+    private static final int BROADCAST_MAX_IN_FLIGHT = 5;
+    private static final int BROADCAST_MAX_QUEUED = 2000;
+    private static final long BROADCAST_RETENTION_MS = 60 * 60 * 1000;
+
+    private final BroadcastDispatcher broadcasts;
+
+    /**
+     * @param compressionThreshold the smallest body, in bytes, that is gzipped for clients that accept it
+     */
+    public RestAPI(int port, String slug, int compressionThreshold, JDA jda, JobScheduler scheduler, ObjectMapper om){
         this.mapper = om;
+        this.compressionThreshold = compressionThreshold;
         timer = Executors.newSingleThreadScheduledExecutor();
-        tokens = new ArrayList<>();
-        initialiseRoutes(jda, om);
+        versions = new GuildVersions(jda);
+        snapshots = new GuildSnapshots(jda);
+        broadcasts = new BroadcastDispatcher(BroadcastDispatcher.jdaSender(jda), BROADCAST_MAX_IN_FLIGHT, BROADCAST_MAX_QUEUED);
+        Database.EXPERIENCE_STORAGE.setOnGuildChanged(versions::membersChanged);
+        Database.TRIVIA_STORAGE.setOnGuildChanged(versions::membersChanged);
+        initialiseRoutes(jda, scheduler, om);
         port(port);
+        //has to be mapped before any route or filter
+        webSocket("/" + slug + "/live", new LiveSocket(this::verifyAuthToken));
+        webSocketIdleTimeoutMillis((int) TimeUnit.MINUTES.toMillis(5));
         before("/*", ((request, response) -> {
+            request.attribute(START_ATTRIBUTE, System.nanoTime());
             logger.info(request.requestMethod() + " request for " + request.pathInfo());
         }));
         after("/*", ((request, response) -> {
@@ -70,55 +145,299 @@ public class RestAPI {
             }
             logger.info(request.requestMethod() + " " + request.pathInfo() + " returned " + response.status() + ", with body length: " + len);
         }));
+        afterAfter("/*", this::compress);
+        //runs even when a filter halts the request, so rejected requests are counted too
+        afterAfter("/*", ((request, response) -> {
+            Long start = request.attribute(START_ATTRIBUTE);
+            if (start == null) return;
+            String route = request.attribute(ROUTE_ATTRIBUTE);
+            requestMetrics.record(request.requestMethod(), route == null ? "unmatched" : route, response.status(), System.nanoTime() - start);
+        }));
         path("/" + slug, () -> {
             before("/*", authCheck);
-            before("/*", ((request, response) -> timings.put(request, System.currentTimeMillis())));
             after("/*", ((request, response) -> {
-                response.header("X-Time-Taken-Ms", String.valueOf(System.currentTimeMillis() - timings.getOrDefault(request, System.currentTimeMillis())));
-                timings.remove(request);
+                Long start = request.attribute(START_ATTRIBUTE);
+                long taken = start == null ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                response.header("X-Time-Taken-Ms", String.valueOf(taken));
             }));
-            get("/hello", (req, resp) -> "hi!");
-            get("/getmembers/:guildid", getMembers); //DEPRECATED; FOR REMOVAL
+            get("/hello", labelled((req, resp) -> "hi!"));
+            get("/scheduler/stats", labelled(getSchedulerStats));
+            get("/metrics", labelled(getMetrics));
+            get("/getmembers/:guildid", labelled(getMembers)); //DEPRECATED; FOR REMOVAL
+            post("/batch", labelled(batchLookup));
+            get("/broadcast/:broadcastid", labelled(getBroadcast));
             path("/guild/:guildid", () ->{
                 before("/*", guildCheck);
-                get("/info", getGuildInfo);
-                get("/members", getMembers);
-                get("/member/:memberid/info", getMemberInfo);
+                get("/info", labelled(getGuildInfo));
+                get("/members", labelled(getMembers));
+                get("/stats", labelled(getGuildStats));
+                get("/member/:memberid/info", labelled(getMemberInfo));
+                post("/broadcast", labelled(broadcast));
                 path("/channels/:channelid", () -> {
                     before("/*", channelCheck);
-                    post("/sendmessage", sendMessage);
+                    post("/sendmessage", labelled(sendMessage));
                 });
             });
 //            get("/guild/:guildid/member/:memberid/info", getMemberInfo);
             path("/games/bindings", () -> {
                 path("/guild/:guildid", () -> {
                     path("/member/:memberid", () -> {
-                        get("/list", getGameBindingsForMember);
+                        get("/list", labelled(getGameBindingsForMember));
                         path("/game/:gameid", () -> {
-                            get("/list", getGameBindingsForMemberGame);
+                            get("/list", labelled(getGameBindingsForMemberGame));
                         });
                     });
                     path("/game/:gameid", () -> {
-                        get("/list", getGameBindingsForGame);
-                        get("/id/:gameuserid", getGameBindingsForGameUserID);
+                        get("/list", labelled(getGameBindingsForGame));
+                        get("/id/:gameuserid", labelled(getGameBindingsForGameUserID));
                     });
                 });
-                post("/create", insertGameBinding);
-                delete("/remove", deleteGameBinding);
+                post("/create", labelled(insertGameBinding));
+                delete("/remove", labelled(deleteGameBinding));
             });
         }); //[/api/games/bindings/guild/500612695570120704/id/abc-1234
-        Consumer<List<Token>> cons = (List<Token> newTokens) -> this.tokens = newTokens;
-        timer.scheduleAtFixedRate(() -> Database.AUTH_TOKEN_STORAGE.fetchAuthTokens(cons, (e) -> logger.error("Failed to fetch tokens.", e)),
-                0, 10, TimeUnit.SECONDS);
+        //a full reload now and then catches tokens deleted outright; otherwise only changed rows are fetched
+        timer.scheduleAtFixedRate(() -> Database.AUTH_TOKEN_STORAGE.fetchAuthTokens(tokens::replaceAll, (e) -> logger.error("Failed to fetch tokens.", e)),
+                0, 10, TimeUnit.MINUTES);
+        timer.scheduleAtFixedRate(() -> Database.AUTH_TOKEN_STORAGE.fetchAuthTokensModifiedSince(tokens.getWatermark() - TOKEN_REFRESH_OVERLAP_MS,
+                        tokens::apply, (e) -> logger.error("Failed to fetch changed tokens.", e)),
+                10, 10, TimeUnit.SECONDS);
+        timer.scheduleAtFixedRate(() -> tokens.evictExpired(System.currentTimeMillis()), 1, 1, TimeUnit.SECONDS);
+        timer.scheduleAtFixedRate(LiveEvents::heartbeat, 30, 30, TimeUnit.SECONDS);
+        timer.scheduleAtFixedRate(() -> broadcasts.evictFinished(System.currentTimeMillis() - BROADCAST_RETENTION_MS), 1, 1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Wraps a route so that its pattern, rather than the path requested, is what requests to it are recorded under.
+     */
+    private Route labelled(Route route){
+        return (request, response) -> {
+            request.attribute(ROUTE_ATTRIBUTE, request.matchedPath());
+            return route.handle(request, response);
+        };
+    }
+
+    private String renderMetrics(JDA jda, JobScheduler scheduler){
+        PrometheusWriter out = new PrometheusWriter();
+        requestMetrics.writeTo(out);
+
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        MemoryUsage nonHeap = ManagementFactory.getMemoryMXBean().getNonHeapMemoryUsage();
+        out.header("jvm_memory_bytes_used", "gauge", "Memory in use")
+                .sample("jvm_memory_bytes_used", PrometheusWriter.labels("area", "heap"), heap.getUsed())
+                .sample("jvm_memory_bytes_used", PrometheusWriter.labels("area", "nonheap"), nonHeap.getUsed());
+        out.header("jvm_memory_bytes_committed", "gauge", "Memory committed by the JVM")
+                .sample("jvm_memory_bytes_committed", PrometheusWriter.labels("area", "heap"), heap.getCommitted())
+                .sample("jvm_memory_bytes_committed", PrometheusWriter.labels("area", "nonheap"), nonHeap.getCommitted());
+        out.gauge("jvm_memory_heap_bytes_max", "Maximum heap size", heap.getMax());
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        out.gauge("jvm_threads_current", "Live threads", threads.getThreadCount());
+        out.gauge("jvm_threads_daemon", "Live daemon threads", threads.getDaemonThreadCount());
+        out.header("jvm_gc_collections_total", "counter", "Garbage collections");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()){
+            out.sample("jvm_gc_collections_total", PrometheusWriter.labels("gc", gc.getName()), gc.getCollectionCount());
+        }
+        out.header("jvm_gc_collection_seconds_total", "counter", "Time spent in garbage collection");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()){
+            out.sample("jvm_gc_collection_seconds_total", PrometheusWriter.labels("gc", gc.getName()), gc.getCollectionTime() / 1000.0);
+        }
+        out.gauge("process_uptime_seconds", "Time since the JVM started", ManagementFactory.getRuntimeMXBean().getUptime() / 1000.0);
+
+        HikariPoolMXBean hikari = Database.getInstance().getSource().getHikariPoolMXBean();
+        if (hikari != null){
+            out.gauge("hikari_connections_active", "Database connections in use", hikari.getActiveConnections());
+            out.gauge("hikari_connections_idle", "Database connections idle in the pool", hikari.getIdleConnections());
+            out.gauge("hikari_connections_total", "Database connections open", hikari.getTotalConnections());
+            out.gauge("hikari_connections_pending", "Threads waiting for a database connection", hikari.getThreadsAwaitingConnection());
+        }
+
+        Map<String, ThreadPoolExecutor> pools = new LinkedHashMap<>();
+        pools.put("database", Database.getRunLaterPool());
+        scheduler.getPools().forEach((type, pool) -> pools.put("job-" + type, pool));
+        out.header("executor_active_threads", "gauge", "Threads running a task");
+        pools.forEach((name, pool) -> out.sample("executor_active_threads", PrometheusWriter.labels("pool", name), pool.getActiveCount()));
+        out.header("executor_queued_tasks", "gauge", "Tasks waiting for a thread");
+        pools.forEach((name, pool) -> out.sample("executor_queued_tasks", PrometheusWriter.labels("pool", name), pool.getQueue().size()));
+        out.header("executor_completed_tasks_total", "counter", "Tasks completed");
+        pools.forEach((name, pool) -> out.sample("executor_completed_tasks_total", PrometheusWriter.labels("pool", name), pool.getCompletedTaskCount()));
+
+        out.header("scheduler_jobs_total", "counter", "Job scheduler counters");
+        scheduler.getMetrics().getCounters().forEach((counter, value) ->
+                out.sample("scheduler_jobs_total", PrometheusWriter.labels("counter", counter), value));
+
+        out.gauge("live_subscribers", "Clients connected to the live stream", LiveEvents.getSubscriberCount());
+        out.counter("live_events_published_total", "Events published to the live stream", LiveEvents.getPublishedCount());
+        out.counter("live_events_dropped_total", "Live stream events dropped because a subscriber fell behind", LiveEvents.getDroppedCount());
+
+        out.gauge("broadcast_messages_queued", "Broadcast messages waiting to be sent", broadcasts.getQueued());
+        out.gauge("broadcast_messages_in_flight", "Broadcast messages being sent", broadcasts.getInFlight());
+
+        out.gauge("discord_gateway_ping_seconds", "Latest gateway heartbeat round trip", jda.getGatewayPing() / 1000.0);
+        out.header("discord_gateway_status", "gauge", "1 for the gateway's current status")
+                .sample("discord_gateway_status", PrometheusWriter.labels("status", jda.getStatus().name()), 1);
+        out.counter("discord_gateway_responses_total", "Gateway events received this session", jda.getResponseTotal());
+        out.gauge("discord_guilds", "Guilds the bot is in", jda.getGuilds().size());
+        return out.toString();
+    }
+
+    /**
+     * Gzips the response body if it is large enough and the client accepts it, using the copy already compressed when
+     * the body came from the cache.
+     * <p>
+     * Spark only compresses bodies itself when a route sets Content-Encoding, and would then compress them again, so
+     * the compressed body is written out here.  That commits the response, and Spark leaves it alone from then on.
+     */
+    private void compress(spark.Request request, spark.Response response) throws IOException {
+        String body = response.body();
+        HttpServletResponse raw = response.raw();
+        if (body == null || raw.isCommitted() || response.status() < 200 || response.status() >= 300) return;
+        byte[] gzipped = request.attribute(GZIPPED_ATTRIBUTE);
+        if (gzipped == null && body.length() < compressionThreshold / 3){
+            //a char is at most three bytes, so this body can't reach the threshold
+            return;
+        }
+        raw.addHeader("Vary", "Accept-Encoding");
+        if (!Gzip.accepted(request.headers("Accept-Encoding"))) return;
+        if (gzipped == null){
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length < compressionThreshold) return;
+            gzipped = Gzip.compress(bytes);
+        }
+        String etag = raw.getHeader("ETag");
+        if (etag != null){
+            raw.setHeader("ETag", Gzip.tag(etag));
+        }
+        raw.setHeader("Content-Encoding", "gzip");
+        raw.setContentLength(gzipped.length);
+        raw.getOutputStream().write(gzipped);
+        raw.flushBuffer();
+    }
+
+    /**
+     * @return the body cached for this version, or null if there isn't one.
+     */
+    private String fromCache(spark.Request request, String key, String etag){
+        ResponseCache.Entry entry = responseCache.get(key, etag);
+        if (entry == null) return null;
+        request.attribute(GZIPPED_ATTRIBUTE, entry.getGzipped());
+        return entry.getBody();
+    }
+
+    /**
+     * Caches a freshly rendered body, gzipping it first if it is large enough that it will be compressed anyway.
+     *
+     * @return the body.
+     */
+    private String toCache(spark.Request request, String key, String etag, String body){
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        byte[] gzipped = bytes.length >= compressionThreshold ? Gzip.compress(bytes) : null;
+        request.attribute(GZIPPED_ATTRIBUTE, responseCache.put(key, etag, body, gzipped).getGzipped());
+        return body;
+    }
+
+    /**
+     * Sets the response's ETag, and if the client already holds that version, answers 304 without a body.
+     *
+     * @return true if a 304 was sent, and the route should return straight away.
+     */
+    private boolean notModified(spark.Request request, spark.Response response, String etag){
+        response.header("ETag", etag);
+        if (GuildVersions.matches(request.headers("If-None-Match"), etag)){
+            response.status(304);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param messageJson a message in the form taken by the sendmessage route
+     * @return the message's embeds, if it has any.
+     */
+    private Collection<MessageEmbed> parseEmbeds(JDA jda, DataObject messageJson){
+        EntityBuilder entityBuilder = ((JDAImpl) jda).getEntityBuilder();
+        Collection<MessageEmbed> msgEmbeds = new ArrayList<>();
+        try {
+            DataArray embeds = messageJson.getArray("embeds");
+            for (Object embedO : embeds){
+                DataObject embedObj = (DataObject) embedO;
+                embedObj.put("type", "rich");
+                msgEmbeds.add(entityBuilder.createMessageEmbed(embedObj));
+            }
+        } catch (ParsingException ignored){}
+        return msgEmbeds;
+    }
+
+    /**
+     * Serves one page of a guild's leaderboard, as asked for by the limit, cursor and order query parameters.
+     */
+    private String memberPage(spark.Request request, spark.Response response, Guild guild) throws IOException {
+        int limit;
+        MemberCursor cursor;
+        try {
+            limit = request.queryParams("limit") == null ? DEFAULT_PAGE_SIZE : Integer.parseInt(request.queryParams("limit"));
+            String order = request.queryParams("order");
+            if (order != null && !order.equals("desc") && !order.equals("asc")){
+                throw new IllegalArgumentException("order must be asc or desc");
+            }
+            if (request.queryParams("cursor") != null){
+                cursor = MemberCursor.decode(request.queryParams("cursor"));
+                if (order != null && cursor.isDescending() != order.equals("desc")){
+                    throw new IllegalArgumentException("order does not match the cursor");
+                }
+            } else {
+                cursor = MemberCursor.start(!"asc".equals(order));
+            }
+        } catch (IllegalArgumentException ex){
+            response.status(400);
+            return "invalid page: " + ex.getMessage();
+        }
+        if (limit < 1 || limit > MAX_PAGE_SIZE){
+            response.status(400);
+            return "limit must be between 1 and " + MAX_PAGE_SIZE;
+        }
+        //one extra row says whether there is a page after this one
+        List<MemberXPData> page = Database.EXPERIENCE_STORAGE.getMemberPage(guild.getIdLong(), cursor.getXp(), cursor.getMemberID(), limit + 1, cursor.isDescending());
+        if (page == null){
+            response.status(500);
+            return "Error";
+        }
+        String next = null;
+        if (page.size() > limit){
+            page = page.subList(0, limit);
+            MemberXPData last = page.get(limit - 1);
+            next = new MemberCursor(cursor.isDescending(), last.getXpTotal(), last.getMemberID()).encode();
+        }
+        response.type("application/json");
+        return mapper.writeValueAsString(new GuildXPPage(page, guild.getName(), guild.getIconUrl(), guild.getIdLong(), next));
+    }
+
+    /**
+     * @param lookups an array of objects, each with a guildId and memberId
+     * @return the member IDs asked for in each guild, in the order first asked for.
+     * @throws IllegalArgumentException if the lookups are malformed
+     */
+    private Map<Long, Set<Long>> parseLookups(JsonNode lookups){
+        Map<Long, Set<Long>> byGuild = new LinkedHashMap<>();
+        if (lookups == null || lookups.isNull()) return byGuild;
+        if (!lookups.isArray()) throw new IllegalArgumentException("lookups must be an array");
+        for (JsonNode lookup : lookups){
+            try {
+                long guildID = Long.parseLong(lookup.path("guildId").asText());
+                long memberID = Long.parseLong(lookup.path("memberId").asText());
+                byGuild.computeIfAbsent(guildID, id -> new LinkedHashSet<>()).add(memberID);
+            } catch (NumberFormatException ex){
+                throw new IllegalArgumentException("invalid guildId or memberId in " + lookup);
+            }
+        }
+        return byGuild;
     }
 
     private boolean verifyAuthToken(String token){
-        //hold tokens in memory, and hit database every 10 seconds-
-        if (token == null) return false;
-        return tokens.stream().anyMatch(t -> t.getToken().equals(token));
+        //hold tokens in memory, keyed by hash, and only fetch the rows that change
+        return tokens.verify(token);
     }
 
-    private void initialiseRoutes(JDA jda, ObjectMapper om){
+    private void initialiseRoutes(JDA jda, JobScheduler scheduler, ObjectMapper om){
         authCheck = ((request, response) -> {
             if (!verifyAuthToken(request.headers("X-Auth-Token"))){
                 halt(403, "Invalid, expired, incorrect or missing token.");
@@ -142,24 +461,55 @@ public class RestAPI {
                 logger.error("Guild was null, but passed nullcheck filter.", new IllegalStateException());
                 return 500;
             }
-            DataObject guildObj = DataObject.empty();
-            guildObj.put("name", guild.getName());
-            guildObj.put("snowflake", guild.getId());
-            guildObj.put("memberCount", guild.getMemberCount());
-            DataArray channels = DataArray.empty();
-            for (GuildChannel channel : guild.getChannels()){
-                DataObject channelObj = DataObject.empty();
-                channelObj.put("name", channel.getName());
-                if (channel instanceof TextChannel) {
-                    channelObj.put("description", ((TextChannel) channel).getTopic());
-                }
-                channelObj.put("pos", channel.getPosition());
-                channelObj.put("type", channel.getType().name());
-                channelObj.put("snowflake", channel.getId());
-                channels.add(channelObj);
+            GuildSnapshots.GuildSnapshot snapshot = snapshots.get(guild);
+            String etag = snapshots.getTag(snapshot);
+            if (notModified(request, response, etag)){
+                return "";
+            }
+            response.type("application/json");
+            String cacheKey = "info/" + guild.getId();
+            String cached = fromCache(request, cacheKey, etag);
+            if (cached != null){
+                return cached;
+            }
+            return toCache(request, cacheKey, etag, snapshot.toJson());
+        }));
+        getGuildStats = (((request, response) -> {
+            Guild guild = jda.getGuildById(request.params(":guildid"));
+            if (guild == null){
+                logger.error("Guild was null, but passed nullcheck filter.", new IllegalStateException());
+                return 500;
+            }
+            long to, from;
+            try {
+                to = request.queryParams("to") == null ? System.currentTimeMillis() : Long.parseLong(request.queryParams("to"));
+                from = request.queryParams("from") == null ? to - 7L * 24 * 60 * 60 * 1000 : Long.parseLong(request.queryParams("from"));
+            } catch (NumberFormatException ex){
+                response.status(400);
+                return "invalid from/to data type";
+            }
+            long[] channelIDs = guild.getTextChannels().stream().mapToLong(TextChannel::getIdLong).toArray();
+            List<ChannelActivity> channels = Database.ACTIVITY_STORAGE.getBusiestChannels(channelIDs, from, to, channelIDs.length);
+            List<HourlyActivity> hourly = Database.ACTIVITY_STORAGE.getHourlyActivity(channelIDs, from, to);
+            if (channels == null || hourly == null){
+                response.status(500);
+                return "Error";
             }
+            HashMap<String, Object> stats = new HashMap<>();
+            stats.put("from", from);
+            stats.put("to", to);
+            stats.put("channels", channels);
+            stats.put("hourly", hourly);
             response.type("application/json");
-            return guildObj.toJson();
+            return om.writeValueAsString(stats);
+        }));
+        getSchedulerStats = (((request, response) -> {
+            response.type("application/json");
+            return om.writeValueAsString(scheduler.getMetrics().snapshot());
+        }));
+        getMetrics = (((request, response) -> {
+            response.type(PrometheusWriter.CONTENT_TYPE);
+            return renderMetrics(jda, scheduler);
         }));
         sendMessage = (((request, response) -> {
             DataObject messageJson = DataObject.fromJson(request.body());
@@ -170,17 +520,8 @@ public class RestAPI {
                 halt(404, "Channel is not of type TEXT.");
                 return "Channel is not of type TEXT.";
             }
-            EntityBuilder entityBuilder = ((JDAImpl) jda).getEntityBuilder();
             String content = messageJson.getString("content", "");
-            Collection<MessageEmbed> msgEmbeds = new ArrayList<>();
-            try {
-                DataArray embeds = messageJson.getArray("embeds");
-                for (Object embedO : embeds){
-                    DataObject embedObj = (DataObject) embedO;
-                    embedObj.put("type", "rich");
-                    msgEmbeds.add(entityBuilder.createMessageEmbed(embedObj));
-                }
-            } catch (ParsingException ignored){}
+            Collection<MessageEmbed> msgEmbeds = parseEmbeds(jda, messageJson);
             if (content.equals("") && msgEmbeds.isEmpty()){
                 return "Error; no content specified.";
             }
@@ -207,9 +548,81 @@ public class RestAPI {
                 response.status(404);
                 return "Guild not found.";
             }
+            if (request.queryParams("limit") != null || request.queryParams("cursor") != null || request.queryParams("order") != null){
+                return memberPage(request, response, jda.getGuildById(id));
+            }
+            String etag = versions.getMembersTag(id);
+            if (notModified(request, response, etag)){
+                return "";
+            }
             response.type("application/json");
-            return mapper.writeValueAsString(Database.EXPERIENCE_STORAGE.getGuildData(id, jda.getGuildById(id)));
+            String cacheKey = "members/" + id;
+            String cached = fromCache(request, cacheKey, etag);
+            if (cached != null){
+                return cached;
+            }
+            GuildXPData data = Database.EXPERIENCE_STORAGE.getGuildData(id, jda.getGuildById(id));
+            String body = mapper.writeValueAsString(data);
+            //a failed fetch isn't worth keeping
+            if (data == null){
+                return body;
+            }
+            return toCache(request, cacheKey, etag, body);
         });
+        batchLookup = (((request, response) -> {
+            //{"members": [{"guildId": .., "memberId": ..}, ..], "bindings": [{"guildId": .., "memberId": ..}, ..]}
+            Map<Long, Set<Long>> memberLookups, bindingLookups;
+            try {
+                JsonNode body = om.readTree(request.body());
+                memberLookups = parseLookups(body.get("members"));
+                bindingLookups = parseLookups(body.get("bindings"));
+            } catch (IOException | IllegalArgumentException ex){
+                response.status(400);
+                return "invalid batch: " + ex.getMessage();
+            }
+            int lookups = 0;
+            for (Set<Long> ids : memberLookups.values()) lookups += ids.size();
+            for (Set<Long> ids : bindingLookups.values()) lookups += ids.size();
+            if (lookups > BATCH_LIMIT){
+                response.status(400);
+                return "too many lookups; at most " + BATCH_LIMIT + " per batch";
+            }
+            //one query per guild for each kind of lookup, however many members are asked about
+            Map<String, Map<String, Object>> members = new LinkedHashMap<>();
+            for (Map.Entry<Long, Set<Long>> guild : memberLookups.entrySet()){
+                Map<String, Object> results = new LinkedHashMap<>();
+                members.put(String.valueOf(guild.getKey()), results);
+                //as with the per-member route, only guilds the bot is in can be looked at
+                Map<Long, Map<String, Object>> found = jda.getGuildById(guild.getKey()) == null ? Collections.emptyMap() :
+                        Database.EXPERIENCE_STORAGE.getMembersInfo(guild.getKey(), guild.getValue().stream().mapToLong(Long::longValue).toArray());
+                if (found == null){
+                    response.status(500);
+                    return "Error";
+                }
+                for (long memberID : guild.getValue()){
+                    results.put(String.valueOf(memberID), found.get(memberID));
+                }
+            }
+            Map<String, Map<String, Object>> bindings = new LinkedHashMap<>();
+            for (Map.Entry<Long, Set<Long>> guild : bindingLookups.entrySet()){
+                Map<Long, List<GameAccountBinding>> found = Database.GAME_BINDING_STORAGE.getGameBindingsForMembers(guild.getKey(),
+                        guild.getValue().stream().mapToLong(Long::longValue).toArray());
+                if (found == null){
+                    response.status(500);
+                    return "Error";
+                }
+                Map<String, Object> results = new LinkedHashMap<>();
+                for (long memberID : guild.getValue()){
+                    results.put(String.valueOf(memberID), found.get(memberID));
+                }
+                bindings.put(String.valueOf(guild.getKey()), results);
+            }
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("members", members);
+            result.put("bindings", bindings);
+            response.type("application/json");
+            return om.writeValueAsString(result);
+        }));
         getGameBindingsForMember = (((request, response) -> {
             //guildid, memberid
             long guildID;
@@ -261,6 +674,65 @@ public class RestAPI {
             response.type("application/json");
             return om.writeValueAsString(Database.GAME_BINDING_STORAGE.getGameBindingsForMemberGame(memberID, guildID, request.params(":gameid")));
         }));
+        broadcast = (((request, response) -> {
+            //{"content": .., "embeds": [..], "channels": ["<channelid>", ..]}
+            Guild guild = jda.getGuildById(request.params(":guildid"));
+            DataObject messageJson;
+            try {
+                messageJson = DataObject.fromJson(request.body());
+            } catch (ParsingException ex){
+                response.status(400);
+                return "invalid JSON";
+            }
+            String content = messageJson.getString("content", "");
+            Collection<MessageEmbed> msgEmbeds = parseEmbeds(jda, messageJson);
+            if (content.equals("") && msgEmbeds.isEmpty()){
+                response.status(400);
+                return "Error; no content specified.";
+            }
+            List<Long> channelIDs = new ArrayList<>();
+            try {
+                for (Object channelO : messageJson.getArray("channels")){
+                    TextChannel channel = guild.getTextChannelById(String.valueOf(channelO));
+                    if (channel == null){
+                        response.status(404);
+                        return "Invalid channel, or guild->channel: " + channelO;
+                    }
+                    channelIDs.add(channel.getIdLong());
+                }
+            } catch (ParsingException | NumberFormatException ex){
+                response.status(400);
+                return "channels must be an array of channel IDs";
+            }
+            if (channelIDs.isEmpty()){
+                response.status(400);
+                return "Error; no channels specified.";
+            }
+            BroadcastDispatcher.Broadcast queued = broadcasts.broadcast(guild.getIdLong(), channelIDs, content, msgEmbeds);
+            if (queued == null){
+                response.status(503);
+                return "Too many broadcast messages waiting to be sent; try again later.";
+            }
+            response.status(202);
+            response.type("application/json");
+            return om.writeValueAsString(queued.toMap());
+        }));
+        getBroadcast = (((request, response) -> {
+            long broadcastID;
+            try {
+                broadcastID = Long.parseLong(request.params(":broadcastid"));
+            } catch (NumberFormatException ex){
+                response.status(400);
+                return "invalid BroadcastID data type";
+            }
+            BroadcastDispatcher.Broadcast found = broadcasts.getBroadcast(broadcastID);
+            if (found == null){
+                response.status(404);
+                return "Broadcast not found.";
+            }
+            response.type("application/json");
+            return om.writeValueAsString(found.toMap());
+        }));
         getMemberInfo = (((request, response) -> {
             //guildid, gameid, memberid
             long guildID;
@@ -4,20 +4,43 @@ import java.util.Base64;
 
 public class Token {
 
+    final private int id;
     final private byte[] token;
     final private long timeout;
     final private String comment;
+    final private boolean invalidated;
+    final private long modified;
 
     public Token(byte[] token, long timeout, String comment){
+        this(-1, token, timeout, comment, false, 0);
+    }
+
+    /**
+     * @param id          the token's row ID
+     * @param invalidated whether the token has been revoked
+     * @param modified    when the token's row last changed, in epoch milliseconds
+     */
+    public Token(int id, byte[] token, long timeout, String comment, boolean invalidated, long modified){
+        this.id = id;
         this.token = token;
         this.timeout = timeout;
         this.comment = comment;
+        this.invalidated = invalidated;
+        this.modified = modified;
+    }
+
+    public int getId() {
+        return id;
     }
 
     public String getToken() {
         return Base64.getEncoder().encodeToString(token);
     }
 
+    byte[] getTokenBytes() {
+        return token;
+    }
+
     public long getTimeout() {
         return timeout;
     }
@@ -26,4 +49,12 @@ public class Token {
         return comment;
     }
 
+    public boolean isInvalidated() {
+        return invalidated;
+    }
+
+    public long getModified() {
+        return modified;
+    }
+
 }
@@ -0,0 +1,146 @@
+package uk.co.hexillium.rhul.compsoc.api;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * The API tokens currently accepted, held in an immutable map keyed by the SHA-256 of each token's bytes.
+ * <p>
+ * Checking a token is a single hash and lookup however many tokens there are, followed by a constant-time
+ * comparison of the bytes, so neither the lookup nor the comparison gives away how close a guess was.  Changes build
+ * a new map which is swapped in whole, so checks never lock.  Tokens are also queued by expiry and dropped as they
+ * expire, without waiting for the next refresh.
+ */
+public class TokenIndex {
+
+    private volatile Map<String, Token> byHash = Collections.emptyMap();
+    /**
+     * Every token in the map, soonest to expire first.  Guarded by this.
+     */
+    private final PriorityQueue<Token> expiries = new PriorityQueue<>(Comparator.comparingLong(Token::getTimeout));
+    /**
+     * The latest copy seen of every token with a row, whether or not it is still accepted.  Guarded by this.
+     */
+    private final Map<Integer, Token> byId = new HashMap<>();
+    /**
+     * The latest modification time seen.  Guarded by this.
+     */
+    private long watermark = 0;
+
+    /**
+     * @param header the token as sent, in base-64
+     * @return true if the token is known and has not expired.
+     */
+    public boolean verify(String header) {
+        if (header == null) return false;
+        byte[] candidate;
+        try {
+            candidate = Base64.getDecoder().decode(header.trim().getBytes(StandardCharsets.US_ASCII));
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+        Token token = byHash.get(hash(candidate));
+        return token != null
+                && MessageDigest.isEqual(token.getTokenBytes(), candidate)
+                && token.getTimeout() > System.currentTimeMillis();
+    }
+
+    /**
+     * Replaces every token, as after a full reload.  This also drops any that were deleted outright, which an
+     * incremental refresh can't see.
+     */
+    public synchronized void replaceAll(List<Token> tokens) {
+        Map<String, Token> next = new HashMap<>();
+        expiries.clear();
+        byId.clear();
+        long now = System.currentTimeMillis();
+        for (Token token : tokens) {
+            watermark = Math.max(watermark, token.getModified());
+            if (token.getId() >= 0) byId.put(token.getId(), token);
+            if (token.isInvalidated() || token.getTimeout() <= now) continue;
+            next.put(hash(token.getTokenBytes()), token);
+            expiries.add(token);
+        }
+        byHash = Collections.unmodifiableMap(next);
+    }
+
+    /**
+     * Applies tokens that have changed, adding new ones and dropping any that were invalidated or have expired.
+     * Refreshes overlap, so the same rows come back more than once; a row no newer than the copy already seen is
+     * skipped, and if nothing is newer the map isn't rebuilt at all.
+     */
+    public synchronized void apply(List<Token> changed) {
+        Map<String, Token> next = null;
+        long now = System.currentTimeMillis();
+        for (Token token : changed) {
+            watermark = Math.max(watermark, token.getModified());
+            Token previous = token.getId() >= 0 ? byId.get(token.getId()) : null;
+            if (previous != null && token.getModified() <= previous.getModified()) continue;
+            if (next == null) next = new HashMap<>(byHash);
+            if (token.getId() >= 0) byId.put(token.getId(), token);
+            if (previous != null) {
+                //a row's token can change, so drop whatever was held for it before
+                String previousKey = hash(previous.getTokenBytes());
+                if (next.get(previousKey) == previous) next.remove(previousKey);
+                expiries.remove(previous);
+            }
+            String key = hash(token.getTokenBytes());
+            if (token.isInvalidated() || token.getTimeout() <= now) {
+                next.remove(key);
+            } else {
+                Token replaced = next.put(key, token);
+                if (replaced != null && replaced != previous) expiries.remove(replaced);
+                expiries.add(token);
+            }
+        }
+        if (next != null) {
+            byHash = Collections.unmodifiableMap(next);
+        }
+    }
+
+    /**
+     * Drops every token that has expired.  Only the tokens that have expired are looked at.
+     */
+    public synchronized void evictExpired(long now) {
+        Map<String, Token> next = null;
+        while (!expiries.isEmpty() && expiries.peek().getTimeout() <= now) {
+            Token token = expiries.poll();
+            String key = hash(token.getTokenBytes());
+            //the token may have been replaced since it was queued
+            if (byHash.get(key) != token) continue;
+            if (next == null) next = new HashMap<>(byHash);
+            next.remove(key);
+        }
+        if (next != null) {
+            byHash = Collections.unmodifiableMap(next);
+        }
+    }
+
+    /**
+     * @return the latest modification time of any token seen, in epoch milliseconds.
+     */
+    public synchronized long getWatermark() {
+        return watermark;
+    }
+
+    public int size() {
+        return byHash.size();
+    }
+
+    private static String hash(byte[] token) {
+        try {
+            return Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(token));
+        } catch (NoSuchAlgorithmException ex) {
+            //every JVM has to provide SHA-256
+            throw new IllegalStateException(ex);
+        }
+    }
+}
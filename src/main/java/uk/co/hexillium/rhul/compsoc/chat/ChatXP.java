@@ -7,10 +7,12 @@ import net.dv8tion.jda.api.hooks.EventListener;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
+import uk.co.hexillium.rhul.compsoc.api.LiveEvents;
 import uk.co.hexillium.rhul.compsoc.persistence.Database;
 import uk.co.hexillium.rhul.compsoc.persistence.entities.MemberXPData;
 
 import java.math.BigInteger;
+import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ThreadLocalRandom;
 
@@ -39,7 +41,9 @@ public class ChatXP implements EventListener {
         Database.runLater(() -> {
             MemberXPData data = Database.EXPERIENCE_STORAGE.getMemberXP(event.getGuild().getIdLong(), event.getAuthor().getIdLong());
             if (data == null){
-                Database.EXPERIENCE_STORAGE.newMemberXP(event.getAuthor().getIdLong(), event.getGuild().getIdLong(), generateRandomXP(), System.currentTimeMillis());
+                int gain = generateRandomXP();
+                Database.EXPERIENCE_STORAGE.newMemberXP(event.getAuthor().getIdLong(), event.getGuild().getIdLong(), gain, System.currentTimeMillis());
+                publishGain(event, gain, gain);
                 return;
             }
             long mostRecent = data.getRecentMessage();
@@ -54,9 +58,18 @@ public class ChatXP implements EventListener {
 //                event.getMessage().addReaction("\u2B06\uFE0F").queue();  //⬆️
             }
             Database.EXPERIENCE_STORAGE.updateUserXP(event.getAuthor().getIdLong(), event.getGuild().getIdLong(), gain, System.currentTimeMillis());
+            publishGain(event, gain, currentXP + gain);
         });
     }
 
+    private void publishGain(GuildMessageReceivedEvent event, int gain, long total){
+        //only the latest total matters, so gains for the same member coalesce
+        LiveEvents.publish("xp", event.getGuild().getIdLong(), event.getAuthor().getId(), Map.of(
+                "memberId", event.getAuthor().getId(),
+                "gain", gain,
+                "xpTotal", total));
+    }
+
     private int generateRandomXP(){
         return random.nextInt(10) + 10;
     }
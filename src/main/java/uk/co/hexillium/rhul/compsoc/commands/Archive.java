@@ -0,0 +1,177 @@
+package uk.co.hexillium.rhul.compsoc.commands;
+
+import net.dv8tion.jda.api.JDA;
+import net.dv8tion.jda.api.utils.data.DataObject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import uk.co.hexillium.rhul.compsoc.CommandDispatcher;
+import uk.co.hexillium.rhul.compsoc.CommandEvent;
+import uk.co.hexillium.rhul.compsoc.persistence.Database;
+import uk.co.hexillium.rhul.compsoc.persistence.MessageContentCodec;
+import uk.co.hexillium.rhul.compsoc.persistence.entities.Job;
+import uk.co.hexillium.rhul.compsoc.time.JobOptions;
+import uk.co.hexillium.rhul.compsoc.time.MisfirePolicy;
+
+import java.nio.file.Path;
+
+public class Archive extends Command {
+
+    private static final String[] commands = {"archive"};
+
+    private static final Logger logger = LogManager.getLogger(Archive.class);
+
+    private static final int DEFAULT_SAMPLE_SIZE = 20_000;
+    private static final String DEFAULT_EXPORT_DIRECTORY = "export";
+    private static final String EXPORT_JOB = "archive_export";
+    //exports are long and heavy, so only ever run one, and give it plenty of time; each export catches up on
+    //everything since the last, so a backlog of missed ones only needs running once
+    private static final JobOptions EXPORT_JOB_OPTIONS = new JobOptions(1, 2 * 60 * 60 * 1000, 3, 10 * 60 * 1000, MisfirePolicy.FIRE_ONCE);
+
+    public Archive() {
+        super("Archive", "Manage the message archive",
+                "`archive train [sample size]` trains a new compression dictionary from the archive.\n" +
+                        "`archive bench [sample size]` reports compression ratio and encode/decode cost.\n" +
+                        "`archive rebuildstats` recomputes the channel activity rollups from the archive.\n" +
+                        "`archive export [directory]` exports everything archived since the last export.\n" +
+                        "`archive scheduleexport <hours> [directory]` exports now, then every so many hours, replacing any earlier schedule.\n" +
+                        "`archive stopexport` stops scheduled exports.", commands, "debug");
+    }
+
+    @Override
+    public void onLoad(JDA jda, CommandDispatcher manager) {
+        getScheduler().registerHandle(EXPORT_JOB, this::scheduledExport, EXPORT_JOB_OPTIONS);
+    }
+
+    private void scheduledExport(DataObject data){
+        String directory = data.getString("directory", DEFAULT_EXPORT_DIRECTORY);
+        long interval = data.getLong("interval_ms");
+        long scheduleID = data.getLong("schedule_id", -1);
+        //only the latest schedule carries on; any other was replaced or stopped
+        if (!Database.MESSAGE_EXPORTER.isCurrentSchedule(scheduleID)){
+            logger.info("Export schedule " + scheduleID + " has been superseded, not exporting");
+            return;
+        }
+        logger.info("Scheduled export: " + Database.MESSAGE_EXPORTER.export(Path.of(directory)));
+        submitExport(directory, interval, scheduleID);
+    }
+
+    private void submitExport(String directory, long interval, long scheduleID){
+        DataObject data = DataObject.empty();
+        data.put("directory", directory);
+        data.put("interval_ms", interval);
+        data.put("schedule_id", scheduleID);
+        getScheduler().submitJob(new Job(-1, System.currentTimeMillis(), System.currentTimeMillis() + interval, EXPORT_JOB, data));
+    }
+
+    @Override
+    public void handleCommand(CommandEvent event) {
+        if (event.getUser().getIdLong() != 187979032904728576L){
+            return;
+        }
+        if (Database.MESSAGE_STORAGE == null){
+            event.reply("Not currently available.");
+            return;
+        }
+        String[] args = event.getArgs();
+        if (args.length == 0){
+            event.reply(help);
+            return;
+        }
+        switch (args[0].toLowerCase()){
+            case "train": {
+                int sampleSize = parseSampleSize(event, args);
+                if (sampleSize < 0) return;
+                Database.runLater(() -> {
+                    MessageContentCodec codec = Database.MESSAGE_STORAGE.trainDictionary(sampleSize);
+                    if (codec == null){
+                        event.reactFailure();
+                        event.reply("Failed to train a dictionary, see the logs.");
+                        return;
+                    }
+                    event.reactSuccess();
+                    event.reply("Trained dictionary " + codec.getDictionaryId() + " (" + codec.getDictionarySize() + " bytes)." +
+                            (Database.MESSAGE_STORAGE.isCompressingContent() ? "" : " Compression is not enabled, so it will not be used for new messages."));
+                });
+                break;
+            }
+            case "bench": {
+                int sampleSize = parseSampleSize(event, args);
+                if (sampleSize < 0) return;
+                Database.runLater(() -> {
+                    String report = Database.MESSAGE_STORAGE.benchmarkCompression(sampleSize);
+                    logger.info("Compression benchmark:\n" + report);
+                    event.reply("```" + report + "```");
+                });
+                break;
+            }
+            case "rebuildstats":
+                Database.runLater(() -> {
+                    int rows = Database.ACTIVITY_STORAGE.rebuildFromArchive();
+                    if (rows < 0){
+                        event.reactFailure();
+                        event.reply("Failed to rebuild the activity rollups, see the logs.");
+                        return;
+                    }
+                    event.reactSuccess();
+                    event.reply("Rebuilt " + rows + " activity rollup rows.");
+                });
+                break;
+            case "export": {
+                String directory = args.length > 1 ? args[1] : DEFAULT_EXPORT_DIRECTORY;
+                Database.runLater(() -> event.reply(Database.MESSAGE_EXPORTER.export(Path.of(directory))));
+                break;
+            }
+            case "scheduleexport": {
+                long hours;
+                try {
+                    hours = args.length > 1 ? Long.parseLong(args[1]) : -1;
+                } catch (NumberFormatException ex){
+                    hours = -1;
+                }
+                if (hours < 1){
+                    event.reactFailure();
+                    event.reply("Specify how many hours apart exports should be.");
+                    return;
+                }
+                String directory = args.length > 2 ? args[2] : DEFAULT_EXPORT_DIRECTORY;
+                long interval = hours * 60 * 60 * 1000;
+                Database.runLater(() -> {
+                    long scheduleID = Database.MESSAGE_EXPORTER.replaceSchedule();
+                    if (scheduleID < 0){
+                        event.reactFailure();
+                        event.reply("Failed to schedule exports, see the logs.");
+                        return;
+                    }
+                    event.reactSuccess();
+                    event.reply(Database.MESSAGE_EXPORTER.export(Path.of(directory)));
+                    submitExport(directory, interval, scheduleID);
+                });
+                break;
+            }
+            case "stopexport":
+                Database.runLater(() -> {
+                    if (Database.MESSAGE_EXPORTER.replaceSchedule() < 0){
+                        event.reactFailure();
+                        event.reply("Failed to stop scheduled exports, see the logs.");
+                        return;
+                    }
+                    event.reactSuccess();
+                    event.reply("Scheduled exports stopped.");
+                });
+                break;
+            default:
+                event.reply(help);
+        }
+    }
+
+    private int parseSampleSize(CommandEvent event, String[] args){
+        if (args.length < 2) return DEFAULT_SAMPLE_SIZE;
+        try {
+            return Integer.parseInt(args[1]);
+        } catch (NumberFormatException ex){
+            event.reactFailure();
+            event.reply("Sample size must be a number.");
+            return -1;
+        }
+    }
+}
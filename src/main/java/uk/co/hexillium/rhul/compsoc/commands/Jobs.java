@@ -0,0 +1,102 @@
+package uk.co.hexillium.rhul.compsoc.commands;
+
+import net.dv8tion.jda.api.utils.TimeFormat;
+import uk.co.hexillium.rhul.compsoc.CommandEvent;
+import uk.co.hexillium.rhul.compsoc.persistence.Database;
+import uk.co.hexillium.rhul.compsoc.persistence.entities.Job;
+
+import java.util.List;
+
+public class Jobs extends Command {
+
+    private static final String[] commands = {"jobs"};
+
+    private static final int DEFAULT_SHOWN = 10;
+    private static final int MAX_SHOWN = 25;
+    private static final int ERROR_SHOWN = 150;
+
+    public Jobs() {
+        super("Jobs", "Inspect the job scheduler",
+                "`jobs pools` shows how busy each job type's pool is.\n" +
+                        "`jobs stats` shows job counters and lateness, duration and queueing times per job type.\n" +
+                        "`jobs dead [count]` lists the most recently dead-lettered jobs.\n" +
+                        "`jobs retry <id>` takes a dead-lettered job out of that state and runs it again now.", commands, "debug");
+    }
+
+    @Override
+    public void handleCommand(CommandEvent event) {
+        if (event.getUser().getIdLong() != 187979032904728576L){
+            return;
+        }
+        if (Database.JOB_STORAGE == null){
+            event.reply("Not currently available.");
+            return;
+        }
+        String[] args = event.getArgs();
+        if (args.length == 0){
+            event.reply(help);
+            return;
+        }
+        switch (args[0].toLowerCase()){
+            case "pools":
+                event.reply("```" + getScheduler().getPoolInfo() + "```");
+                break;
+            case "stats":
+                event.reply("```" + getScheduler().getMetrics().report() + "```");
+                break;
+            case "dead": {
+                int count;
+                try {
+                    count = args.length > 1 ? Math.max(1, Math.min(MAX_SHOWN, Integer.parseInt(args[1]))) : DEFAULT_SHOWN;
+                } catch (NumberFormatException ex){
+                    event.reply("Count must be a number.");
+                    return;
+                }
+                Database.runLater(() -> {
+                    List<Job> jobs = Database.JOB_STORAGE.getDeadLetterJobs(count);
+                    if (jobs == null){
+                        event.reactFailure();
+                        event.reply("Failed to fetch dead-lettered jobs, see the logs.");
+                        return;
+                    }
+                    if (jobs.isEmpty()){
+                        event.reply("No jobs have been dead-lettered.");
+                        return;
+                    }
+                    StringBuilder reply = new StringBuilder();
+                    for (Job job : jobs){
+                        String error = job.getLastError() == null ? "no error recorded" : job.getLastError();
+                        if (error.length() > ERROR_SHOWN) error = error.substring(0, ERROR_SHOWN) + "...";
+                        reply.append("`").append(job.getJobID()).append("` ").append(job.getJobType())
+                                .append(", due ").append(TimeFormat.DATE_TIME_SHORT.format(job.getTargetEpoch()))
+                                .append(", ").append(job.getAttempts()).append(" attempts: `")
+                                .append(error.replace("`", "'")).append("`\n");
+                    }
+                    event.reply(reply.toString());
+                });
+                break;
+            }
+            case "retry": {
+                long jobID;
+                try {
+                    jobID = Long.parseLong(args.length > 1 ? args[1] : "");
+                } catch (NumberFormatException ex){
+                    event.reply("Specify the ID of the job to retry.");
+                    return;
+                }
+                Database.runLater(() -> {
+                    Job job = getScheduler().requeueJob(jobID);
+                    if (job == null){
+                        event.reactFailure();
+                        event.reply("That job isn't dead-lettered.");
+                        return;
+                    }
+                    event.reactSuccess();
+                });
+                break;
+            }
+            default:
+                event.reply(help);
+        }
+    }
+}
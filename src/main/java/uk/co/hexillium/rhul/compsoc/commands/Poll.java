@@ -25,6 +25,7 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import uk.co.hexillium.rhul.compsoc.CommandDispatcher;
 import uk.co.hexillium.rhul.compsoc.CommandEvent;
+import uk.co.hexillium.rhul.compsoc.api.LiveEvents;
 import uk.co.hexillium.rhul.compsoc.persistence.Database;
 import uk.co.hexillium.rhul.compsoc.persistence.entities.Job;
 import uk.co.hexillium.rhul.compsoc.persistence.entities.PollData;
@@ -35,6 +36,7 @@ import java.time.Instant;
 import java.time.OffsetDateTime;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.regex.Matcher;
 import java.util.stream.Collectors;
@@ -156,6 +158,16 @@ public class Poll extends Command implements ComponentInteractionHandler, SlashC
                 return;
             }
             expired = expired || data.isFinished() || data.getExpires().isBefore(OffsetDateTime.now());
+            //the same tallies the poll's message shows, and no more
+            if (expired || (data.getVisibilityFlags() & PollData.VISIBILITY_FLAG_TALLIES) == PollData.VISIBILITY_FLAG_TALLIES) {
+                Map<String, Object> tallies = new HashMap<>();
+                tallies.put("pollId", id);
+                tallies.put("name", data.getName());
+                tallies.put("options", data.getOptions());
+                tallies.put("tallies", data.calculateVoteCounts());
+                tallies.put("finished", expired);
+                LiveEvents.publish("poll", data.getGuildId(), String.valueOf(id), tallies);
+            }
             MessageAction action = channel.editMessageEmbedsById(data.getMessageId(), generateEmbed(data, expired));
             if (expired) {
                 action.setActionRows(genActionRow(id, true)).queue(null, logger::error);
@@ -13,12 +13,27 @@ import uk.co.hexillium.rhul.compsoc.CommandEvent;
 import uk.co.hexillium.rhul.compsoc.persistence.Database;
 import uk.co.hexillium.rhul.compsoc.persistence.entities.Job;
 import uk.co.hexillium.rhul.compsoc.persistence.entities.ReminderEntity;
+import uk.co.hexillium.rhul.compsoc.time.CronExpression;
+import uk.co.hexillium.rhul.compsoc.time.JobBatchException;
+import uk.co.hexillium.rhul.compsoc.time.JobOptions;
+import uk.co.hexillium.rhul.compsoc.time.MisfirePolicy;
 import uk.co.hexillium.rhul.compsoc.time.TimeUtils;
 
+import java.time.DateTimeException;
 import java.time.Duration;
+import java.time.Instant;
 import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -37,6 +52,19 @@ public class Reminder extends Command {
 
     JDA jda;
 
+    //reminders missed during downtime are still sent, but trickled out rather than all at once
+    private static final JobOptions REMINDER_JOB_OPTIONS = new JobOptions(4, 30 * 1000, 5, 10 * 1000, MisfirePolicy.spreadOver(5 * 60 * 1000));
+    /**
+     * How long the first of a group of reminders for the same channel may be held back for others to join it
+     */
+    private static final long COALESCE_WINDOW = 1500;
+    private static final int MAX_CONTENT_LENGTH = 2000;
+    private static final int MAX_DESCRIPTION_LENGTH = 4096;
+    private static final int MAX_LINE_MESSAGE_LENGTH = 200;
+    private static final ZoneId DEFAULT_ZONE = ZoneId.of("Europe/London");
+    private static final long MIN_RECURRING_INTERVAL = 60 * 60 * 1000; // 1 hour
+    private static final int RECURRING_INTERVALS_CHECKED = 24;
+
     private static final DateTimeFormatter dateFormat = DateTimeFormatter.ofPattern("E dd LLLL uu HH:mm:ss O"); // example: Wed 06 May 20 01:13:08 GMT
 
 
@@ -56,18 +84,137 @@ public class Reminder extends Command {
         super("Reminder", "Makes a reminder, which will ping you and link your message when triggered.",
                 "`timer <time string> <message ... ...>`\n" +
                         "The time string may use (__underscored__ characters can be used as abbreviations) __s__econds, __m__inutes, __h__ours, __d__ays, __w__eeks and __mo__nths, and come separated with spaces, hyphens or nothing.\n" +
-                        "Examples: `1d2h`  `2d,1w 2s` `4seconds`", commands, "util");
+                        "Examples: `1d2h`  `2d,1w 2s` `4seconds`\n" +
+                        "`timer every <cron> [tz=<zone>] <message ... ...>` reminds you repeatedly, on a cron schedule (`minute hour day-of-month month day-of-week`, or `@daily`, `@weekly` and so on). Times are in " + DEFAULT_ZONE + " unless a zone is given.\n" +
+                        "Example: `timer every 0 9 * * MON-FRI tz=Europe/Paris stand-up!`\n" +
+                        "`timer stop <id>` stops a recurring reminder.", commands, "util");
         if (Database.JOB_STORAGE == null){
             logger.warn("Cannot start Reminders when database is not initialised.");
             return;
         }
     }
 
+    /**
+     * Sends reminders that came due together for the same channel as few messages as possible, rather than one each,
+     * so that a burst of them isn't spread out by the channel's rate limit.
+     * <p>
+     * Every reminder is read before any is sent, and only the ones that couldn't be read or sent are reported as
+     * failed, so a retry never sends the rest of the group again.
+     */
+    private void incomingJobs(List<DataObject> objects){
+        if (objects.size() == 1){
+            incomingJob(objects.get(0));
+            return;
+        }
+        Map<Integer, Throwable> failures = new HashMap<>();
+        List<Integer> indices = new ArrayList<>();
+        List<ReminderEntity> reminders = new ArrayList<>();
+        for (int i = 0; i < objects.size(); i++){
+            try {
+                reminders.add(readReminder(objects.get(i)));
+                indices.add(i);
+            } catch (RuntimeException ex){
+                failures.put(i, ex);
+            }
+        }
+
+        TextChannel tc = jda.getTextChannelById(objects.get(0).getLong("channel_target"));
+        if (tc == null){
+            //they'll each be sent by DM instead
+            for (int i = 0; i < reminders.size(); i++){
+                try {
+                    handleSend(reminders.get(i), objects.get(indices.get(i)).getLong("recurring_id", -1));
+                } catch (RuntimeException ex){
+                    failures.put(indices.get(i), ex);
+                }
+            }
+        } else {
+            sendGrouped(tc, objects, reminders, indices, failures);
+        }
+        if (!failures.isEmpty()){
+            throw new JobBatchException(failures);
+        }
+    }
+
+    private void sendGrouped(TextChannel tc, List<DataObject> objects, List<ReminderEntity> reminders, List<Integer> indices,
+                             Map<Integer, Throwable> failures){
+        OffsetDateTime now = OffsetDateTime.now();
+        Set<Long> mentioned = new LinkedHashSet<>();
+        StringBuilder content = new StringBuilder();
+        StringBuilder description = new StringBuilder();
+        List<Integer> inMessage = new ArrayList<>();
+        long latest = 0;
+        for (int i = 0; i < reminders.size(); i++){
+            ReminderEntity reminder = reminders.get(i);
+            String text = reminder.getMessage();
+            if (text.length() > MAX_LINE_MESSAGE_LENGTH) text = text.substring(0, MAX_LINE_MESSAGE_LENGTH) + "...";
+            String line = "<@" + reminder.getAuthor() + ">: " + text + " ([jump](" + reminder.getMessageJumpUrl() + "))\n";
+            String mention = mentioned.contains(reminder.getAuthor()) ? "" : "<@" + reminder.getAuthor() + "> ";
+
+            if (!inMessage.isEmpty() && (content.length() + mention.length() > MAX_CONTENT_LENGTH
+                    || description.length() + line.length() > MAX_DESCRIPTION_LENGTH)){
+                trySendCombined(tc, content, description, inMessage, latest, failures);
+                mentioned.clear();
+                content.setLength(0);
+                description.setLength(0);
+                inMessage.clear();
+                latest = 0;
+                mention = "<@" + reminder.getAuthor() + "> ";
+            }
+            if (mentioned.add(reminder.getAuthor())){
+                content.append(mention);
+            }
+            description.append(line);
+            inMessage.add(indices.get(i));
+            if (objects.get(indices.get(i)).getLong("recurring_id", -1) < 0){
+                latest = Math.max(latest, Duration.between(reminder.getEpochTarget(), now).toMillis());
+            }
+        }
+        if (!inMessage.isEmpty()){
+            trySendCombined(tc, content, description, inMessage, latest, failures);
+        }
+    }
+
+    /**
+     * Sends one combined message, marking the reminders in it as failed if it couldn't be sent.
+     */
+    private void trySendCombined(TextChannel tc, StringBuilder content, StringBuilder description, List<Integer> inMessage,
+                                 long latestMillis, Map<Integer, Throwable> failures){
+        try {
+            sendCombined(tc, content, description, inMessage.size(), latestMillis);
+        } catch (RuntimeException ex){
+            inMessage.forEach(index -> failures.put(index, ex));
+        }
+    }
+
+    private void sendCombined(TextChannel tc, StringBuilder content, StringBuilder description, int count, long latestMillis){
+        EmbedBuilder embed = new EmbedBuilder();
+        embed.setTitle("Reminders");
+        embed.setDescription(description.toString());
+        if (latestMillis > 0){
+            embed.setFooter(count + " reminders, up to " + humanReadableFormat(Duration.of(latestMillis, ChronoUnit.MILLIS)) + " late");
+        } else {
+            embed.setFooter(count + " reminders");
+        }
+        tc.sendMessageEmbeds(embed.build()).content(content.toString()).queue();
+    }
+
     private void incomingJob(DataObject object){
-        handleSend(ReminderEntity.fromDataObject(object));
+        handleSend(readReminder(object), object.getLong("recurring_id", -1));
     }
 
-    private void handleSend(ReminderEntity reminder){
+    /**
+     * @throws RuntimeException if the job's data isn't a complete reminder
+     */
+    private static ReminderEntity readReminder(DataObject object){
+        ReminderEntity reminder = ReminderEntity.fromDataObject(object);
+        if (reminder.getMessage() == null || reminder.getMessageJumpUrl() == null){
+            throw new IllegalArgumentException("Reminder is missing its message: " + object);
+        }
+        return reminder;
+    }
+
+    private void handleSend(ReminderEntity reminder, long recurringID){
 
         TextChannel tc = jda.getTextChannelById(reminder.getTargetChannel());
         boolean useUserChannel = false;
@@ -81,11 +228,16 @@ public class Reminder extends Command {
 
         OffsetDateTime now = OffsetDateTime.now();
         EmbedBuilder embed = reminder.getAsEmbed();
-        long delta = Duration.between(now, reminder.getEpochTarget()).abs().toMillis();
-        if (now.isAfter(reminder.getEpochTarget())){
-            embed.addField("Delta", humanReadableFormat(Duration.of(delta, ChronoUnit.MILLIS)) + " late", false);
+        if (recurringID >= 0){
+            //the target of a recurring reminder is only its first occurrence
+            embed.setFooter("Recurring reminder " + recurringID + " - use `timer stop " + recurringID + "` to stop it");
         } else {
-            embed.addField("Delta", humanReadableFormat(Duration.of(-delta, ChronoUnit.MILLIS)) + " early", false);
+            long delta = Duration.between(now, reminder.getEpochTarget()).abs().toMillis();
+            if (now.isAfter(reminder.getEpochTarget())){
+                embed.addField("Delta", humanReadableFormat(Duration.of(delta, ChronoUnit.MILLIS)) + " late", false);
+            } else {
+                embed.addField("Delta", humanReadableFormat(Duration.of(-delta, ChronoUnit.MILLIS)) + " early", false);
+            }
         }
 
         String message = "<@" + reminder.getAuthor() + "> ";
@@ -133,7 +285,8 @@ public class Reminder extends Command {
     @Override
     public void onLoad(JDA jda, CommandDispatcher manager) {
         this.jda = jda;
-        getScheduler().registerHandle("reminder", this::incomingJob);
+        getScheduler().registerCoalescingHandle("reminder", data -> String.valueOf(data.getLong("channel_target")),
+                COALESCE_WINDOW, this::incomingJobs, REMINDER_JOB_OPTIONS);
     }
 
     @Override
@@ -158,6 +311,15 @@ public class Reminder extends Command {
             return;
         }
 
+        if (event.getArgs()[0].equalsIgnoreCase("every")){
+            handleRecurring(event);
+            return;
+        }
+        if (event.getArgs()[0].equalsIgnoreCase("stop")){
+            handleStop(event);
+            return;
+        }
+
         Matcher m = messagePattern.matcher(event.getFullArg());
         if (!m.matches()){
             event.reply("Specify a duration of time to wait, then your message.");
@@ -180,6 +342,89 @@ public class Reminder extends Command {
         getScheduler().submitJob(new Job(-1, System.currentTimeMillis(), target.toEpochSecond() * 1000, "reminder", reminder.toDataObject()));
     }
 
+    private void handleRecurring(CommandEvent event){
+        String[] args = event.getArgs();
+        //"every", then either a macro or five cron fields
+        int fields = args.length > 1 && args[1].startsWith("@") ? 1 : 5;
+        int consumed = 1 + fields;
+        if (args.length <= consumed){
+            event.reply("Specify a cron schedule, then your message. See `help timer`.");
+            return;
+        }
+        String expression = String.join(" ", Arrays.copyOfRange(args, 1, consumed));
+        ZoneId zone = DEFAULT_ZONE;
+        if (args[consumed].toLowerCase().startsWith("tz=")){
+            try {
+                zone = ZoneId.of(args[consumed].substring(3));
+            } catch (DateTimeException ex){
+                event.reply("I don't know the time zone `" + args[consumed].substring(3) + "`.");
+                return;
+            }
+            consumed++;
+        }
+        String[] split = event.getFullArg().split("\\s+", consumed + 1);
+        if (split.length <= consumed){
+            event.reply("Specify a cron schedule, then your message. See `help timer`.");
+            return;
+        }
+        String message = split[consumed];
+
+        CronExpression cron;
+        try {
+            cron = CronExpression.parse(expression, zone);
+        } catch (IllegalArgumentException ex){
+            event.reply("That schedule doesn't work: " + ex.getMessage());
+            return;
+        }
+        long first = cron.next(System.currentTimeMillis());
+        long previous = first;
+        for (int i = 0; i < RECURRING_INTERVALS_CHECKED; i++){
+            long next = cron.next(previous);
+            if (next < 0) break;
+            if (next - previous < MIN_RECURRING_INTERVAL){
+                event.reply("Recurring reminders must be at least an hour apart.");
+                return;
+            }
+            previous = next;
+        }
+
+        OffsetDateTime target = Instant.ofEpochMilli(first).atOffset(ZoneOffset.UTC);
+        ReminderEntity reminder = new ReminderEntity(event.getMessage().getJumpUrl(),
+                event.getTextChannel().getIdLong(), event.getAuthor().getIdLong(), target, message);
+        getScheduler().submitRecurringJob(cron, "reminder", reminder.toDataObject(), job -> {
+            if (job == null){
+                event.reactFailure();
+                event.reply("I couldn't save that reminder, sorry.");
+                return;
+            }
+            event.reactSuccess();
+            event.reply("Okay, I'll remind you on `" + cron + "`, starting " + TimeFormat.DATE_TIME_SHORT.format(first) +
+                    " (" + TimeFormat.RELATIVE.format(first) + "). Use `timer stop " + job.getRecurringID() + "` to stop.");
+        });
+    }
+
+    private void handleStop(CommandEvent event){
+        long recurringID;
+        try {
+            recurringID = Long.parseLong(event.getArgs()[event.getArgs().length - 1]);
+        } catch (NumberFormatException ex){
+            event.reply("Specify the number of the recurring reminder to stop.");
+            return;
+        }
+        Database.runLater(() -> {
+            DataObject data = Database.JOB_STORAGE.getRecurringJobData(recurringID);
+            if (data == null || data.getLong("author", -1) != event.getAuthor().getIdLong()){
+                event.reply("You don't have a recurring reminder with that number.");
+                return;
+            }
+            if (!getScheduler().cancelRecurringJob(recurringID)){
+                event.reactFailure();
+                event.reply("I couldn't stop that reminder, sorry.");
+                return;
+            }
+            event.reactSuccess();
+        });
+    }
 
     @Override
     public boolean requireGuild() {
@@ -0,0 +1,78 @@
+package uk.co.hexillium.rhul.compsoc.commands;
+
+import net.dv8tion.jda.api.EmbedBuilder;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.TextChannel;
+import net.dv8tion.jda.api.events.interaction.SlashCommandEvent;
+import net.dv8tion.jda.api.interactions.commands.OptionMapping;
+import net.dv8tion.jda.api.interactions.commands.OptionType;
+import net.dv8tion.jda.api.interactions.commands.build.CommandData;
+import net.dv8tion.jda.api.utils.TimeFormat;
+import uk.co.hexillium.rhul.compsoc.CommandEvent;
+import uk.co.hexillium.rhul.compsoc.persistence.Database;
+import uk.co.hexillium.rhul.compsoc.persistence.entities.ChannelActivity;
+
+import java.util.List;
+
+public class Stats extends Command implements SlashCommandHandler {
+
+    private static final int DEFAULT_DAYS = 7;
+    private static final int MAX_DAYS = 366;
+    private static final int CHANNELS_SHOWN = 10;
+
+    public Stats() {
+        super("stats", "See which channels have been busiest", "Use /stats", new String[0], "util");
+    }
+
+    @Override
+    public void handleCommand(CommandEvent event) {
+
+    }
+
+    @Override
+    public List<CommandData> registerGlobalCommands() {
+        return List.of(
+                new CommandData("stats", "See which channels have been busiest")
+                        .addOption(OptionType.INTEGER, "days", "How many days back to look (default " + DEFAULT_DAYS + ")", false)
+        );
+    }
+
+    @Override
+    public void handleSlashCommand(SlashCommandEvent event) {
+        Guild guild = event.getGuild();
+        if (guild == null){
+            event.reply("This command must be executed from a Guild context.").setEphemeral(true).queue();
+            return;
+        }
+        OptionMapping daysOpt = event.getOption("days");
+        long days = daysOpt == null ? DEFAULT_DAYS : Math.max(1, Math.min(MAX_DAYS, daysOpt.getAsLong()));
+        long to = System.currentTimeMillis();
+        long from = to - days * 24 * 60 * 60 * 1000;
+
+        long[] channelIDs = guild.getTextChannels().stream().mapToLong(TextChannel::getIdLong).toArray();
+        List<ChannelActivity> activity = Database.ACTIVITY_STORAGE.getBusiestChannels(channelIDs, from, to, CHANNELS_SHOWN);
+        if (activity == null){
+            event.reply("Failed to fetch channel stats.").setEphemeral(true).queue();
+            return;
+        }
+
+        EmbedBuilder embed = new EmbedBuilder();
+        embed.setTitle("Busiest channels");
+        embed.setDescription("Since " + TimeFormat.DATE_TIME_SHORT.format(from));
+        if (activity.isEmpty()){
+            embed.addField("Nothing yet", "No messages have been counted in this period.", false);
+        }
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < activity.size(); i++){
+            ChannelActivity channel = activity.get(i);
+            lines.append(i + 1).append(". <#").append(channel.getChannelId()).append("> - ")
+                    .append(channel.getMessages()).append(" messages from ")
+                    .append(channel.getAuthors()).append(channel.getAuthors() == 1 ? " member" : " members")
+                    .append("\n");
+        }
+        if (lines.length() > 0){
+            embed.addField("Channels", lines.toString(), false);
+        }
+        event.replyEmbeds(embed.build()).queue();
+    }
+}
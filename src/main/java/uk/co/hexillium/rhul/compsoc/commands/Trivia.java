@@ -33,6 +33,7 @@ import org.jfree.data.time.Second;
 import org.jfree.chart.title.LegendTitle;
 import uk.co.hexillium.rhul.compsoc.CommandDispatcher;
 import uk.co.hexillium.rhul.compsoc.CommandEvent;
+import uk.co.hexillium.rhul.compsoc.api.LiveEvents;
 import uk.co.hexillium.rhul.compsoc.commands.challenges.*;
 import uk.co.hexillium.rhul.compsoc.persistence.Database;
 import uk.co.hexillium.rhul.compsoc.persistence.entities.ScoreHistory;
@@ -462,6 +463,11 @@ public class Trivia extends Command implements EventListener, ComponentInteracti
                 this.lastQuestionSolved = false;
                 boolean isRight = currentQuestion.isCorrectAnswer(answer);
                 Database.TRIVIA_STORAGE.updateMemberScore(user.getIdLong(), channel.getGuild().getIdLong(), currentQuestion.getPoints(isRight), CURRENT_SEASON_NUMBER);
+                LiveEvents.publish("trivia", channel.getGuild().getIdLong(), null, Map.of(
+                        "memberId", user.getId(),
+                        "correct", isRight,
+                        "change", currentQuestion.getPoints(isRight),
+                        "season", CURRENT_SEASON_NUMBER));
                 updateMessage(currentQuestion, isRight, user, recentSentMessageID, channel);
                 this.currentQuestion = null;
             }
@@ -6,7 +6,9 @@ import net.dv8tion.jda.api.entities.TextChannel;
 import net.dv8tion.jda.api.entities.User;
 import net.dv8tion.jda.api.events.GenericEvent;
 import net.dv8tion.jda.api.events.channel.text.TextChannelCreateEvent;
+import net.dv8tion.jda.api.events.channel.text.TextChannelDeleteEvent;
 import net.dv8tion.jda.api.events.channel.text.update.TextChannelUpdateNameEvent;
+import net.dv8tion.jda.api.events.channel.text.update.TextChannelUpdateTopicEvent;
 import net.dv8tion.jda.api.events.guild.member.GuildMemberJoinEvent;
 import net.dv8tion.jda.api.events.guild.member.update.GuildMemberUpdateNicknameEvent;
 import net.dv8tion.jda.api.events.user.update.GenericUserUpdateEvent;
@@ -14,9 +16,11 @@ import net.dv8tion.jda.api.hooks.EventListener;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
+import uk.co.hexillium.rhul.compsoc.api.LiveEvents;
 import uk.co.hexillium.rhul.compsoc.persistence.Database;
 
 import java.util.List;
+import java.util.Map;
 
 public class InformationUpdateHandler implements EventListener {
 
@@ -32,39 +36,36 @@ public class InformationUpdateHandler implements EventListener {
             update(((GuildMemberUpdateNicknameEvent) genericEvent).getMember());
         }
         if (genericEvent instanceof TextChannelUpdateNameEvent){
-            updateChannelName(((TextChannelUpdateNameEvent) genericEvent).getChannel());
+            Database.MESSAGE_STORAGE.queueChannelUpdate(((TextChannelUpdateNameEvent) genericEvent).getChannel());
+        }
+        if (genericEvent instanceof TextChannelUpdateTopicEvent){
+            Database.MESSAGE_STORAGE.queueChannelUpdate(((TextChannelUpdateTopicEvent) genericEvent).getChannel());
         }
         if (genericEvent instanceof TextChannelCreateEvent){
-            insertChannel(((TextChannelCreateEvent) genericEvent).getChannel());
+            Database.MESSAGE_STORAGE.queueChannelUpdate(((TextChannelCreateEvent) genericEvent).getChannel());
+        }
+        if (genericEvent instanceof TextChannelDeleteEvent){
+            Database.MESSAGE_STORAGE.queueChannelDelete(((TextChannelDeleteEvent) genericEvent).getChannel().getIdLong());
         }
         if (genericEvent instanceof GenericUserUpdateEvent){
             update(((GenericUserUpdateEvent<?>) genericEvent).getUser());
         }
         if (genericEvent instanceof GuildMemberJoinEvent){
-            Database.EXPERIENCE_STORAGE.importMembers(((GuildMemberJoinEvent) genericEvent).getMember());
+            Member member = ((GuildMemberJoinEvent) genericEvent).getMember();
+            Database.EXPERIENCE_STORAGE.importMembers(member);
+            LiveEvents.publish("member_join", member.getGuild().getIdLong(), null, Map.of(
+                    "memberId", member.getId(),
+                    "username", member.getUser().getName()));
         }
 
     }
 
     public void ready(JDA jda){
         List<TextChannel> tcs = jda.getTextChannels();
-        logger.info("Entering {} channels", tcs.size());
-        Database.runLater(() -> {
-            for (TextChannel tc : tcs)
-                Database.MESSAGE_STORAGE.insertChannel(tc);
-            logger.info("Finished inserting channels");
-        });
-    }
-
-    private void updateChannelName(TextChannel tc) {
-        Database.runLater(() -> {
-            Database.MESSAGE_STORAGE.updateChannel(tc);
-        });
-    }
-
-    private void insertChannel(TextChannel tc) {
+        logger.info("Syncing {} channels", tcs.size());
         Database.runLater(() -> {
-            Database.MESSAGE_STORAGE.insertChannel(tc);
+            int changed = Database.MESSAGE_STORAGE.syncChannels(tcs);
+            logger.info("Finished syncing channels, {} changed", changed);
         });
     }
 
@@ -16,15 +16,18 @@ public class MessageAccumulator implements EventListener {
     }
 
     private void messageCreated(GuildMessageReceivedEvent event){
-        Database.MESSAGE_STORAGE.insertMessage(event.getMessage());
+        Database.MESSAGE_STORAGE.queueMessage(event.getMessage());
+        Database.ACTIVITY_STORAGE.recordMessage(event.getChannel().getIdLong(),
+                event.getMessage().getType().isSystem() ? -1 : event.getAuthor().getIdLong(),
+                event.getMessage().getTimeCreated().toInstant().toEpochMilli());
     }
 
     private void messageUpdated(GuildMessageUpdateEvent event){
-        Database.MESSAGE_STORAGE.insertMessage(event.getMessage());
+        Database.MESSAGE_STORAGE.queueMessage(event.getMessage());
     }
 
     private void messageDeleted(GuildMessageDeleteEvent event){
-        Database.MESSAGE_STORAGE.deleteMessage(event.getMessageIdLong());
+        Database.MESSAGE_STORAGE.queueDelete(event.getMessageIdLong());
     }
 
     @Override
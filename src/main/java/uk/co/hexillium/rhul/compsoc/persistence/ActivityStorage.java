@@ -0,0 +1,303 @@
+package uk.co.hexillium.rhul.compsoc.persistence;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import uk.co.hexillium.rhul.compsoc.persistence.entities.ChannelActivity;
+import uk.co.hexillium.rhul.compsoc.persistence.entities.HourlyActivity;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Maintains hourly message counts per (channel, author), so that activity questions can be answered
+ * from a few hundred rollup rows rather than by scanning the message archive.
+ */
+public class ActivityStorage {
+
+    private static final Logger logger = LogManager.getLogger(ActivityStorage.class);
+
+    public static final long HOUR_MS = 60 * 60 * 1000;
+    /**
+     * How often the in-memory counters are written into the rollup table
+     */
+    private static final long FLUSH_INTERVAL_MS = 60 * 1000;
+    /**
+     * How long a rebuild waits for the message queue to be written out
+     */
+    private static final long DRAIN_TIMEOUT_MS = 30 * 1000;
+
+    /**
+     * Brings an existing database up to date.  Safe to run again.
+     */
+    private static final String[] MIGRATION = {
+            "create table if not exists channel_activity (" +
+                    " channel_id bigint not null, " +
+                    " hour bigint not null, " +
+                    " author_id bigint not null, " +
+                    " message_count integer default 0 not null, " +
+                    " constraint channel_activity_pk primary key (channel_id, hour, author_id)" +
+                    ");"
+    };
+
+    private static final String upsertActivity =
+            "insert into channel_activity(channel_id, hour, author_id, message_count) values (?, ?, ?, ?) " +
+                    "on conflict (channel_id, hour, author_id) do update set message_count = channel_activity.message_count + excluded.message_count;";
+
+    private static final String fetchBusiestChannels =
+            "select channel_id, sum(message_count) as messages, count(distinct author_id) as authors " +
+                    "from channel_activity where channel_id = any (?) and hour >= ? and hour < ? " +
+                    "group by channel_id order by messages desc limit ?;";
+
+    private static final String fetchHourlyActivity =
+            "select hour, sum(message_count) as messages from channel_activity " +
+                    "where channel_id = any (?) and hour >= ? and hour < ? " +
+                    "group by hour order by hour;";
+
+    private static final String deleteRollupsBefore =
+            "delete from channel_activity where hour < ?;";
+
+    // message snowflakes carry their creation time, so revisions can be collapsed without trusting modified_timestamp
+    private static final String rebuildRollupsBefore =
+            "insert into channel_activity(channel_id, hour, author_id, message_count) " +
+                    "select channel_id, hour, author_id, count(*) from (" +
+                    "    select distinct on (message_id) channel_id, coalesce(author_id, -1) as author_id, " +
+                    "           (((message_id >> 22) + 1420070400000) / 3600000) * 3600000 as hour " +
+                    "    from messages) as m " +
+                    "where hour < ? " +
+                    "group by channel_id, hour, author_id;";
+
+    private final HikariDataSource source;
+    private final MessageStorage messageStorage;
+    private final ScheduledExecutorService flushTimer;
+    private final Map<ActivityKey, Integer> counters = new ConcurrentHashMap<>();
+    /**
+     * Held while writing to the rollup table, so a flush can't add counts between a rebuild's delete and insert
+     */
+    private final Object rollupLock = new Object();
+
+    ActivityStorage(HikariDataSource source, MessageStorage messageStorage){
+        this.source = source;
+        this.messageStorage = messageStorage;
+        flushTimer = Executors.newSingleThreadScheduledExecutor();
+        flushTimer.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds the rollup table if it is missing.
+     */
+    public void migrate(){
+        try (Connection connection = source.getConnection();
+             Statement statement = connection.createStatement()){
+
+            for (String sql : MIGRATION){
+                statement.execute(sql);
+            }
+
+        } catch (SQLException ex){
+            logger.error("Failed to migrate the activity table", ex);
+        }
+    }
+
+    /**
+     * Counts a newly sent message towards its hour.
+     *
+     * @param channelID the channel it was sent in
+     * @param authorID  the author, or -1 for system messages
+     * @param epoch     when it was sent, in epoch milliseconds
+     */
+    public void recordMessage(long channelID, long authorID, long epoch){
+        counters.merge(new ActivityKey(channelID, truncateToHour(epoch), authorID), 1, Integer::sum);
+    }
+
+    private void flush(){
+        synchronized (rollupLock){
+            writeCounters();
+        }
+    }
+
+    private void writeCounters(){
+        List<ActivityKey> keys = new ArrayList<>(counters.keySet());
+        if (keys.isEmpty()) return;
+        try (Connection connection = source.getConnection();
+             PreparedStatement statement = connection.prepareStatement(upsertActivity)){
+            List<ActivityKey> written = new ArrayList<>();
+            List<Integer> counts = new ArrayList<>();
+            for (ActivityKey key : keys){
+                //anything counted after this removal starts a fresh entry for the next flush
+                Integer count = counters.remove(key);
+                if (count == null) continue;
+                statement.setLong(1, key.channelID);
+                statement.setLong(2, key.hour);
+                statement.setLong(3, key.authorID);
+                statement.setInt(4, count);
+                statement.addBatch();
+                written.add(key);
+                counts.add(count);
+            }
+            try {
+                statement.executeBatch();
+            } catch (SQLException ex){
+                //put the counts back so they're retried on the next flush
+                for (int i = 0; i < written.size(); i++){
+                    counters.merge(written.get(i), counts.get(i), Integer::sum);
+                }
+                throw ex;
+            }
+        } catch (SQLException ex){
+            logger.warn("Failed to flush activity counters", ex);
+        } catch (Exception ex){
+            logger.error("Unexpected error flushing activity counters", ex);
+        }
+    }
+
+    /**
+     * Fetches the channels with the most messages in a time range.
+     *
+     * @param channelIDs the channels to consider, usually every channel in a guild
+     * @param fromEpoch  the start of the range, inclusive, in epoch milliseconds
+     * @param toEpoch    the end of the range, exclusive, in epoch milliseconds
+     * @param limit      the maximum number of channels to return
+     * @return the channels, busiest first, or null on failure.
+     */
+    public List<ChannelActivity> getBusiestChannels(long[] channelIDs, long fromEpoch, long toEpoch, int limit){
+        try (Connection connection = source.getConnection();
+             PreparedStatement statement = connection.prepareStatement(fetchBusiestChannels)){
+            statement.setArray(1, connection.createArrayOf("bigint", Arrays.stream(channelIDs).boxed().toArray()));
+            statement.setLong(2, truncateToHour(fromEpoch));
+            statement.setLong(3, toEpoch);
+            statement.setInt(4, limit);
+            List<ChannelActivity> activity = new ArrayList<>();
+            try (ResultSet set = statement.executeQuery()){
+                while (set.next()){
+                    activity.add(new ChannelActivity(
+                            set.getLong("channel_id"),
+                            set.getLong("messages"),
+                            set.getInt("authors")
+                    ));
+                }
+            }
+            return activity;
+        } catch (SQLException ex){
+            logger.warn("Failed to fetch busiest channels", ex);
+        }
+        return null;
+    }
+
+    /**
+     * Fetches the total number of messages per hour across a set of channels.
+     *
+     * @param channelIDs the channels to total
+     * @param fromEpoch  the start of the range, inclusive, in epoch milliseconds
+     * @param toEpoch    the end of the range, exclusive, in epoch milliseconds
+     * @return the hours with any activity, oldest first, or null on failure.
+     */
+    public List<HourlyActivity> getHourlyActivity(long[] channelIDs, long fromEpoch, long toEpoch){
+        try (Connection connection = source.getConnection();
+             PreparedStatement statement = connection.prepareStatement(fetchHourlyActivity)){
+            statement.setArray(1, connection.createArrayOf("bigint", Arrays.stream(channelIDs).boxed().toArray()));
+            statement.setLong(2, truncateToHour(fromEpoch));
+            statement.setLong(3, toEpoch);
+            List<HourlyActivity> activity = new ArrayList<>();
+            try (ResultSet set = statement.executeQuery()){
+                while (set.next()){
+                    activity.add(new HourlyActivity(set.getLong("hour"), set.getLong("messages")));
+                }
+            }
+            return activity;
+        } catch (SQLException ex){
+            logger.warn("Failed to fetch hourly activity", ex);
+        }
+        return null;
+    }
+
+    /**
+     * Recomputes the rollups from the raw message archive, for every hour that ended before the message queue's flush
+     * horizon.  Later hours are left to the live counters, as their messages may not all be in the archive yet.
+     * <p>
+     * The message queue is written out first, so every message counted for a rebuilt hour is in the archive, and
+     * the counters are not flushed while the rebuild runs.
+     *
+     * @return the number of rollup rows written, or -1 on failure.
+     */
+    public int rebuildFromArchive(){
+        long cutoff = truncateToHour(System.currentTimeMillis() - MessageStorage.FLUSH_HORIZON_MS);
+        if (!messageStorage.drain(DRAIN_TIMEOUT_MS)){
+            logger.error("Not rebuilding activity rollups, as the message queue could not be written out");
+            return -1;
+        }
+        synchronized (rollupLock){
+            return rebuildBefore(cutoff);
+        }
+    }
+
+    private int rebuildBefore(long cutoff){
+        try (Connection connection = source.getConnection()){
+            connection.setAutoCommit(false);
+            try (PreparedStatement delete = connection.prepareStatement(deleteRollupsBefore);
+                 PreparedStatement rebuild = connection.prepareStatement(rebuildRollupsBefore)){
+                delete.setLong(1, cutoff);
+                delete.executeUpdate();
+                rebuild.setLong(1, cutoff);
+                int rows = rebuild.executeUpdate();
+                connection.commit();
+                //the drain put every message counted for these hours into the archive, so the rebuild has covered them
+                counters.keySet().removeIf(key -> key.hour < cutoff);
+                return rows;
+            } catch (SQLException ex){
+                connection.rollback();
+                throw ex;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException ex){
+            logger.error("Failed to rebuild activity rollups", ex);
+        }
+        return -1;
+    }
+
+    public static long truncateToHour(long epoch){
+        return epoch - Math.floorMod(epoch, HOUR_MS);
+    }
+
+    private static class ActivityKey {
+        final long channelID;
+        final long hour;
+        final long authorID;
+
+        ActivityKey(long channelID, long hour, long authorID){
+            this.channelID = channelID;
+            this.hour = hour;
+            this.authorID = authorID;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            ActivityKey that = (ActivityKey) o;
+
+            return channelID == that.channelID && hour == that.hour && authorID == that.authorID;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = (int) (channelID ^ (channelID >>> 32));
+            result = 31 * result + (int) (hour ^ (hour >>> 32));
+            result = 31 * result + (int) (authorID ^ (authorID >>> 32));
+            return result;
+        }
+    }
+}
@@ -10,6 +10,7 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
@@ -19,7 +20,24 @@ public class AuthTokenStorage {
 
     private static final Logger logger = LogManager.getLogger(AuthTokenStorage.class);
     private static final String ADD_AUTH_TOKEN = "insert into api_tokens(token_string, token_expiry, token_comment, token_invalided) values (?, ?, ?, ?);";
-    private static final String FETCH_AUTH_TOKENS = "select token_id, token_string, token_expiry, token_comment from api_tokens where not token_invalided and token_expiry > ?;";
+    private static final String FETCH_AUTH_TOKENS = "select token_id, token_string, token_expiry, token_comment, token_invalided, token_modified from api_tokens where not token_invalided and token_expiry > ?;";
+    private static final String FETCH_MODIFIED_AUTH_TOKENS = "select token_id, token_string, token_expiry, token_comment, token_invalided, token_modified from api_tokens where token_modified > ?;";
+
+    /**
+     * Brings an existing database up to date with tables.sql; every statement is safe to run again.
+     */
+    private static final String[] MIGRATION = {
+            "alter table api_tokens add column if not exists token_modified bigint not null default 0;",
+            "create or replace function api_tokens_touch() returns trigger as " +
+                    "$$ begin " +
+                    "  new.token_modified = (extract(epoch from clock_timestamp()) * 1000)::bigint; " +
+                    "  return new; " +
+                    "end; $$ language plpgsql;",
+            "drop trigger if exists api_tokens_touch_trigger on api_tokens;",
+            "create trigger api_tokens_touch_trigger before insert or update on api_tokens " +
+                    " for each row execute procedure api_tokens_touch();",
+            "create index if not exists api_tokens_modified_index on api_tokens (token_modified);"
+    };
     private final HikariDataSource source;
 
     SecureRandom sr = new SecureRandom();
@@ -31,6 +49,22 @@ public class AuthTokenStorage {
         this.source = source;
     }
 
+    /**
+     * Adds the modification tracking that incremental token refreshes rely on, if it is missing.
+     */
+    public void migrate() {
+        try (Connection connection = source.getConnection();
+             Statement statement = connection.createStatement()) {
+
+            for (String sql : MIGRATION) {
+                statement.execute(sql);
+            }
+
+        } catch (SQLException ex) {
+            logger.error("Failed to migrate the api_tokens table", ex);
+        }
+    }
+
 
     /**
      * Adds a new auth token to the database.
@@ -54,6 +88,51 @@ public class AuthTokenStorage {
         fetchAuthTokens(Database.dbPool, success, failure);
     }
 
+    /**
+     * Fetches every token whose row has changed since the given time, including ones that have been invalidated or
+     * have expired, so that they can be dropped.
+     *
+     * @param since     the time to fetch changes after, in epoch milliseconds
+     * @param success   the callback for a successful transaction.
+     * @param failure   the callback for an unsuccessful transaction.
+     */
+    public void fetchAuthTokensModifiedSince(long since, Consumer<List<Token>> success, Consumer<SQLException> failure) {
+        Database.dbPool.submit(
+                () -> {
+                    try (Connection connection = source.getConnection();
+                         PreparedStatement fetchAuthTokens = connection.prepareStatement(FETCH_MODIFIED_AUTH_TOKENS)
+                    ) {
+
+                        fetchAuthTokens.setLong(1, since);
+
+                        List<Token> tokens = new ArrayList<>();
+                        try (ResultSet set = fetchAuthTokens.executeQuery()) {
+                            while (set.next()) {
+                                tokens.add(readToken(set));
+                            }
+                        }
+
+                        if (success != null) success.accept(tokens);
+
+                    } catch (SQLException ex) {
+                        logger.warn("Fetching changed auth tokens from the database failed - ", ex);
+                        if (failure != null) failure.accept(ex);
+                    }
+                }
+        );
+    }
+
+    private static Token readToken(ResultSet set) throws SQLException {
+        return new Token(
+                set.getInt("token_id"),
+                set.getBytes("token_string"),
+                set.getLong("token_expiry"),
+                set.getString("token_comment"),
+                set.getBoolean("token_invalided"),
+                set.getLong("token_modified")
+        );
+    }
+
     private void addAuthToken(ExecutorService exec, byte[] tokenString, long tokenExpiry, String tokenComment, boolean tokenInvalided, Consumer<byte[]> success, Consumer<SQLException> failure) {
         exec.submit(
                 () -> {
@@ -94,13 +173,7 @@ public class AuthTokenStorage {
 
                         List<Token> tokens = new ArrayList<>();
                         while (set.next()){
-                            tokens.add(
-                                    new Token(
-                                            set.getBytes("token_string"),
-                                            set.getLong("token_expiry"),
-                                            set.getString("token_comment")
-                                    )
-                            );
+                            tokens.add(readToken(set));
                         }
 
                         if (success != null) success.accept(tokens);
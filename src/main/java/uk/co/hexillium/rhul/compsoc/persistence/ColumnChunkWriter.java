@@ -0,0 +1,198 @@
+package uk.co.hexillium.rhul.compsoc.persistence;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Buffers a bounded chunk of archived messages and writes it out column by column.
+ * <p>
+ * File layout (all integers big-endian):
+ * <pre>
+ *   int    magic ("CSMA")
+ *   int    format version
+ *   int    row count
+ *   int    column count
+ *   per column:
+ *     UTF  column name
+ *     byte encoding
+ *     int  compressed length
+ *     byte[compressed length] zlib deflated column block
+ * </pre>
+ * Column blocks use zig-zag varints throughout.  Sequence numbers, message IDs and timestamps are delta encoded
+ * against the previous row; channel and author IDs are dictionary encoded per chunk (dictionary size, dictionary
+ * entries, then one index per row); the deleted flags are a bitset; content is a varint of (UTF-8 length + 1),
+ * with 0 marking a null, followed by the bytes.
+ * <p>
+ * Buffers are allocated once and reused between chunks, so memory use is fixed by the row and content limits.
+ */
+class ColumnChunkWriter {
+
+    static final int MAGIC = 0x43534D41;
+    static final int VERSION = 1;
+
+    static final byte ENCODING_DELTA = 1;
+    static final byte ENCODING_DICTIONARY = 2;
+    static final byte ENCODING_BITSET = 3;
+    static final byte ENCODING_LENGTH_PREFIXED = 4;
+
+    private final int maxRows;
+    private final int maxContentBytes;
+
+    private final long[] sequences;
+    private final long[] messageIDs;
+    private final long[] timestamps;
+    private final long[] channelIDs;
+    private final long[] authorIDs;
+    private final boolean[] deleted;
+    private final ByteArrayOutputStream content;
+    private final ByteArrayOutputStream block;
+    private int rows = 0;
+
+    ColumnChunkWriter(int maxRows, int maxContentBytes) {
+        this.maxRows = maxRows;
+        this.maxContentBytes = maxContentBytes;
+        sequences = new long[maxRows];
+        messageIDs = new long[maxRows];
+        timestamps = new long[maxRows];
+        channelIDs = new long[maxRows];
+        authorIDs = new long[maxRows];
+        deleted = new boolean[maxRows];
+        content = new ByteArrayOutputStream(maxContentBytes);
+        block = new ByteArrayOutputStream(maxRows * 10);
+    }
+
+    void add(long sequence, long messageID, long timestamp, long channelID, long authorID, boolean isDeleted, String text) {
+        sequences[rows] = sequence;
+        messageIDs[rows] = messageID;
+        timestamps[rows] = timestamp;
+        channelIDs[rows] = channelID;
+        authorIDs[rows] = authorID;
+        deleted[rows] = isDeleted;
+        if (text == null) {
+            writeVarLong(content, 0);
+        } else {
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(content, bytes.length + 1);
+            content.write(bytes, 0, bytes.length);
+        }
+        rows++;
+    }
+
+    boolean isFull() {
+        return rows >= maxRows || content.size() >= maxContentBytes;
+    }
+
+    boolean isEmpty() {
+        return rows == 0;
+    }
+
+    int getRows() {
+        return rows;
+    }
+
+    long getFirstSequence() {
+        return sequences[0];
+    }
+
+    long getLastSequence() {
+        return sequences[rows - 1];
+    }
+
+    void writeTo(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(rows);
+        out.writeInt(7);
+
+        writeColumn(out, "message_seq", ENCODING_DELTA, encodeDelta(sequences));
+        writeColumn(out, "message_id", ENCODING_DELTA, encodeDelta(messageIDs));
+        writeColumn(out, "modified_timestamp", ENCODING_DELTA, encodeDelta(timestamps));
+        writeColumn(out, "channel_id", ENCODING_DICTIONARY, encodeDictionary(channelIDs));
+        writeColumn(out, "author_id", ENCODING_DICTIONARY, encodeDictionary(authorIDs));
+        writeColumn(out, "deleted", ENCODING_BITSET, encodeBitset(deleted));
+        writeColumn(out, "message_content", ENCODING_LENGTH_PREFIXED, content);
+        out.flush();
+    }
+
+    void reset() {
+        rows = 0;
+        content.reset();
+    }
+
+    private void writeColumn(DataOutputStream out, String name, byte encoding, ByteArrayOutputStream raw) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, raw.size() / 2));
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try (DeflaterOutputStream deflate = new DeflaterOutputStream(compressed, deflater)) {
+            raw.writeTo(deflate);
+        } finally {
+            deflater.end();
+        }
+        out.writeUTF(name);
+        out.writeByte(encoding);
+        out.writeInt(compressed.size());
+        compressed.writeTo(out);
+    }
+
+    private ByteArrayOutputStream encodeDelta(long[] values) {
+        block.reset();
+        long previous = 0;
+        for (int i = 0; i < rows; i++) {
+            writeVarLong(block, values[i] - previous);
+            previous = values[i];
+        }
+        return block;
+    }
+
+    private ByteArrayOutputStream encodeDictionary(long[] values) {
+        Map<Long, Integer> dictionary = new HashMap<>();
+        long[] entries = new long[rows];
+        int[] indices = new int[rows];
+        for (int i = 0; i < rows; i++) {
+            Integer index = dictionary.get(values[i]);
+            if (index == null) {
+                index = dictionary.size();
+                dictionary.put(values[i], index);
+                entries[index] = values[i];
+            }
+            indices[i] = index;
+        }
+        block.reset();
+        writeVarLong(block, dictionary.size());
+        for (int i = 0; i < dictionary.size(); i++) {
+            writeVarLong(block, entries[i]);
+        }
+        for (int i = 0; i < rows; i++) {
+            writeVarLong(block, indices[i]);
+        }
+        return block;
+    }
+
+    private ByteArrayOutputStream encodeBitset(boolean[] values) {
+        block.reset();
+        for (int i = 0; i < rows; i += 8) {
+            int b = 0;
+            for (int bit = 0; bit < 8 && i + bit < rows; bit++) {
+                if (values[i + bit]) b |= 1 << bit;
+            }
+            block.write(b);
+        }
+        return block;
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            out.write((int) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        out.write((int) zigzag);
+    }
+}
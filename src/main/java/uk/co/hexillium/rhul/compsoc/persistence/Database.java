@@ -11,12 +11,17 @@ import java.io.IOException;
 import java.util.HashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
 
 public class Database {
 
     private static final Logger logger = LogManager.getLogger(Database.class); //make sure the logger is declared first
     private static Database instance = new Database(); //if the logger isn't declared first we get an NPE
     private static final int SQL_ATTEMPTS = 3;
+    /**
+     * How long the shutdown hook waits for queued archive writes to go out
+     */
+    private static final long SHUTDOWN_FLUSH_MS = 10 * 1000;
     static ExecutorService dbPool = Executors.newFixedThreadPool(8);
 
     private HikariDataSource source;
@@ -31,6 +36,8 @@ public class Database {
     public static GameBindingStorage GAME_BINDING_STORAGE;
     public static PollStorage POLL_STORAGE;
     public static RoleMenuStorage ROLE_MENU_STORAGE;
+    public static ActivityStorage ACTIVITY_STORAGE;
+    public static MessageExporter MESSAGE_EXPORTER;
 
     public static Database getInstance(){
         return instance;
@@ -71,14 +78,30 @@ public class Database {
 
         GUILD_DATA = new GuildData(source);
         JOB_STORAGE = new JobStorage(source);
+        JOB_STORAGE.migrate();
         STUDENT_VERIFICATION = new StudentVerification(source);
         AUTH_TOKEN_STORAGE = new AuthTokenStorage(source);
+        AUTH_TOKEN_STORAGE.migrate();
         EXPERIENCE_STORAGE = new ExperienceStorage(source);
+        EXPERIENCE_STORAGE.migrate();
         TRIVIA_STORAGE = new TriviaStorage(source);
-        MESSAGE_STORAGE = new MessageStorage(source);
+        MESSAGE_STORAGE = new MessageStorage(source, Boolean.TRUE.equals(configData.get("compress_messages")));
+        MESSAGE_STORAGE.migrate();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> MESSAGE_STORAGE.close(SHUTDOWN_FLUSH_MS), "message-storage-shutdown"));
         GAME_BINDING_STORAGE = new GameBindingStorage(source);
         ROLE_MENU_STORAGE = new RoleMenuStorage(source);
         POLL_STORAGE = new PollStorage(source);
+        ACTIVITY_STORAGE = new ActivityStorage(source, MESSAGE_STORAGE);
+        ACTIVITY_STORAGE.migrate();
+        MESSAGE_EXPORTER = new MessageExporter(source, MESSAGE_STORAGE);
+        MESSAGE_EXPORTER.migrate();
+    }
+
+    /**
+     * @return the pool behind {@link #runLater(Runnable)}, for monitoring.
+     */
+    public static ThreadPoolExecutor getRunLaterPool(){
+        return (ThreadPoolExecutor) dbPool;
     }
 
     public HikariDataSource getSource(){
@@ -11,21 +11,56 @@ import uk.co.hexillium.rhul.compsoc.persistence.entities.MemberXPData;
 
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.LongConsumer;
 
 public class ExperienceStorage {
 
     private HikariDataSource source;
     private static final Logger logger = LogManager.getLogger(ExperienceStorage.class);
 
+    /**
+     * Passed in place of a guild ID when a change may affect every guild
+     */
+    public static final long ALL_GUILDS = -1;
+
+    private volatile LongConsumer onGuildChanged = guildID -> {};
+
     private static final String FETCH_ALL_MEMBERS = "select mi.nickname, mi.username, mi.discrim, mi.avatar_url, ml.member_id, ml.guild_id, xp_total, num_messages, recent_xp_gain, score  " +
             "from member_levels ml " +
             "left join member_information mi on ml.member_id = mi.member_id and ml.guild_id = mi.guild_id " +
             "left join numvember nu on ml.member_id = nu.member_snowflake " +
             "where ml.guild_id = ? and hidden = false;";
 
+    /*
+     * One page of the leaderboard, after the (xp_total, member_id) of the last row of the page before.  The row
+     * comparison and ordering match member_levels_guild_xp_index, so each page is a range scan of the index, however
+     * deep it is.
+     */
+    private static final String FETCH_MEMBER_PAGE_DESC = "select mi.nickname, mi.username, mi.discrim, mi.avatar_url, ml.member_id, ml.guild_id, xp_total, num_messages, recent_xp_gain, score  " +
+            "from member_levels ml " +
+            "left join member_information mi on ml.member_id = mi.member_id and ml.guild_id = mi.guild_id " +
+            "left join numvember nu on ml.member_id = nu.member_snowflake " +
+            "where ml.guild_id = ? and hidden = false and (ml.xp_total, ml.member_id) < (?, ?) " +
+            "order by ml.xp_total desc, ml.member_id desc limit ?;";
+    private static final String FETCH_MEMBER_PAGE_ASC = "select mi.nickname, mi.username, mi.discrim, mi.avatar_url, ml.member_id, ml.guild_id, xp_total, num_messages, recent_xp_gain, score  " +
+            "from member_levels ml " +
+            "left join member_information mi on ml.member_id = mi.member_id and ml.guild_id = mi.guild_id " +
+            "left join numvember nu on ml.member_id = nu.member_snowflake " +
+            "where ml.guild_id = ? and hidden = false and (ml.xp_total, ml.member_id) > (?, ?) " +
+            "order by ml.xp_total, ml.member_id limit ?;";
+
+    private final static String[] MIGRATION = {
+            "create index if not exists member_levels_guild_xp_index " +
+                    " on member_levels (guild_id, xp_total, member_id) " +
+                    " where hidden = false;"
+    };
+
    /*
 
    select xp_total, num_messages, recent_xp_gain from member_levels where member_id = ? and guild_id = ?;
@@ -86,11 +121,35 @@ update member_levels set xp_total = xp_total + ?, num_messages = num_messages +
         "         left outer join member_levels ml on mi.member_id = ml.member_id and mi.guild_id = ml.guild_id\n" +
         "         left outer join (select student_verified, intern.student_discord_snowflake from student_verification intern where student_discord_snowflake = ? order by student_details_submitted desc limit 1) as sv on sv.student_discord_snowflake = ml.member_id  \n" +
         "where ml.member_id = ? and ml.guild_id = ?;";
+    private static final String getMembersInfo = "select mi.member_id as \"memberId\", mi.guild_id as \"guildId\", mi.avatar_url as \"avatarUrl\", mi.nickname as \"nickname\", mi.username as \"username\", mi.discrim as \"discrim\",\n" +
+        "       ml.xp_total as \"xpTotal\", ml.recent_xp_gain as \"recentXpGain\", coalesce(sv.student_verified, FALSE) as \"studentVerified\"\n" +
+        "from member_information as mi\n" +
+        "         left outer join member_levels ml on mi.member_id = ml.member_id and mi.guild_id = ml.guild_id\n" +
+        "         left outer join (select distinct on (student_discord_snowflake) student_verified, student_discord_snowflake from student_verification " +
+        "where student_discord_snowflake = any(?) order by student_discord_snowflake, student_details_submitted desc) as sv on sv.student_discord_snowflake = ml.member_id\n" +
+        "where ml.member_id = any(?) and ml.guild_id = ?;";
 
     ExperienceStorage(HikariDataSource source){
         this.source = source;
     }
 
+    /**
+     * Brings the member tables' indexes up to date.  Every statement is idempotent, so this is safe to run on every
+     * startup.
+     */
+    public void migrate(){
+        try (Connection connection = source.getConnection();
+             Statement statement = connection.createStatement()){
+
+            for (String sql : MIGRATION){
+                statement.execute(sql);
+            }
+
+        } catch (SQLException ex){
+            logger.error("Failed to migrate the member tables", ex);
+        }
+    }
+
     /*
     public List<MemberXPData> getMemberXPData(long guildID){
         try (Connection connection = source.getConnection();
@@ -139,13 +198,7 @@ update member_levels set xp_total = xp_total + ?, num_messages = num_messages +
 
             try (ResultSet set = statement.executeQuery()){
                 if (set.next()){
-                    ResultSetMetaData meta = set.getMetaData();
-                    for (int i = 1; i <= meta.getColumnCount(); i++){
-                        data.put(meta.getColumnLabel(i), set.getObject(i));
-                        if (set.getObject(i) instanceof Long){
-                            data.put(meta.getColumnLabel(i) + "_str", set.getObject(i).toString());
-                        }
-                    }
+                    readMemberInfo(set, data);
                     return data;
                 }
             }
@@ -157,6 +210,56 @@ update member_levels set xp_total = xp_total + ?, num_messages = num_messages +
         return null;
     }
 
+    /**
+     * Fetches the info of many members of a guild in one query, as {@link #getMemberInfo(long, long)} does for one.
+     *
+     * @param guildID   the guild
+     * @param memberIDs the members to look up
+     * @return each member's info by ID, leaving out members that weren't found, or null if the fetch failed.
+     */
+    public Map<Long, Map<String, Object>> getMembersInfo(long guildID, long[] memberIDs){
+        try (Connection connection = source.getConnection();
+             PreparedStatement statement = connection.prepareStatement(getMembersInfo) ) {
+
+            Map<Long, Map<String, Object>> members = new HashMap<>();
+            Array ids = connection.createArrayOf("bigint", Arrays.stream(memberIDs).boxed().toArray());
+            statement.setArray(1, ids);
+            statement.setArray(2, ids);
+            statement.setLong(3, guildID);
+
+            try (ResultSet set = statement.executeQuery()){
+                while (set.next()){
+                    Map<String, Object> data = new HashMap<>();
+                    readMemberInfo(set, data);
+                    members.put(set.getLong("memberId"), data);
+                }
+            }
+            return members;
+
+        } catch (SQLException ex){
+            logger.error("Failed to fetch info for members", ex);
+        }
+        return null;
+    }
+
+    private void readMemberInfo(ResultSet set, Map<String, Object> data) throws SQLException {
+        ResultSetMetaData meta = set.getMetaData();
+        for (int i = 1; i <= meta.getColumnCount(); i++){
+            data.put(meta.getColumnLabel(i), set.getObject(i));
+            if (set.getObject(i) instanceof Long){
+                data.put(meta.getColumnLabel(i) + "_str", set.getObject(i).toString());
+            }
+        }
+    }
+
+    /**
+     * @param onGuildChanged called with a guild's ID after every write that changes what {@link #getGuildData} returns
+     *                       for it, or with {@link #ALL_GUILDS} if the write could affect any guild
+     */
+    public void setOnGuildChanged(LongConsumer onGuildChanged){
+        this.onGuildChanged = onGuildChanged;
+    }
+
     public GuildXPData getGuildData(long guildID, Guild guild){
         try (Connection connection = source.getConnection();
              PreparedStatement statement = connection.prepareStatement(FETCH_ALL_MEMBERS) ){
@@ -188,6 +291,50 @@ update member_levels set xp_total = xp_total + ?, num_messages = num_messages +
         }
     }
 
+    /**
+     * Fetches one page of a guild's leaderboard, ordered by XP and then member ID.
+     *
+     * @param guildID     the guild
+     * @param afterXP     the XP of the last member on the previous page
+     * @param afterMember the ID of the last member on the previous page
+     * @param limit       how many members to fetch at most
+     * @param descending  true for the most XP first
+     * @return the page, or null if the fetch failed.
+     */
+    public List<MemberXPData> getMemberPage(long guildID, long afterXP, long afterMember, int limit, boolean descending){
+        try (Connection connection = source.getConnection();
+             PreparedStatement statement = connection.prepareStatement(descending ? FETCH_MEMBER_PAGE_DESC : FETCH_MEMBER_PAGE_ASC) ){
+
+            List<MemberXPData> data = new ArrayList<>(limit);
+
+            statement.setLong(1, guildID);
+            statement.setLong(2, afterXP);
+            statement.setLong(3, afterMember);
+            statement.setInt(4, limit);
+            try (ResultSet set = statement.executeQuery()) {
+
+                while (set.next()) {
+                    data.add(new MemberXPData(
+                            set.getString("nickname"),
+                            set.getString("username"),
+                            set.getString("discrim"),
+                            set.getString("avatar_url"),
+                            set.getLong("member_id"),
+                            set.getLong("xp_total"),
+                            set.getLong("num_messages"),
+                            set.getLong("guild_id"),
+                            set.getLong("recent_xp_gain"),
+                            set.getInt("score")
+                    ));
+                }
+            }
+            return data;
+        } catch (SQLException ex){
+            logger.error("Failed to fetch a page of user data", ex);
+            return null;
+        }
+    }
+
     public void newMemberXP(long memberID, long guildID, int xp, long recentGain){
         try (Connection connection = source.getConnection();
              PreparedStatement statement = connection.prepareStatement(newMemberXP) ){
@@ -196,6 +343,7 @@ update member_levels set xp_total = xp_total + ?, num_messages = num_messages +
             statement.setInt(3, xp);
             statement.setLong(4, recentGain);
             statement.executeUpdate();
+            onGuildChanged.accept(guildID);
         } catch (SQLException ex){
             logger.error("Failed to insert XP", ex);
         }
@@ -209,6 +357,7 @@ update member_levels set xp_total = xp_total + ?, num_messages = num_messages +
             statement.setLong(3, memberID);
             statement.setLong(4, guildID);
             statement.executeUpdate();
+            onGuildChanged.accept(guildID);
         } catch (SQLException ex){
             logger.error("Failed to update XP", ex);
         }
@@ -220,6 +369,7 @@ update member_levels set xp_total = xp_total + ?, num_messages = num_messages +
             statement.setLong(1, memberID);
             statement.setLong(2, guildID);
             statement.executeUpdate();
+            onGuildChanged.accept(guildID);
         } catch (SQLException ex){
             logger.error("Failed to update messages", ex);
         }
@@ -247,9 +397,11 @@ update member_levels set xp_total = xp_total + ?, num_messages = num_messages +
     }
 
     public void importMembers(Iterable<Member> members){
+        Set<Long> guilds = new HashSet<>();
         try (Connection connection = source.getConnection();
              PreparedStatement statement = connection.prepareStatement(insertMembers) ){
             for (Member member : members) {
+                guilds.add(member.getGuild().getIdLong());
                 //member_id, guild_id, nickname, username, discrim
                 statement.setLong(1, member.getIdLong());
                 statement.setLong(2, member.getGuild().getIdLong());
@@ -264,6 +416,7 @@ update member_levels set xp_total = xp_total + ?, num_messages = num_messages +
                 statement.addBatch();
             }
             statement.executeBatch();
+            guilds.forEach(onGuildChanged::accept);
         } catch (SQLException ex){
             logger.error("Failed to insert members", ex);
         }
@@ -284,6 +437,7 @@ update member_levels set xp_total = xp_total + ?, num_messages = num_messages +
             statement.setString(9, member.getUser().getDiscriminator());
             statement.setString(10, member.getUser().getAvatarUrl());
             statement.executeUpdate();
+            onGuildChanged.accept(member.getGuild().getIdLong());
         } catch (SQLException ex){
             logger.error("Failed to insert member", ex);
         }
@@ -302,6 +456,7 @@ update member_levels set xp_total = xp_total + ?, num_messages = num_messages +
             statement.setLong(6, member.getGuild().getIdLong());
 
             statement.executeUpdate();
+            onGuildChanged.accept(member.getGuild().getIdLong());
         } catch (SQLException ex){
             logger.error("Failed to update member", ex);
         }
@@ -317,6 +472,7 @@ update member_levels set xp_total = xp_total + ?, num_messages = num_messages +
             statement.setLong(4, user.getIdLong());
 
             statement.executeUpdate();
+            onGuildChanged.accept(ALL_GUILDS);
         } catch (SQLException ex){
             logger.error("Failed to update user", ex);
         }
@@ -0,0 +1,172 @@
+package uk.co.hexillium.rhul.compsoc.persistence;
+
+import uk.co.hexillium.rhul.compsoc.persistence.entities.GameAccountBinding;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Every game account binding of the guilds looked at so far, indexed every way {@link GameBindingStorage} looks them
+ * up.
+ * <p>
+ * Each guild's bindings are held in an immutable {@link GuildBindings}, which is rebuilt and swapped in whole on every
+ * change, so lookups never lock.  Bindings change rarely, and a guild has few enough that rebuilding is cheap.
+ * <p>
+ * Loads and reconciliations query the table without holding the lock.  A write landing part way through could make
+ * the query's result stale, so a count of writes is taken before each query, and the result is only kept if no write
+ * has happened since.
+ * <p>
+ * Any guild ID can be looked up, including ones the bot isn't in, so guilds not looked up between two sweeps are
+ * dropped rather than held and reconciled forever.
+ */
+class GameBindingCache {
+
+    private final Map<Long, GuildBindings> guilds = new ConcurrentHashMap<>();
+    /**
+     * How many writes have been applied.  Guarded by this.
+     */
+    private long writes = 0;
+
+    /**
+     * @return the guild's bindings, or null if they haven't been loaded.
+     */
+    GuildBindings get(long guildID){
+        GuildBindings bindings = guilds.get(guildID);
+        //only written when it changes, so busy guilds don't have every lookup write to memory
+        if (bindings != null && !bindings.used) bindings.used = true;
+        return bindings;
+    }
+
+    /**
+     * Drops every guild that hasn't been looked up since the last sweep, and starts the next period for the rest.
+     *
+     * @return the guilds still cached.
+     */
+    synchronized Set<Long> sweep(){
+        guilds.values().removeIf(bindings -> !bindings.used);
+        guilds.values().forEach(bindings -> bindings.used = false);
+        return new HashSet<>(guilds.keySet());
+    }
+
+    synchronized long getWriteCount(){
+        return writes;
+    }
+
+    /**
+     * Installs bindings fetched from the table.
+     *
+     * @param writeCount the write count from before the bindings were fetched
+     * @param bindings   the bindings of every guild fetched, by guild; guilds with none must still be present
+     * @return true if the bindings were installed, or false if a write since has made them stale.
+     */
+    synchronized boolean load(long writeCount, Map<Long, List<GameAccountBinding>> bindings){
+        if (writeCount != writes) return false;
+        bindings.forEach((guildID, list) -> replace(guildID, new GuildBindings(list)));
+        return true;
+    }
+
+    /**
+     * Records a binding that has been written to the table.
+     */
+    synchronized void add(GameAccountBinding binding){
+        writes++;
+        GuildBindings current = guilds.get(binding.getGuildId());
+        //a guild not yet loaded will pick the binding up when it is
+        if (current == null) return;
+        List<GameAccountBinding> next = new ArrayList<>(current.byId.values());
+        next.removeIf(held -> held.getBindingId() == binding.getBindingId());
+        next.add(binding);
+        replace(binding.getGuildId(), new GuildBindings(next));
+    }
+
+    /**
+     * Records that a binding has been deleted from the table.
+     */
+    synchronized void remove(long guildID, int bindingID){
+        writes++;
+        GuildBindings current = guilds.get(guildID);
+        if (current == null || !current.byId.containsKey(bindingID)) return;
+        List<GameAccountBinding> next = new ArrayList<>(current.byId.values());
+        next.removeIf(held -> held.getBindingId() == bindingID);
+        replace(guildID, new GuildBindings(next));
+    }
+
+    /**
+     * Swaps in a guild's new bindings, keeping whether the old ones had been looked up, so a reload doesn't count as use.
+     */
+    private void replace(long guildID, GuildBindings next){
+        GuildBindings previous = guilds.put(guildID, next);
+        if (previous != null) next.used = previous.used;
+    }
+
+    /**
+     * One guild's bindings.  The lists handed out are shared between lookups, so they can't be modified.
+     */
+    static class GuildBindings {
+        private final Map<Integer, GameAccountBinding> byId = new HashMap<>();
+        private final Map<Long, List<GameAccountBinding>> byMember;
+        private final Map<Long, Map<String, List<GameAccountBinding>>> byMemberGame = new HashMap<>();
+        private final Map<String, List<GameAccountBinding>> byGame;
+        private final Map<String, Map<String, List<GameAccountBinding>>> byGameUser = new HashMap<>();
+        /**
+         * Whether the guild has been looked up since the last sweep
+         */
+        private volatile boolean used = true;
+
+        GuildBindings(Collection<GameAccountBinding> bindings){
+            //kept in ID order, which is the order they were created in, like the table's own scan order
+            List<GameAccountBinding> sorted = new ArrayList<>(bindings);
+            sorted.sort((a, b) -> Integer.compare(a.getBindingId(), b.getBindingId()));
+            for (GameAccountBinding binding : sorted){
+                byId.put(binding.getBindingId(), binding);
+            }
+            byMember = index(sorted, GameAccountBinding::getMemberId);
+            byGame = index(sorted, GameAccountBinding::getGameId);
+            Map<Long, List<GameAccountBinding>> memberLists = new HashMap<>();
+            for (GameAccountBinding binding : sorted){
+                memberLists.computeIfAbsent(binding.getMemberId(), id -> new ArrayList<>()).add(binding);
+            }
+            memberLists.forEach((member, list) -> byMemberGame.put(member, index(list, GameAccountBinding::getGameId)));
+            byGame.forEach((game, list) -> {
+                List<GameAccountBinding> withUser = new ArrayList<>();
+                for (GameAccountBinding binding : list){
+                    if (binding.getGameUserId() != null) withUser.add(binding);
+                }
+                byGameUser.put(game, index(withUser, GameAccountBinding::getGameUserId));
+            });
+        }
+
+        List<GameAccountBinding> forMember(long memberID){
+            return byMember.getOrDefault(memberID, Collections.emptyList());
+        }
+
+        List<GameAccountBinding> forMemberGame(long memberID, String gameID){
+            return byMemberGame.getOrDefault(memberID, Collections.emptyMap()).getOrDefault(gameID, Collections.emptyList());
+        }
+
+        List<GameAccountBinding> forGame(String gameID){
+            return byGame.getOrDefault(gameID, Collections.emptyList());
+        }
+
+        List<GameAccountBinding> forGameUser(String gameID, String gameUserID){
+            return byGameUser.getOrDefault(gameID, Collections.emptyMap()).getOrDefault(gameUserID, Collections.emptyList());
+        }
+
+        private static <K> Map<K, List<GameAccountBinding>> index(List<GameAccountBinding> bindings, Function<GameAccountBinding, K> key){
+            Map<K, List<GameAccountBinding>> lists = new HashMap<>();
+            for (GameAccountBinding binding : bindings){
+                lists.computeIfAbsent(key.apply(binding), k -> new ArrayList<>()).add(binding);
+            }
+            lists.replaceAll((k, list) -> Collections.unmodifiableList(list));
+            return lists;
+        }
+    }
+}
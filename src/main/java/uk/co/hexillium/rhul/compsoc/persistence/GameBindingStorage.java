@@ -10,28 +10,22 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class GameBindingStorage {
 
     private HikariDataSource source;
     private static final Logger logger = LogManager.getLogger(GameBindingStorage.class);
 
-    private final static String getGameBindingsForMember = "" +
+    private final static String getGameBindingsForGuilds = "" +
             "select record_id, game_id, discord_member_snowflake, discord_guild_snowflake, game_username, game_user_id, user_banned\n" +
-            "from game_account_bindings where discord_member_snowflake = ? and discord_guild_snowflake = ?;";
-
-    private final static String getGameBindingsForGame = "" +
-            "select record_id, game_id, discord_member_snowflake, discord_guild_snowflake, game_username, game_user_id, user_banned\n" +
-            "from game_account_bindings where discord_guild_snowflake = ? and game_id = ?;";
-
-    private final static String getGameBindingsForGameUserID = "" +
-            "select record_id, game_id, discord_member_snowflake, discord_guild_snowflake, game_username, game_user_id, user_banned\n" +
-            "from game_account_bindings where discord_guild_snowflake = ? and game_id = ? and game_user_id = ?;";
-
-    private final static String getGameBindingsForMemberGame = "" +
-            "select record_id, game_id, discord_member_snowflake, discord_guild_snowflake, game_username, game_user_id, user_banned\n" +
-            "from game_account_bindings where discord_guild_snowflake = ? and discord_member_snowflake = ? and game_id = ?;";
+            "from game_account_bindings where discord_guild_snowflake = any(?);";
 
     private final static String insertGameBinding = "" +
             "\n" +
@@ -39,73 +33,114 @@ public class GameBindingStorage {
             "values (?, ?, ?, ?, ?, ?) returning *;";
 
     private final static String deleteGameBinding = "" +
-            "delete from game_account_bindings where discord_member_snowflake = ? and record_id = ?;";
+            "delete from game_account_bindings where discord_member_snowflake = ? and record_id = ? returning discord_guild_snowflake;";
 
+    /**
+     * How often the cached bindings are checked against the table, to pick up changes made other than through here
+     */
+    private static final long RECONCILE_INTERVAL_MS = 5 * 60 * 1000;
+
+    private final GameBindingCache cache = new GameBindingCache();
+    private final ScheduledExecutorService reconcileTimer;
 
     GameBindingStorage(HikariDataSource source){
         this.source = source;
+        reconcileTimer = Executors.newSingleThreadScheduledExecutor();
+        reconcileTimer.scheduleWithFixedDelay(this::reconcile, RECONCILE_INTERVAL_MS, RECONCILE_INTERVAL_MS, TimeUnit.MILLISECONDS);
     }
 
-    public List<GameAccountBinding> getGameBindingsForMember(long memberID, long guildID){
-        try (Connection connection = source.getConnection();
-             PreparedStatement statement = connection.prepareStatement(getGameBindingsForMember)){
-            statement.setLong(1, memberID);
-            statement.setLong(2, guildID);
-            try (ResultSet set = statement.executeQuery()){
-                return retrieveData(set);
-            }
+    /**
+     * @return the guild's bindings, loading them if this is the first time the guild has been looked at, or null if
+     * they could not be loaded.
+     */
+    private GameBindingCache.GuildBindings guild(long guildID){
+        GameBindingCache.GuildBindings bindings = cache.get(guildID);
+        if (bindings != null) return bindings;
+        long writeCount = cache.getWriteCount();
+        Map<Long, List<GameAccountBinding>> fetched = fetchGuilds(new long[]{guildID});
+        if (fetched == null) return null;
+        if (cache.load(writeCount, fetched)){
+            return cache.get(guildID);
+        }
+        //a write landed during the fetch, so don't keep what was fetched, but it is as fresh as a query would be
+        return new GameBindingCache.GuildBindings(fetched.get(guildID));
+    }
 
-        } catch (SQLException ex){
-            logger.warn("Failed to fetch game bindings for member", ex);
+    /**
+     * Drops the guilds not looked up since last time, then reloads every other cached guild from the table in one
+     * query, replacing whatever has drifted.
+     */
+    private void reconcile(){
+        long[] guildIDs = cache.sweep().stream().mapToLong(Long::longValue).toArray();
+        if (guildIDs.length == 0) return;
+        long writeCount = cache.getWriteCount();
+        Map<Long, List<GameAccountBinding>> fetched = fetchGuilds(guildIDs);
+        if (fetched == null) return;
+        if (!cache.load(writeCount, fetched)){
+            logger.debug("Bindings changed during reconciliation; trying again next time");
         }
-        return null;
     }
 
-    public List<GameAccountBinding> getGameBindingsForGame(long guildID, String gameID){
+    /**
+     * @return every binding in each of the guilds, with an empty list for guilds that have none, or null if the fetch
+     * failed.
+     */
+    private Map<Long, List<GameAccountBinding>> fetchGuilds(long[] guildIDs){
         try (Connection connection = source.getConnection();
-             PreparedStatement statement = connection.prepareStatement(getGameBindingsForGame)){
-            statement.setLong(1, guildID);
-            statement.setString(2, gameID);
+             PreparedStatement statement = connection.prepareStatement(getGameBindingsForGuilds)){
+            statement.setArray(1, connection.createArrayOf("bigint", Arrays.stream(guildIDs).boxed().toArray()));
+            Map<Long, List<GameAccountBinding>> bindings = new HashMap<>();
+            for (long guildID : guildIDs){
+                bindings.put(guildID, new ArrayList<>());
+            }
             try (ResultSet set = statement.executeQuery()){
-                return retrieveData(set);
+                for (GameAccountBinding binding : retrieveData(set)){
+                    bindings.get(binding.getGuildId()).add(binding);
+                }
             }
+            return bindings;
 
         } catch (SQLException ex){
-            logger.warn("Failed to fetch game bindings for game", ex);
+            logger.warn("Failed to fetch game bindings for guilds", ex);
         }
         return null;
     }
 
-    public List<GameAccountBinding> getGameBindingsForGameGameUserID(long guildID, String gameID, String gameUserID){
-        try (Connection connection = source.getConnection();
-             PreparedStatement statement = connection.prepareStatement(getGameBindingsForGameUserID)){
-            statement.setLong(1, guildID);
-            statement.setString(2, gameID);
-            statement.setString(3, gameUserID);
-            try (ResultSet set = statement.executeQuery()){
-                return retrieveData(set);
-            }
+    public List<GameAccountBinding> getGameBindingsForMember(long memberID, long guildID){
+        GameBindingCache.GuildBindings bindings = guild(guildID);
+        return bindings == null ? null : bindings.forMember(memberID);
+    }
 
-        } catch (SQLException ex){
-            logger.warn("Failed to fetch game bindings for game and userid", ex);
+    /**
+     * Fetches the bindings of many members of a guild at once.
+     *
+     * @param guildID   the guild
+     * @param memberIDs the members to look up
+     * @return each member's bindings by ID, with an empty list for members that have none, or null if the fetch failed.
+     */
+    public Map<Long, List<GameAccountBinding>> getGameBindingsForMembers(long guildID, long[] memberIDs){
+        GameBindingCache.GuildBindings bindings = guild(guildID);
+        if (bindings == null) return null;
+        Map<Long, List<GameAccountBinding>> members = new HashMap<>();
+        for (long memberID : memberIDs){
+            members.put(memberID, bindings.forMember(memberID));
         }
-        return null;
+        return members;
     }
 
-    public List<GameAccountBinding> getGameBindingsForMemberGame(long memberID, long guildID, String gameID){
-        try (Connection connection = source.getConnection();
-             PreparedStatement statement = connection.prepareStatement(getGameBindingsForMemberGame)){
-            statement.setLong(1, guildID);
-            statement.setLong(2, memberID);
-            statement.setString(3, gameID);
-            try (ResultSet set = statement.executeQuery()){
-                return retrieveData(set);
-            }
+    public List<GameAccountBinding> getGameBindingsForGame(long guildID, String gameID){
+        GameBindingCache.GuildBindings bindings = guild(guildID);
+        return bindings == null ? null : bindings.forGame(gameID);
+    }
 
-        } catch (SQLException ex){
-            logger.warn("Failed to fetch game bindings for member + game", ex);
-        }
-        return null;
+    public List<GameAccountBinding> getGameBindingsForGameGameUserID(long guildID, String gameID, String gameUserID){
+        GameBindingCache.GuildBindings bindings = guild(guildID);
+        return bindings == null ? null : bindings.forGameUser(gameID, gameUserID);
+    }
+
+    public List<GameAccountBinding> getGameBindingsForMemberGame(long memberID, long guildID, String gameID){
+        GameBindingCache.GuildBindings bindings = guild(guildID);
+        return bindings == null ? null : bindings.forMemberGame(memberID, gameID);
     }
 
     public GameAccountBinding addGameBinding(GameAccountBinding binding){
@@ -122,7 +157,7 @@ public class GameBindingStorage {
             ResultSet set = statement.getResultSet();
             if (!set.next())
                 return null;
-            return new GameAccountBinding(
+            GameAccountBinding added = new GameAccountBinding(
                     set.getInt(1),
                     set.getString(2),
                     set.getLong(3),
@@ -131,6 +166,8 @@ public class GameBindingStorage {
                     set.getString(6),
                     set.getBoolean(7)
             );
+            cache.add(added);
+            return added;
         } catch (SQLException ex){
             logger.warn("Failed to insert new binding", ex);
         }
@@ -143,7 +180,11 @@ public class GameBindingStorage {
             statement.setLong(1, userID);
             statement.setInt(2, bindingID);
 
-            statement.execute();
+            try (ResultSet set = statement.executeQuery()){
+                if (set.next()){
+                    cache.remove(set.getLong(1), bindingID);
+                }
+            }
 
         } catch (SQLException ex){
             logger.warn("Failed to delete binding", ex);
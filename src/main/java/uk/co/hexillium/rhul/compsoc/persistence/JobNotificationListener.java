@@ -0,0 +1,152 @@
+package uk.co.hexillium.rhul.compsoc.persistence;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Listens on a dedicated connection for the notifications sent by the {@code job_schedule} insert trigger.
+ * <p>
+ * The connection is opened outside of the pool, as it is held for as long as the bot runs.  If it drops, it is
+ * reopened with a backoff, and the reconnect callback is run so the caller can catch up on anything inserted
+ * while nobody was listening.
+ */
+public class JobNotificationListener {
+
+    private static final Logger logger = LogManager.getLogger(JobNotificationListener.class);
+
+    public static final String CHANNEL = "job_schedule";
+
+    private static final int POLL_TIMEOUT_MS = 10 * 1000;
+    private static final long HEALTH_CHECK_MS = 30 * 1000;
+    private static final long MIN_BACKOFF_MS = 1000;
+    private static final long MAX_BACKOFF_MS = 60 * 1000;
+
+    private final HikariDataSource source;
+    private final Consumer<Map<Long, Long>> onJobs;
+    private final Runnable onReconnect;
+    private final Thread thread;
+
+    private volatile boolean running = false;
+    private volatile boolean connected = false;
+    private volatile long received = 0;
+
+    /**
+     * @param source      the pool to take connection details from
+     * @param onJobs      called with the IDs and target epochs of newly inserted jobs
+     * @param onReconnect called each time the listener reconnects after losing its connection
+     */
+    public JobNotificationListener(HikariDataSource source, Consumer<Map<Long, Long>> onJobs, Runnable onReconnect) {
+        this.source = source;
+        this.onJobs = onJobs;
+        this.onReconnect = onReconnect;
+        this.thread = new Thread(this::run, "job-notification-listener");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        if (running) return;
+        running = true;
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        thread.interrupt();
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public long getReceived() {
+        return received;
+    }
+
+    private void run() {
+        long backoff = MIN_BACKOFF_MS;
+        boolean firstConnection = true;
+        while (running) {
+            try (Connection connection = DriverManager.getConnection(source.getJdbcUrl(), source.getUsername(), source.getPassword())) {
+                PGConnection pgConnection = connection.unwrap(PGConnection.class);
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("listen " + CHANNEL);
+                }
+                connected = true;
+                backoff = MIN_BACKOFF_MS;
+                logger.info("Listening for job notifications");
+                if (!firstConnection) {
+                    //anything inserted while we were disconnected was never announced
+                    onReconnect.run();
+                }
+                firstConnection = false;
+                listen(connection, pgConnection);
+            } catch (SQLException ex) {
+                if (running) {
+                    logger.warn("Job notification listener lost its connection, retrying in " + backoff + "ms", ex);
+                }
+            } finally {
+                connected = false;
+            }
+            if (!running) break;
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException ex) {
+                break;
+            }
+            backoff = Math.min(MAX_BACKOFF_MS, backoff * 2);
+        }
+    }
+
+    private void listen(Connection connection, PGConnection pgConnection) throws SQLException {
+        long lastCheck = System.currentTimeMillis();
+        while (running) {
+            PGNotification[] notifications = pgConnection.getNotifications(POLL_TIMEOUT_MS);
+            if (notifications != null && notifications.length > 0) {
+                Map<Long, Long> jobs = new HashMap<>();
+                for (PGNotification notification : notifications) {
+                    parse(notification.getParameter(), jobs);
+                }
+                received += notifications.length;
+                if (!jobs.isEmpty()) {
+                    try {
+                        onJobs.accept(jobs);
+                    } catch (Exception ex) {
+                        logger.error("Failed to handle job notifications " + jobs, ex);
+                    }
+                }
+                lastCheck = System.currentTimeMillis();
+            } else if (System.currentTimeMillis() - lastCheck > HEALTH_CHECK_MS) {
+                //a dead socket doesn't always surface while we're only waiting, so poke it now and then
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("select 1");
+                }
+                lastCheck = System.currentTimeMillis();
+            }
+        }
+    }
+
+    private static void parse(String payload, Map<Long, Long> jobs) {
+        //payload is "job_id:target_epoch"
+        int split = payload.indexOf(':');
+        try {
+            if (split < 0) {
+                jobs.put(Long.parseLong(payload), -1L);
+            } else {
+                jobs.put(Long.parseLong(payload.substring(0, split)), Long.parseLong(payload.substring(split + 1)));
+            }
+        } catch (NumberFormatException ex) {
+            logger.warn("Ignoring malformed job notification `" + payload + "`");
+        }
+    }
+}
@@ -5,26 +5,183 @@ import net.dv8tion.jda.api.utils.data.DataObject;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import uk.co.hexillium.rhul.compsoc.persistence.entities.Job;
+import uk.co.hexillium.rhul.compsoc.time.CronExpression;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.time.ZoneId;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class JobStorage {
 
     private final static Logger LOGGER = LogManager.getLogger(JobStorage.class);
 
     private final static String GET_JOBS_BEFORE_TIME =
-            "select job_id, initiated_epoch, target_epoch, job_type, triggered, job_data " +
+            "select job_id, initiated_epoch, target_epoch, job_type, triggered, job_data, recurring_id, attempts, last_error " +
                     " from job_schedule " +
                     " where triggered = false and target_epoch < ?;";
+    private final static String GET_JOBS_BEFORE_TIME_AFTER_ID =
+            "select job_id, initiated_epoch, target_epoch, job_type, triggered, job_data, recurring_id, attempts, last_error " +
+                    " from job_schedule " +
+                    " where triggered = false and target_epoch < ? and job_id > ? " +
+                    " and (lease_expiry is null or lease_expiry < ?) " +
+                    " order by job_id limit ?;";
+    private final static String GET_EXPIRED_LEASES =
+            "select job_id, initiated_epoch, target_epoch, job_type, triggered, job_data, recurring_id, attempts, last_error " +
+                    " from job_schedule " +
+                    " where triggered = false and lease_expiry < ? " +
+                    " order by job_id limit ?;";
+    private final static String CLAIM_JOBS =
+            "update job_schedule set lease_owner = ?, lease_expiry = ? " +
+                    " where job_id in (" +
+                    "   select job_id from job_schedule " +
+                    "   where job_id = any(?) and triggered = false " +
+                    "   and (lease_owner is null or lease_owner = ? or lease_expiry < ?) " +
+                    "   for update skip locked" +
+                    " ) returning job_id;";
+    private final static String RENEW_LEASES =
+            "update job_schedule set lease_expiry = ? " +
+                    " where job_id = any(?) and lease_owner = ? and triggered = false;";
+    private final static String GET_JOBS_BY_ID =
+            "select job_id, initiated_epoch, target_epoch, job_type, triggered, job_data, recurring_id, attempts, last_error " +
+                    " from job_schedule " +
+                    " where triggered = false and job_id = any(?);";
     private final static String ADD_JOB =
             "insert into job_schedule(initiated_epoch, target_epoch, job_type, job_data)  values (?, ?, ?, ?::jsonb) returning job_id; ";
+    private final static String ADD_DEAD_LETTER_JOB =
+            "insert into job_schedule(initiated_epoch, target_epoch, job_type, job_data, triggered, dead_letter, attempts, last_error) " +
+                    " values (?, ?, ?, ?::jsonb, TRUE, TRUE, ?, ?) returning job_id;";
+    private final static String NEXT_RECURRING_ID =
+            "select nextval(pg_get_serial_sequence('recurring_jobs', 'recurring_id')) as recurring_id;";
+    private final static String ADD_RECURRING_JOB =
+            "insert into recurring_jobs(recurring_id, cron, time_zone, job_type, job_data, created_epoch) values (?, ?, ?, ?, ?::jsonb, ?);";
+    private final static String ADD_RECURRING_OCCURRENCE =
+            "insert into job_schedule(initiated_epoch, target_epoch, job_type, job_data, recurring_id)  values (?, ?, ?, ?::jsonb, ?) returning job_id; ";
+    private final static String FINISH_OCCURRENCE =
+            "update job_schedule set triggered = TRUE, lease_owner = null, lease_expiry = null, " +
+                    " dead_letter = ?, skipped = ?, attempts = attempts + ?, last_error = coalesce(?, last_error) " +
+                    " where job_id = ? and triggered = false;";
+    private final static String RECORD_RECURRING_RUN =
+            "update recurring_jobs set last_fired_epoch = coalesce(?, last_fired_epoch), run_count = run_count + ? " +
+                    " where recurring_id = ? and enabled " +
+                    " returning cron, time_zone, job_type, job_data;";
+    private final static String DISABLE_RECURRING_JOB =
+            "update recurring_jobs set enabled = false where recurring_id = ? and enabled;";
+    private final static String CANCEL_RECURRING_OCCURRENCES =
+            "update job_schedule set triggered = TRUE, lease_owner = null, lease_expiry = null " +
+                    " where recurring_id = ? and triggered = false returning job_id;";
+    private final static String GET_RECURRING_JOB_DATA =
+            "select job_data from recurring_jobs where recurring_id = ? and enabled;";
+    private final static String RETRY_JOB =
+            "update job_schedule set attempts = attempts + 1, last_error = ?, target_epoch = ?, lease_owner = null, lease_expiry = null " +
+                    " where job_id = ? and triggered = false;";
+    private final static String DEAD_LETTER_JOB =
+            "update job_schedule set attempts = attempts + 1, last_error = ?, triggered = TRUE, dead_letter = TRUE, lease_owner = null, lease_expiry = null " +
+                    " where job_id = ? and triggered = false;";
+    private final static String GET_DEAD_LETTER_JOBS =
+            "select job_id, initiated_epoch, target_epoch, job_type, triggered, job_data, recurring_id, attempts, last_error " +
+                    " from job_schedule " +
+                    " where dead_letter " +
+                    " order by job_id desc limit ?;";
+    private final static String REQUEUE_DEAD_LETTER_JOB =
+            "update job_schedule set triggered = false, dead_letter = false, attempts = 0, last_error = null, target_epoch = ? " +
+                    " where job_id = ? and dead_letter " +
+                    " returning job_id, initiated_epoch, target_epoch, job_type, triggered, job_data, recurring_id, attempts, last_error;";
+    private final static String SKIP_JOBS =
+            "update job_schedule set triggered = TRUE, skipped = TRUE " +
+                    " where job_id = any(?) and triggered = false and (lease_expiry is null or lease_expiry < ?) " +
+                    " returning job_id;";
+    private final static String MOVE_JOBS =
+            "update job_schedule set target_epoch = moved.target_epoch " +
+                    " from unnest(?, ?) as moved(job_id, target_epoch) " +
+                    " where job_schedule.job_id = moved.job_id and triggered = false " +
+                    " and (lease_expiry is null or lease_expiry < ?);";
     private final static String FINISH_JOB =
-            "update job_schedule set triggered = TRUE where job_id = ?;";
+            "update job_schedule set triggered = TRUE, lease_owner = null, lease_expiry = null where job_id = ?;";
+    private final static String FINISH_JOBS =
+            "update job_schedule set triggered = TRUE, lease_owner = null, lease_expiry = null where job_id = any(?);";
+    private final static String ARCHIVE_JOBS =
+            "with archived as (" +
+                    "   delete from job_schedule where job_id in (" +
+                    "     select job_id from job_schedule " +
+                    "     where triggered and not dead_letter and target_epoch < ? " +
+                    "     order by job_id limit ?" +
+                    "   ) returning job_id, initiated_epoch, target_epoch, job_type, job_data, recurring_id, attempts, last_error, skipped" +
+                    " ) " +
+                    " insert into job_schedule_archive(job_id, initiated_epoch, target_epoch, job_type, job_data, recurring_id, attempts, last_error, skipped, archived_epoch) " +
+                    " select job_id, initiated_epoch, target_epoch, job_type, job_data, recurring_id, attempts, last_error, skipped, ? from archived;";
+
+    /**
+     * Brings an existing database up to date with the job tables in tables.sql.  Every statement is safe to
+     * run again.
+     */
+    private final static String[] MIGRATION = {
+            //leases, so several instances can share the table
+            "alter table job_schedule add column if not exists lease_owner text;",
+            "alter table job_schedule add column if not exists lease_expiry bigint;",
+            //recurring jobs
+            "create table if not exists recurring_jobs (" +
+                    " recurring_id serial constraint recurring_jobs_pk primary key, " +
+                    " cron text not null, " +
+                    " time_zone text not null, " +
+                    " job_type text not null, " +
+                    " job_data jsonb, " +
+                    " enabled boolean not null default true, " +
+                    " created_epoch bigint not null, " +
+                    " last_fired_epoch bigint, " +
+                    " run_count integer not null default 0" +
+                    ");",
+            "alter table job_schedule add column if not exists recurring_id integer;",
+            "do $$ begin " +
+                    "  if not exists (select 1 from pg_constraint where conname = 'job_schedule_recurring_jobs_recurring_id_fk') then " +
+                    "    alter table job_schedule add constraint job_schedule_recurring_jobs_recurring_id_fk " +
+                    "      foreign key (recurring_id) references recurring_jobs; " +
+                    "  end if; " +
+                    "end $$;",
+            "create index if not exists job_schedule_recurring_id_index " +
+                    " on job_schedule (recurring_id) " +
+                    " where triggered = false;",
+            //retries and the dead-letter state
+            "alter table job_schedule add column if not exists attempts integer not null default 0;",
+            "alter table job_schedule add column if not exists last_error text;",
+            "alter table job_schedule add column if not exists dead_letter boolean not null default false;",
+            "alter table job_schedule add column if not exists skipped boolean not null default false;",
+            "create index if not exists job_schedule_dead_letter_index " +
+                    " on job_schedule (job_id) " +
+                    " where dead_letter;",
+            //new jobs are announced over LISTEN/NOTIFY
+            "create or replace function job_schedule_notify() returns trigger as " +
+                    "$$ begin " +
+                    "  perform pg_notify('job_schedule', new.job_id || ':' || new.target_epoch); " +
+                    "  return new; " +
+                    "end; $$ language plpgsql;",
+            "drop trigger if exists job_schedule_notify_trigger on job_schedule;",
+            "create trigger job_schedule_notify_trigger after insert on job_schedule " +
+                    " for each row execute procedure job_schedule_notify();",
+            "create index if not exists job_schedule_pending_target_index " +
+                    " on job_schedule (target_epoch) " +
+                    " where not triggered;",
+            "create table if not exists job_schedule_archive (" +
+                    " job_id integer not null constraint job_schedule_archive_pk primary key, " +
+                    " initiated_epoch bigint, " +
+                    " target_epoch bigint not null, " +
+                    " job_type text not null, " +
+                    " job_data jsonb, " +
+                    " recurring_id integer, " +
+                    " attempts integer not null default 0, " +
+                    " last_error text, " +
+                    " skipped boolean not null default false, " +
+                    " archived_epoch bigint not null" +
+                    ");"
+    };
 
     private HikariDataSource source;
 
@@ -32,6 +189,22 @@ public class JobStorage {
         this.source = source;
     }
 
+    /**
+     * Adds any columns, indexes, tables and triggers the job scheduler relies on that are missing from the database.
+     */
+    public void migrate() {
+        try (Connection connection = source.getConnection();
+             Statement statement = connection.createStatement()) {
+
+            for (String sql : MIGRATION) {
+                statement.execute(sql);
+            }
+
+        } catch (SQLException ex) {
+            LOGGER.error("Failed to migrate the job tables", ex);
+        }
+    }
+
     public void finishJobById(long jobID) {
         try (Connection connection = source.getConnection();
              PreparedStatement statement = connection.prepareStatement(FINISH_JOB)) {
@@ -44,6 +217,129 @@ public class JobStorage {
         }
     }
 
+    /**
+     * Marks a batch of jobs as triggered in one statement.
+     *
+     * @param jobIDs the jobs that have finished
+     * @return true if the update succeeded.
+     */
+    public boolean finishJobsById(Collection<Long> jobIDs) {
+        try (Connection connection = source.getConnection();
+             PreparedStatement statement = connection.prepareStatement(FINISH_JOBS)) {
+
+            statement.setArray(1, connection.createArrayOf("bigint", jobIDs.toArray()));
+            statement.executeUpdate();
+            return true;
+
+        } catch (SQLException ex) {
+            LOGGER.error("Failed to finish " + jobIDs.size() + " jobs", ex);
+        }
+        return false;
+    }
+
+    /**
+     * Moves one batch of finished jobs due before the given time out of {@code job_schedule} and into
+     * {@code job_schedule_archive}.  Dead-lettered jobs are kept where they are.
+     *
+     * @param beforeEpoch only jobs due before this time are archived
+     * @param limit       the most jobs to move
+     * @return how many jobs were moved, or -1 if that failed.
+     */
+    public int archiveFinishedJobs(long beforeEpoch, int limit) {
+        try (Connection connection = source.getConnection();
+             PreparedStatement statement = connection.prepareStatement(ARCHIVE_JOBS)) {
+
+            statement.setLong(1, beforeEpoch);
+            statement.setInt(2, limit);
+            statement.setLong(3, System.currentTimeMillis());
+            return statement.executeUpdate();
+
+        } catch (SQLException ex) {
+            LOGGER.error("Failed to archive finished jobs", ex);
+        }
+        return -1;
+    }
+
+    /**
+     * Atomically claims a batch of due jobs for this instance.  Rows locked by a concurrent claim are skipped rather
+     * than waited on, and jobs leased to another instance are only taken once that lease has expired.
+     *
+     * @param jobIDs      the jobs to try to claim
+     * @param owner       the lease owner to record
+     * @param leaseExpiry when the lease should expire, in epoch milliseconds
+     * @param now         the current time, in epoch milliseconds
+     * @return the IDs of the jobs that were claimed, or null if the claim failed.
+     */
+    public Set<Long> claimJobs(Collection<Long> jobIDs, String owner, long leaseExpiry, long now) {
+        Set<Long> claimed = new HashSet<>();
+        try (Connection connection = source.getConnection();
+             PreparedStatement statement = connection.prepareStatement(CLAIM_JOBS)) {
+
+            statement.setString(1, owner);
+            statement.setLong(2, leaseExpiry);
+            statement.setArray(3, connection.createArrayOf("bigint", jobIDs.toArray()));
+            statement.setString(4, owner);
+            statement.setLong(5, now);
+
+            try (ResultSet set = statement.executeQuery()) {
+                while (set.next()) {
+                    claimed.add(set.getLong("job_id"));
+                }
+            }
+            return claimed;
+
+        } catch (SQLException ex) {
+            LOGGER.error("Failed to claim jobs " + jobIDs, ex);
+        }
+        return null;
+    }
+
+    /**
+     * Extends the leases held by the given owner on still-running jobs.
+     *
+     * @return how many leases were extended, or -1 if the update failed.
+     */
+    public int renewLeases(Collection<Long> jobIDs, String owner, long leaseExpiry) {
+        try (Connection connection = source.getConnection();
+             PreparedStatement statement = connection.prepareStatement(RENEW_LEASES)) {
+
+            statement.setLong(1, leaseExpiry);
+            statement.setArray(2, connection.createArrayOf("bigint", jobIDs.toArray()));
+            statement.setString(3, owner);
+            return statement.executeUpdate();
+
+        } catch (SQLException ex) {
+            LOGGER.error("Failed to renew job leases", ex);
+        }
+        return -1;
+    }
+
+    /**
+     * Fetches jobs that were claimed but never finished, and whose lease has since run out.
+     *
+     * @return the jobs, or null if the query failed.
+     */
+    public List<Job> getExpiredLeases(long now, int limit) {
+        List<Job> jobs = new ArrayList<>();
+        try (Connection connection = source.getConnection();
+             PreparedStatement statement = connection.prepareStatement(GET_EXPIRED_LEASES)) {
+
+            statement.setLong(1, now);
+            statement.setInt(2, limit);
+
+            try (ResultSet set = statement.executeQuery()) {
+                while (set.next()) {
+                    jobs.add(readJob(set));
+                }
+            }
+            return jobs;
+
+        } catch (SQLException ex) {
+            LOGGER.error("Failed to fetch expired job leases", ex);
+        }
+        return null;
+    }
+
     public int addJob(Job job) {
         try (Connection connection = source.getConnection();
              PreparedStatement statement = connection.prepareStatement(ADD_JOB)) {
@@ -65,10 +361,423 @@ public class JobStorage {
         return -1;
     }
 
+    /**
+     * Stores a job that has already failed for good, straight into the dead-letter state.
+     *
+     * @param job the job, with its attempts and last error
+     * @return the new job's ID, or -1 if it could not be stored.
+     */
+    public int addDeadLetterJob(Job job) {
+        try (Connection connection = source.getConnection();
+             PreparedStatement statement = connection.prepareStatement(ADD_DEAD_LETTER_JOB)) {
+
+            statement.setLong(1, job.getInitiatedEpoch());
+            statement.setLong(2, job.getTargetEpoch());
+            statement.setString(3, job.getJobType());
+            statement.setString(4, job.getSerialisedData());
+            statement.setInt(5, job.getAttempts());
+            statement.setString(6, job.getLastError());
+            try (ResultSet set = statement.executeQuery()) {
+                set.next();
+                return set.getInt("job_id");
+            }
+
+        } catch (SQLException ex) {
+            LOGGER.error("Failed to insert dead-lettered job " + job, ex);
+        }
+        return -1;
+    }
+
+    /**
+     * Stores a new recurring job definition along with its first occurrence.  The definition's ID is added to its
+     * data as {@code recurring_id}, so handlers can tell which definition an occurrence belongs to.
+     *
+     * @param cron    when the job should run
+     * @param jobType the type of job to run
+     * @param data    the data to hand to every occurrence
+     * @return the first occurrence, or null if it could not be stored.
+     */
+    public Job addRecurringJob(CronExpression cron, String jobType, DataObject data) {
+        long now = System.currentTimeMillis();
+        long target = cron.next(now);
+        try (Connection connection = source.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                long recurringID;
+                try (PreparedStatement statement = connection.prepareStatement(NEXT_RECURRING_ID);
+                     ResultSet set = statement.executeQuery()) {
+                    set.next();
+                    recurringID = set.getLong("recurring_id");
+                }
+                data.put("recurring_id", recurringID);
+                try (PreparedStatement statement = connection.prepareStatement(ADD_RECURRING_JOB)) {
+                    statement.setLong(1, recurringID);
+                    statement.setString(2, cron.getExpression());
+                    statement.setString(3, cron.getZone().getId());
+                    statement.setString(4, jobType);
+                    statement.setString(5, data.toString());
+                    statement.setLong(6, now);
+                    statement.executeUpdate();
+                }
+                Job first = insertOccurrence(connection, new Job(-1, now, target, jobType, data, recurringID));
+                connection.commit();
+                return first;
+            } catch (SQLException ex) {
+                connection.rollback();
+                throw ex;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException ex) {
+            LOGGER.error("Failed to insert recurring job " + cron + " " + jobType, ex);
+        }
+        return null;
+    }
+
+    /**
+     * Finishes one occurrence of a recurring job, recording the run against its definition and inserting the next
+     * occurrence, all in the one transaction.  Occurrences missed while nothing was running are skipped over.
+     *
+     * @param job             the occurrence that has run
+     * @param deadLetterError  if the occurrence failed for good, why; it is dead-lettered, but the next still goes ahead
+     * @return the next occurrence, or null if there isn't one - because the definition was disabled, the occurrence
+     * was already finished elsewhere, or the update failed.
+     */
+    public Job finishRecurringJob(Job job, String deadLetterError) {
+        return finishRecurringJob(job, deadLetterError, false);
+    }
+
+    /**
+     * As {@link #finishRecurringJob(Job, String)}, but if skipped is set the occurrence is marked as skipped and not
+     * counted as a run of the definition.
+     */
+    public Job finishRecurringJob(Job job, String deadLetterError, boolean skipped) {
+        long now = System.currentTimeMillis();
+        try (Connection connection = source.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                try (PreparedStatement statement = connection.prepareStatement(FINISH_OCCURRENCE)) {
+                    statement.setBoolean(1, deadLetterError != null);
+                    statement.setBoolean(2, skipped);
+                    statement.setInt(3, deadLetterError != null ? 1 : 0);
+                    statement.setString(4, deadLetterError);
+                    statement.setLong(5, job.getJobID());
+                    if (statement.executeUpdate() == 0) {
+                        connection.rollback();
+                        return null;
+                    }
+                }
+                Job next = null;
+                try (PreparedStatement statement = connection.prepareStatement(RECORD_RECURRING_RUN)) {
+                    if (skipped) {
+                        statement.setNull(1, Types.BIGINT);
+                    } else {
+                        statement.setLong(1, now);
+                    }
+                    statement.setInt(2, skipped ? 0 : 1);
+                    statement.setLong(3, job.getRecurringID());
+                    try (ResultSet set = statement.executeQuery()) {
+                        if (set.next()) {
+                            CronExpression cron = CronExpression.parse(set.getString("cron"), ZoneId.of(set.getString("time_zone")));
+                            long target = cron.next(Math.max(now, job.getTargetEpoch()));
+                            if (target > 0) {
+                                next = new Job(-1, now, target, set.getString("job_type"),
+                                        DataObject.fromJson(set.getString("job_data")), job.getRecurringID());
+                            }
+                        }
+                    }
+                }
+                if (next != null) {
+                    next = insertOccurrence(connection, next);
+                }
+                connection.commit();
+                return next;
+            } catch (SQLException | RuntimeException ex) {
+                connection.rollback();
+                throw ex;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException | RuntimeException ex) {
+            LOGGER.error("Failed to finish recurring job " + job, ex);
+        }
+        return null;
+    }
+
+    private Job insertOccurrence(Connection connection, Job job) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(ADD_RECURRING_OCCURRENCE)) {
+            statement.setLong(1, job.getInitiatedEpoch());
+            statement.setLong(2, job.getTargetEpoch());
+            statement.setString(3, job.getJobType());
+            statement.setString(4, job.getSerialisedData());
+            statement.setLong(5, job.getRecurringID());
+            try (ResultSet set = statement.executeQuery()) {
+                set.next();
+                job.setJobID(set.getLong("job_id"));
+            }
+        }
+        return job;
+    }
+
+    /**
+     * Stops a recurring job, cancelling its pending occurrence.
+     *
+     * @param recurringID the definition to stop
+     * @return the IDs of the occurrences that were cancelled, or null if the update failed.
+     */
+    public List<Long> disableRecurringJob(long recurringID) {
+        List<Long> cancelled = new ArrayList<>();
+        try (Connection connection = source.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                try (PreparedStatement statement = connection.prepareStatement(DISABLE_RECURRING_JOB)) {
+                    statement.setLong(1, recurringID);
+                    statement.executeUpdate();
+                }
+                try (PreparedStatement statement = connection.prepareStatement(CANCEL_RECURRING_OCCURRENCES)) {
+                    statement.setLong(1, recurringID);
+                    try (ResultSet set = statement.executeQuery()) {
+                        while (set.next()) {
+                            cancelled.add(set.getLong("job_id"));
+                        }
+                    }
+                }
+                connection.commit();
+                return cancelled;
+            } catch (SQLException ex) {
+                connection.rollback();
+                throw ex;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException ex) {
+            LOGGER.error("Failed to disable recurring job " + recurringID, ex);
+        }
+        return null;
+    }
+
+    /**
+     * @return the data of an enabled recurring job, or null if there is no such job or the query failed.
+     */
+    public DataObject getRecurringJobData(long recurringID) {
+        try (Connection connection = source.getConnection();
+             PreparedStatement statement = connection.prepareStatement(GET_RECURRING_JOB_DATA)) {
+
+            statement.setLong(1, recurringID);
+            try (ResultSet set = statement.executeQuery()) {
+                if (set.next()) {
+                    return DataObject.fromJson(set.getString("job_data"));
+                }
+            }
+
+        } catch (SQLException ex) {
+            LOGGER.error("Failed to fetch recurring job " + recurringID, ex);
+        }
+        return null;
+    }
+
+    /**
+     * Records a failed attempt at a job and moves it back to try again later.
+     *
+     * @return true if the job is still pending and was rescheduled.
+     */
+    public boolean retryJob(long jobID, long targetEpoch, String error) {
+        try (Connection connection = source.getConnection();
+             PreparedStatement statement = connection.prepareStatement(RETRY_JOB)) {
+
+            statement.setString(1, error);
+            statement.setLong(2, targetEpoch);
+            statement.setLong(3, jobID);
+            return statement.executeUpdate() > 0;
+
+        } catch (SQLException ex) {
+            LOGGER.error("Failed to reschedule job " + jobID, ex);
+        }
+        return false;
+    }
+
+    /**
+     * Records a final failed attempt at a job, moving it to the dead-letter state where it is kept for inspection.
+     */
+    public void deadLetterJob(long jobID, String error) {
+        try (Connection connection = source.getConnection();
+             PreparedStatement statement = connection.prepareStatement(DEAD_LETTER_JOB)) {
+
+            statement.setString(1, error);
+            statement.setLong(2, jobID);
+            statement.executeUpdate();
+
+        } catch (SQLException ex) {
+            LOGGER.error("Failed to dead-letter job " + jobID, ex);
+        }
+    }
+
+    /**
+     * @return the most recently dead-lettered jobs, newest first, or null if the query failed.
+     */
+    public List<Job> getDeadLetterJobs(int limit) {
+        List<Job> jobs = new ArrayList<>();
+        try (Connection connection = source.getConnection();
+             PreparedStatement statement = connection.prepareStatement(GET_DEAD_LETTER_JOBS)) {
+
+            statement.setInt(1, limit);
+            try (ResultSet set = statement.executeQuery()) {
+                while (set.next()) {
+                    jobs.add(readJob(set));
+                }
+            }
+            return jobs;
+
+        } catch (SQLException ex) {
+            LOGGER.error("Failed to fetch dead-lettered jobs", ex);
+        }
+        return null;
+    }
+
+    /**
+     * Takes a job out of the dead-letter state, with its attempts reset, to run at the given time.
+     *
+     * @return the job, or null if it was not dead-lettered or the update failed.
+     */
+    public Job requeueDeadLetterJob(long jobID, long targetEpoch) {
+        try (Connection connection = source.getConnection();
+             PreparedStatement statement = connection.prepareStatement(REQUEUE_DEAD_LETTER_JOB)) {
+
+            statement.setLong(1, targetEpoch);
+            statement.setLong(2, jobID);
+            try (ResultSet set = statement.executeQuery()) {
+                if (set.next()) {
+                    return readJob(set);
+                }
+            }
+
+        } catch (SQLException ex) {
+            LOGGER.error("Failed to requeue job " + jobID, ex);
+        }
+        return null;
+    }
+
+    /**
+     * Marks overdue jobs as triggered without running them, in one statement.  Jobs leased to an instance are left
+     * alone.
+     *
+     * @param jobIDs the jobs to skip
+     * @param now    the current time, in epoch milliseconds
+     * @return the IDs of the jobs that were skipped, or null if the update failed.
+     */
+    public Set<Long> skipJobs(Collection<Long> jobIDs, long now) {
+        Set<Long> skipped = new HashSet<>();
+        try (Connection connection = source.getConnection();
+             PreparedStatement statement = connection.prepareStatement(SKIP_JOBS)) {
+
+            statement.setArray(1, connection.createArrayOf("bigint", jobIDs.toArray()));
+            statement.setLong(2, now);
+            try (ResultSet set = statement.executeQuery()) {
+                while (set.next()) {
+                    skipped.add(set.getLong("job_id"));
+                }
+            }
+            return skipped;
+
+        } catch (SQLException ex) {
+            LOGGER.error("Failed to skip " + jobIDs.size() + " jobs", ex);
+        }
+        return null;
+    }
+
+    /**
+     * Moves the given jobs to new target times, in one statement.  Jobs leased to an instance are left alone.
+     *
+     * @param jobs the jobs to move, each holding its new target time
+     * @param now  the current time, in epoch milliseconds
+     * @return how many jobs were moved, or -1 if the update failed.
+     */
+    public int moveJobs(Collection<Job> jobs, long now) {
+        Long[] ids = new Long[jobs.size()];
+        Long[] targets = new Long[jobs.size()];
+        int i = 0;
+        for (Job job : jobs) {
+            ids[i] = job.getJobID();
+            targets[i] = job.getTargetEpoch();
+            i++;
+        }
+        try (Connection connection = source.getConnection();
+             PreparedStatement statement = connection.prepareStatement(MOVE_JOBS)) {
+
+            statement.setArray(1, connection.createArrayOf("bigint", ids));
+            statement.setArray(2, connection.createArrayOf("bigint", targets));
+            statement.setLong(3, now);
+            return statement.executeUpdate();
+
+        } catch (SQLException ex) {
+            LOGGER.error("Failed to move " + jobs.size() + " jobs", ex);
+        }
+        return -1;
+    }
+
     public void finishJob(Job job) {
         finishJobById(job.getJobID());
     }
 
+    /**
+     * Fetches one page of unfinished jobs due before the given time, in job ID order.  Jobs currently leased to an
+     * instance are left out.
+     *
+     * @param epoch      only jobs due before this time are returned
+     * @param afterJobID only jobs with an ID greater than this are returned; pass the last ID of the previous page
+     * @param limit      the maximum number of jobs to return
+     * @return the page of jobs, which is empty once every job has been read, or null if the query failed.
+     */
+    public List<Job> getNonFinishedJobsBeforeTime(long epoch, long afterJobID, int limit) {
+        long now = System.currentTimeMillis();
+        List<Job> jobs = new ArrayList<>();
+        try (Connection connection = source.getConnection();
+             PreparedStatement statement = connection.prepareStatement(GET_JOBS_BEFORE_TIME_AFTER_ID)) {
+
+            statement.setLong(1, epoch);
+            statement.setLong(2, afterJobID);
+            statement.setLong(3, now);
+            statement.setInt(4, limit);
+
+            try (ResultSet set = statement.executeQuery()) {
+                while (set.next()) {
+                    jobs.add(readJob(set));
+                }
+            }
+            return jobs;
+
+        } catch (SQLException ex) {
+            LOGGER.error("Failed to fetch scheduled jobs", ex);
+        }
+        return null;
+    }
+
+    /**
+     * Fetches the given jobs, skipping any that have already been triggered.
+     *
+     * @param jobIDs the IDs of the jobs to fetch
+     * @return the jobs that are still pending, or null if the query failed.
+     */
+    public List<Job> getNonFinishedJobsById(Collection<Long> jobIDs) {
+        List<Job> jobs = new ArrayList<>();
+        try (Connection connection = source.getConnection();
+             PreparedStatement statement = connection.prepareStatement(GET_JOBS_BY_ID)) {
+
+            statement.setArray(1, connection.createArrayOf("bigint", jobIDs.toArray()));
+
+            try (ResultSet set = statement.executeQuery()) {
+                while (set.next()) {
+                    jobs.add(readJob(set));
+                }
+            }
+            return jobs;
+
+        } catch (SQLException ex) {
+            LOGGER.error("Failed to fetch jobs " + jobIDs, ex);
+        }
+        return null;
+    }
+
     public List<Job> getNonFinishedJobsBeforeTime(long epoch) {
         List<Job> jobs = new ArrayList<>();
         try (Connection connection = source.getConnection();
@@ -99,4 +808,20 @@ public class JobStorage {
         return jobs;
     }
 
+    private static Job readJob(ResultSet set) throws SQLException {
+        long recurringID = set.getLong("recurring_id");
+        if (set.wasNull()) recurringID = -1;
+        Job job = new Job(
+                set.getLong("job_id"),
+                set.getLong("initiated_epoch"),
+                set.getLong("target_epoch"),
+                set.getString("job_type"),
+                DataObject.fromJson(set.getString("job_data")),
+                recurringID
+        );
+        job.setAttempts(set.getInt("attempts"));
+        job.setLastError(set.getString("last_error"));
+        return job;
+    }
+
 }
@@ -0,0 +1,236 @@
+package uk.co.hexillium.rhul.compsoc.persistence;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses archived message content with raw deflate, primed with a preset dictionary.
+ * <p>
+ * Individual chat messages are far too short for deflate to find repetition within them, so a dictionary of
+ * commonly occurring fragments (mentions, emoji, links, common words) is trained from a sample of the archive.
+ * A codec is immutable and bound to a single dictionary version, so content must always be decoded with the
+ * codec of the dictionary it was encoded with.
+ * <p>
+ * Deflaters and inflaters hold sizeable native buffers, so each codec keeps a small pool of them which are reset and
+ * reused rather than made for every message.
+ */
+public class MessageContentCodec {
+
+    /**
+     * Deflate can only look back 32KiB, so anything beyond this in a dictionary would never be referenced.
+     */
+    public static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+    /**
+     * Fragments shorter than this are cheaper to encode as literals than as back-references.
+     */
+    private static final int MIN_FRAGMENT_LENGTH = 4;
+    private static final int MAX_FRAGMENT_LENGTH = 64;
+    /**
+     * Messages are too short for the higher levels' longer match searches to find anything more, so they only cost time.
+     */
+    private static final int LEVEL = 6;
+    /**
+     * Most deflaters and inflaters kept idle; any more than this are ended when returned
+     */
+    private static final int POOL_SIZE = 4;
+
+    private final int dictionaryId;
+    private final byte[] dictionary;
+    private final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final BlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    /**
+     * @param dictionaryId the version of the dictionary, or -1 if no dictionary is used.
+     * @param dictionary   the preset dictionary, or null to use plain deflate.
+     */
+    public MessageContentCodec(int dictionaryId, byte[] dictionary) {
+        this.dictionaryId = dictionaryId;
+        this.dictionary = dictionary;
+    }
+
+    public int getDictionaryId() {
+        return dictionaryId;
+    }
+
+    public int getDictionarySize() {
+        return dictionary == null ? 0 : dictionary.length;
+    }
+
+    public byte[] encode(String content) {
+        if (content == null) return null;
+        byte[] input = content.getBytes(StandardCharsets.UTF_8);
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(LEVEL, true);
+        }
+        try {
+            //a reset deflater has forgotten its dictionary, so it is set again for every message
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(input);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(16, input.length / 2));
+            byte[] buffer = new byte[512];
+            while (!deflater.finished()) {
+                int len = deflater.deflate(buffer);
+                out.write(buffer, 0, len);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.reset();
+            if (!deflaters.offer(deflater)) {
+                deflater.end();
+            }
+        }
+    }
+
+    public String decode(byte[] data) {
+        if (data == null) return null;
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        try {
+            if (dictionary != null) {
+                inflater.setDictionary(dictionary);
+            }
+            inflater.setInput(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 3);
+            byte[] buffer = new byte[1024];
+            while (!inflater.finished()) {
+                int len = inflater.inflate(buffer);
+                if (len == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalStateException("Truncated or corrupt message content for dictionary " + dictionaryId);
+                }
+                out.write(buffer, 0, len);
+            }
+            return out.toString(StandardCharsets.UTF_8);
+        } catch (DataFormatException ex) {
+            throw new IllegalStateException("Corrupt message content for dictionary " + dictionaryId, ex);
+        } finally {
+            inflater.reset();
+            if (!inflaters.offer(inflater)) {
+                inflater.end();
+            }
+        }
+    }
+
+    /**
+     * Builds a deflate dictionary from a sample of message content.
+     * <p>
+     * Each message is split into whitespace delimited fragments, and fragments are scored by the number of bytes
+     * they would save across the sample (occurrences multiplied by length).  The best fragments are packed into
+     * the dictionary with the most valuable placed last, as deflate encodes nearer back-references more cheaply.
+     *
+     * @param samples the message content to train from.
+     * @return the dictionary bytes, no larger than {@link #MAX_DICTIONARY_SIZE}.
+     */
+    public static byte[] train(List<String> samples) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (String sample : samples) {
+            if (sample == null) continue;
+            for (String fragment : sample.split("\\s+")) {
+                if (fragment.length() < MIN_FRAGMENT_LENGTH || fragment.length() > MAX_FRAGMENT_LENGTH) continue;
+                counts.merge(fragment, 1, Integer::sum);
+            }
+        }
+
+        List<Map.Entry<String, Integer>> scored = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            //a fragment seen once gains nothing from being in the dictionary
+            if (entry.getValue() > 1) scored.add(entry);
+        }
+        scored.sort((a, b) -> Long.compare(
+                (long) b.getValue() * b.getKey().length(),
+                (long) a.getValue() * a.getKey().length()));
+
+        List<byte[]> chosen = new ArrayList<>();
+        int size = 0;
+        for (Map.Entry<String, Integer> entry : scored) {
+            byte[] fragment = (entry.getKey() + " ").getBytes(StandardCharsets.UTF_8);
+            if (size + fragment.length > MAX_DICTIONARY_SIZE) continue;
+            chosen.add(fragment);
+            size += fragment.length;
+        }
+
+        //most valuable fragments go at the end, closest to the data being compressed
+        byte[] dict = new byte[size];
+        int pos = size;
+        for (byte[] fragment : chosen) {
+            pos -= fragment.length;
+            System.arraycopy(fragment, 0, dict, pos, fragment.length);
+        }
+        return dict;
+    }
+
+    /**
+     * Measures this codec against a sample of message content.  The sample should not include the messages the
+     * dictionary was trained on, or the ratio will flatter it.
+     *
+     * @param samples the message content to measure against.
+     * @return a human readable summary of the compression ratio and per-message encode/decode cost.
+     */
+    public String benchmark(List<String> samples) {
+        List<String> content = new ArrayList<>();
+        for (String sample : samples) {
+            if (sample != null && !sample.isEmpty()) content.add(sample);
+        }
+        if (content.isEmpty()) {
+            return "No content to benchmark against.";
+        }
+        byte[][] encoded = new byte[content.size()][];
+
+        //one untimed pass so the JIT has seen the hot paths
+        for (String s : content) {
+            decode(encode(s));
+        }
+
+        long rawBytes = 0, compressedBytes = 0;
+        long encodeStart = System.nanoTime();
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = encode(content.get(i));
+        }
+        long encodeNanos = System.nanoTime() - encodeStart;
+
+        long decodeStart = System.nanoTime();
+        int mismatches = 0;
+        for (int i = 0; i < encoded.length; i++) {
+            if (!decode(encoded[i]).equals(content.get(i))) mismatches++;
+        }
+        long decodeNanos = System.nanoTime() - decodeStart;
+
+        for (int i = 0; i < encoded.length; i++) {
+            rawBytes += content.get(i).getBytes(StandardCharsets.UTF_8).length;
+            compressedBytes += encoded[i].length;
+        }
+
+        return String.format("Dictionary %d (%d bytes) over %d messages:%n" +
+                        "Raw: %d bytes, compressed: %d bytes, ratio: %.3f%n" +
+                        "Encode: %.1f us/msg, decode: %.1f us/msg%n" +
+                        "Round-trip mismatches: %d",
+                dictionaryId, getDictionarySize(), encoded.length,
+                rawBytes, compressedBytes, rawBytes == 0 ? 0 : (double) compressedBytes / rawBytes,
+                encodeNanos / 1000d / encoded.length, decodeNanos / 1000d / encoded.length,
+                mismatches);
+    }
+
+    @Override
+    public String toString() {
+        return "MessageContentCodec{" +
+                "dictionaryId=" + dictionaryId +
+                ", dictionarySize=" + getDictionarySize() +
+                ", dictionaryHash=" + Arrays.hashCode(dictionary) +
+                '}';
+    }
+}
@@ -0,0 +1,249 @@
+package uk.co.hexillium.rhul.compsoc.persistence;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Exports the message archive into column-oriented chunk files for offline analysis.
+ * <p>
+ * Rows are streamed through a server-side cursor and written a bounded chunk at a time, so an export runs in
+ * constant memory however large the archive.  Each export continues from the watermark left by the last one,
+ * which is advanced as each chunk file is completed.
+ * <p>
+ * Sequence numbers are handed out when a row is inserted, not when it commits, so a row can become visible after
+ * rows with higher numbers have already been exported.  An export therefore stops short of rows sequenced within the
+ * last {@link #SAFE_LAG_MS}, by which time every lower number has committed.  A deleted message's row is given a new
+ * sequence number, so the deletion is exported as a change of its own.
+ */
+public class MessageExporter {
+
+    private static final Logger logger = LogManager.getLogger(MessageExporter.class);
+
+    private static final String EXPORT_NAME = "messages";
+    private static final int FETCH_SIZE = 2000;
+    private static final int CHUNK_ROWS = 16384;
+    private static final int CHUNK_CONTENT_BYTES = 8 * 1024 * 1024;
+    /**
+     * Longer than any transaction writing to the archive is allowed to run
+     */
+    private static final long SAFE_LAG_MS = 5 * 60 * 1000;
+
+    private static final String[] MIGRATION = {
+            "create table if not exists export_watermarks (" +
+                    " export_name varchar(64) not null constraint export_watermarks_pk primary key, " +
+                    " last_seq bigint not null, " +
+                    " updated timestamp with time zone default now()" +
+                    ");",
+            "create table if not exists export_schedules (" +
+                    " export_name varchar(64) not null constraint export_schedules_pk primary key, " +
+                    " schedule_id bigint not null" +
+                    ");"
+    };
+
+    private static final String fetchWatermark =
+            "select last_seq from export_watermarks where export_name = ?;";
+
+    private static final String updateWatermark =
+            "insert into export_watermarks(export_name, last_seq, updated) values (?, ?, now()) " +
+                    "on conflict (export_name) do update set last_seq = excluded.last_seq, updated = excluded.updated;";
+
+    private static final String fetchSafeHorizon =
+            "select coalesce(max(message_seq), 0) as horizon from messages where coalesce(sequenced_epoch, 0) < ?;";
+
+    private static final String streamMessages =
+            "select message_seq, message_id, modified_timestamp, channel_id, coalesce(author_id, -1) as author_id, deleted, " +
+                    "message_content, message_content_compressed, dictionary_id " +
+                    "from messages where message_seq > ? and message_seq <= ? order by message_seq;";
+
+    private static final String replaceSchedule =
+            "insert into export_schedules(export_name, schedule_id) values (?, 1) " +
+                    "on conflict (export_name) do update set schedule_id = export_schedules.schedule_id + 1 returning schedule_id;";
+
+    private static final String fetchSchedule =
+            "select schedule_id from export_schedules where export_name = ?;";
+
+    private final HikariDataSource source;
+    private final MessageStorage messageStorage;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    MessageExporter(HikariDataSource source, MessageStorage messageStorage){
+        this.source = source;
+        this.messageStorage = messageStorage;
+    }
+
+    /**
+     * Adds the tables of export watermarks and schedules if they are missing.
+     */
+    public void migrate(){
+        try (Connection connection = source.getConnection();
+             Statement statement = connection.createStatement()){
+
+            for (String sql : MIGRATION){
+                statement.execute(sql);
+            }
+
+        } catch (SQLException ex){
+            logger.error("Failed to migrate the export tables", ex);
+        }
+    }
+
+    /**
+     * Starts a new export schedule, which supersedes any running before it.  There is only ever one schedule, and a
+     * scheduled export should stop if {@link #isCurrentSchedule(long)} says its schedule has been superseded.
+     *
+     * @return the ID of the new schedule, or -1 on failure.
+     */
+    public long replaceSchedule(){
+        try (Connection connection = source.getConnection();
+             PreparedStatement statement = connection.prepareStatement(replaceSchedule)){
+            statement.setString(1, EXPORT_NAME);
+            try (ResultSet set = statement.executeQuery()){
+                set.next();
+                return set.getLong("schedule_id");
+            }
+        } catch (SQLException ex){
+            logger.error("Failed to replace the export schedule", ex);
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if the schedule is the current one; false if it has been superseded or stopped, or on failure.
+     */
+    public boolean isCurrentSchedule(long scheduleID){
+        try (Connection connection = source.getConnection();
+             PreparedStatement statement = connection.prepareStatement(fetchSchedule)){
+            statement.setString(1, EXPORT_NAME);
+            try (ResultSet set = statement.executeQuery()){
+                return set.next() && set.getLong("schedule_id") == scheduleID;
+            }
+        } catch (SQLException ex){
+            logger.error("Failed to fetch the export schedule", ex);
+        }
+        return false;
+    }
+
+    /**
+     * Writes every message archived since the last export into chunk files in the given directory.
+     *
+     * @param directory where the chunk files are written; created if it does not exist
+     * @return a human readable summary of the export.
+     */
+    public String export(Path directory){
+        if (!running.compareAndSet(false, true)){
+            return "An export is already running.";
+        }
+        long started = System.currentTimeMillis();
+        int files = 0;
+        long rows = 0;
+        try {
+            Files.createDirectories(directory);
+            long watermark = fetchWatermark();
+            long horizon = fetchSafeHorizon(started - SAFE_LAG_MS);
+            ColumnChunkWriter chunk = new ColumnChunkWriter(CHUNK_ROWS, CHUNK_CONTENT_BYTES);
+
+            try (Connection connection = source.getConnection()){
+                //pgjdbc only uses a cursor when not in autocommit mode
+                connection.setAutoCommit(false);
+                try (PreparedStatement statement = connection.prepareStatement(streamMessages,
+                        ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)){
+                    statement.setFetchSize(FETCH_SIZE);
+                    statement.setLong(1, watermark);
+                    statement.setLong(2, horizon);
+                    try (ResultSet set = statement.executeQuery()){
+                        while (set.next()){
+                            chunk.add(
+                                    set.getLong("message_seq"),
+                                    set.getLong("message_id"),
+                                    set.getLong("modified_timestamp"),
+                                    set.getLong("channel_id"),
+                                    set.getLong("author_id"),
+                                    set.getBoolean("deleted"),
+                                    messageStorage.readContent(connection, set)
+                            );
+                            if (chunk.isFull()){
+                                rows += writeChunk(directory, chunk);
+                                files++;
+                            }
+                        }
+                    }
+                    if (!chunk.isEmpty()){
+                        rows += writeChunk(directory, chunk);
+                        files++;
+                    }
+                } finally {
+                    connection.commit();
+                    connection.setAutoCommit(true);
+                }
+            }
+        } catch (SQLException | IOException ex){
+            logger.error("Message export failed after " + files + " files", ex);
+            return "Export failed after " + files + " files and " + rows + " rows: " + ex.getMessage();
+        } finally {
+            running.set(false);
+        }
+        String summary = "Exported " + rows + " rows into " + files + " files in " + (System.currentTimeMillis() - started) + "ms.";
+        logger.info(summary);
+        return summary;
+    }
+
+    private int writeChunk(Path directory, ColumnChunkWriter chunk) throws IOException, SQLException {
+        String name = String.format("messages-%020d-%020d", chunk.getFirstSequence(), chunk.getLastSequence());
+        Path temp = directory.resolve(name + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)){
+            chunk.writeTo(out);
+        }
+        Files.move(temp, directory.resolve(name + ".cmsg"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        //only advance once the file is safely in place, so an interrupted export is picked up again next time
+        storeWatermark(chunk.getLastSequence());
+        int rows = chunk.getRows();
+        chunk.reset();
+        return rows;
+    }
+
+    private long fetchWatermark() throws SQLException {
+        try (Connection connection = source.getConnection();
+             PreparedStatement statement = connection.prepareStatement(fetchWatermark)){
+            statement.setString(1, EXPORT_NAME);
+            try (ResultSet set = statement.executeQuery()){
+                return set.next() ? set.getLong("last_seq") : 0;
+            }
+        }
+    }
+
+    /**
+     * @return the highest sequence number handed out before the cutoff; every row numbered at or below it has committed.
+     */
+    private long fetchSafeHorizon(long cutoffEpoch) throws SQLException {
+        try (Connection connection = source.getConnection();
+             PreparedStatement statement = connection.prepareStatement(fetchSafeHorizon)){
+            statement.setLong(1, cutoffEpoch);
+            try (ResultSet set = statement.executeQuery()){
+                set.next();
+                return set.getLong("horizon");
+            }
+        }
+    }
+
+    private void storeWatermark(long sequence) throws SQLException {
+        try (Connection connection = source.getConnection();
+             PreparedStatement statement = connection.prepareStatement(updateWatermark)){
+            statement.setString(1, EXPORT_NAME);
+            statement.setLong(2, sequence);
+            statement.executeUpdate();
+        }
+    }
+}
@@ -5,14 +5,37 @@ import net.dv8tion.jda.api.entities.Message;
 import net.dv8tion.jda.api.entities.TextChannel;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import uk.co.hexillium.rhul.compsoc.persistence.entities.ArchivedChannel;
+import uk.co.hexillium.rhul.compsoc.persistence.entities.MessageMedia;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
 import java.sql.Timestamp;
+import java.sql.Types;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MessageStorage {
 
@@ -21,56 +44,481 @@ public class MessageStorage {
 
 
     private static final String insertMessage =
-            "insert into messages(channel_id, message_id, modified_timestamp, author_id, message_content, attachment_url) VALUES " +
-                    "(?, ?, ?, ?, ?, ?) on conflict do nothing;";
+            "insert into messages(channel_id, message_id, modified_timestamp, author_id, message_content, attachment_url, " +
+                    "message_content_compressed, dictionary_id) VALUES " +
+                    "(?, ?, ?, ?, ?, ?, ?, ?) on conflict do nothing;";
+
+    private static final String fetchMessageContent =
+            "select message_content, message_content_compressed, dictionary_id from messages " +
+                    "where message_id = ? order by modified_timestamp desc limit 1;";
+
+    /**
+     * Samples content for training, leaving out the messages held back for benchmarking.
+     */
+    private static final String sampleTrainingContent =
+            "select message_content, message_content_compressed, dictionary_id from messages tablesample system (?) " +
+                    "where not deleted and (message_id >> 22) % ? <> 0 limit ?;";
+
+    /**
+     * Samples content for benchmarking from only the held back messages, which no dictionary is trained on.
+     */
+    private static final String sampleHeldOutContent =
+            "select message_content, message_content_compressed, dictionary_id from messages tablesample system (?) " +
+                    "where not deleted and (message_id >> 22) % ? = 0 limit ?;";
+
+    private static final String insertDictionary =
+            "insert into message_dictionaries(dictionary, sample_size) values (?, ?) returning dictionary_id;";
+
+    private static final String fetchDictionary =
+            "select dictionary from message_dictionaries where dictionary_id = ?;";
+
+    private static final String fetchLatestDictionary =
+            "select dictionary_id, dictionary from message_dictionaries order by dictionary_id desc limit 1;";
+
+    /**
+     * Percentage of the table's pages read when sampling content for training or benchmarking.
+     */
+    private static final double SAMPLE_PERCENT = 5;
+    /**
+     * One in this many messages, picked by the timestamp in its snowflake, is held back from training for benchmarking.
+     */
+    private static final int HOLDOUT_BUCKETS = 10;
+
+    private static final String insertMediaPrefix =
+            "insert into message_media(message_id, channel_id, media_index, media_kind, url, size_bytes, content_type, width, height, created) VALUES ";
+    private static final String insertMediaRow = "(?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    private static final int MEDIA_COLUMNS = 10;
+    private static final String insertMediaSuffix =
+            " on conflict (message_id, media_index) do update set media_kind = excluded.media_kind, url = excluded.url, " +
+                    "size_bytes = excluded.size_bytes, content_type = excluded.content_type, width = excluded.width, height = excluded.height;";
+
+    /**
+     * Drops media past the end of a message's newest revision, left behind when an edit removed an attachment or embed.
+     */
+    private static final String deleteStaleMedia =
+            "delete from message_media where message_id = ? and media_index >= ?;";
+
+    private static final String fetchMediaForChannel =
+            "select message_id, channel_id, media_index, media_kind, url, size_bytes, content_type, width, height, created " +
+                    "from message_media where channel_id = ? and created >= ? and created < ? order by created, message_id, media_index;";
+
+    /**
+     * Rows per multi-row media insert, keeping the bound parameters well below PostgreSQL's limit of 32767.
+     */
+    private static final int MEDIA_ROWS_PER_STATEMENT = 1000;
+    private static final String insertMediaChunk = buildInsertMedia(MEDIA_ROWS_PER_STATEMENT);
+
+    /**
+     * How often queued messages are written out
+     */
+    private static final long FLUSH_INTERVAL_MS = 2 * 1000;
+    /**
+     * How many queued writes will trigger a flush before the interval has elapsed
+     */
+    private static final int FLUSH_THRESHOLD = 200;
+    /**
+     * How many flushes a single write may fail, with the database reachable, before it is dropped, so one bad row
+     * can't hold up the archive forever
+     */
+    private static final int MAX_FLUSH_ATTEMPTS = 5;
+    /**
+     * The longest a queued write can wait, through every retry while the database is reachable, before it is either
+     * written or dropped
+     */
+    static final long FLUSH_HORIZON_MS = FLUSH_INTERVAL_MS * (MAX_FLUSH_ATTEMPTS + 1);
+
+
+    /**
+     * A deleted row takes a new sequence number, so the exporter picks the deletion up as a change.
+     */
+    private static final String deleteMessage =
+            "update messages set deleted = true, message_seq = nextval(pg_get_serial_sequence('messages', 'message_seq')), sequenced_epoch = default " +
+                    "where message_id = ? and not deleted and modified_timestamp = (select max(modified_timestamp) from messages where message_id = ?)";
+
+
+    /**
+     * Brings an existing database up to date.  Every statement is safe to run again.
+     */
+    private static final String[] MIGRATION = {
+            //dictionary-compressed content
+            "create table if not exists message_dictionaries (" +
+                    " dictionary_id serial constraint message_dictionaries_pk primary key, " +
+                    " dictionary bytea not null, " +
+                    " sample_size integer not null, " +
+                    " created timestamp with time zone default now()" +
+                    ");",
+            "alter table messages add column if not exists message_content_compressed bytea;",
+            "alter table messages add column if not exists dictionary_id integer " +
+                    " constraint messages_message_dictionaries_dictionary_id_fk references message_dictionaries;",
+            //the exporter's change sequence; checked first, as "add column if not exists" can still create the serial's sequence
+            "do $$ begin " +
+                    "  if not exists (select 1 from information_schema.columns where table_name = 'messages' and column_name = 'message_seq') then " +
+                    "    alter table messages add column message_seq bigserial not null; " +
+                    "  end if; " +
+                    "end $$;",
+            "create unique index if not exists messages_message_seq_uindex on messages (message_seq);",
+            //when each row took its message_seq, for the exporter's safe horizon; rows from before this are all long committed
+            "alter table messages add column if not exists sequenced_epoch bigint;",
+            "alter table messages alter column sequenced_epoch set default (extract(epoch from clock_timestamp()) * 1000)::bigint;",
+            //attachments and embeds
+            "create table if not exists message_media (" +
+                    " message_id bigint not null, " +
+                    " channel_id bigint not null, " +
+                    " media_index smallint not null, " +
+                    " media_kind varchar(32) not null, " +
+                    " url varchar(2048), " +
+                    " size_bytes integer, " +
+                    " content_type varchar(128), " +
+                    " width integer, " +
+                    " height integer, " +
+                    " created bigint not null, " +
+                    " constraint message_media_pk primary key (message_id, media_index)" +
+                    ");",
+            "create index if not exists message_media_channel_id_created_index on message_media (channel_id, created);"
+    };
+
+    private static final String fetchChannels = "select channel_snowflake, channel_name, channel_description, deleted from channels;";
+
+
+    private static final String upsertChannel = "insert into channels (channel_snowflake, channel_name, channel_permissions, channel_description, deleted) values (?, ?, 0, ?, ?) " +
+            "on conflict (channel_snowflake) do update set channel_name = excluded.channel_name, channel_description = excluded.channel_description, deleted = excluded.deleted;";
+
+    /**
+     * Codecs for every dictionary version seen, as archived content must be decoded with the dictionary it was written with.
+     */
+    private final Map<Integer, MessageContentCodec> codecs = new ConcurrentHashMap<>();
+    private final boolean compressContent;
+    private volatile MessageContentCodec activeCodec;
+
+    /**
+     * Message revisions and deletions waiting to be written, in the order they were received.
+     */
+    private final ConcurrentLinkedQueue<PendingWrite> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final ScheduledExecutorService flushTimer;
+    /**
+     * Writes from a flush that failed, to be tried again first on the next one.  Only touched on the flush timer.
+     */
+    private final List<PendingWrite> retrying = new ArrayList<>();
+
+    /**
+     * The last known state of every archived channel, mirroring the channels table.
+     */
+    private final Map<Long, ArchivedChannel> channelRegistry = new ConcurrentHashMap<>();
+    /**
+     * Channel writes waiting for the next flush, keyed by snowflake so repeated changes coalesce.
+     */
+    private final Map<Long, ArchivedChannel> pendingChannels = new ConcurrentHashMap<>();
+    private volatile boolean channelsLoaded = false;
+
+    MessageStorage(HikariDataSource source, boolean compressContent){
+        this.source = source;
+        this.compressContent = compressContent;
+        if (compressContent){
+            activeCodec = fetchLatestCodec();
+            logger.info("Compressing archived message content with " + activeCodec);
+        }
+        flushTimer = Executors.newSingleThreadScheduledExecutor();
+        flushTimer.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
 
+    /**
+     * Adds the tables and columns for compressed content, media and the exporter, if they are missing.
+     */
+    public void migrate(){
+        try (Connection connection = source.getConnection();
+             Statement statement = connection.createStatement()){
 
-    private static final String deleteMessage =
-            "update messages set deleted = true where message_id = ? and modified_timestamp = (select max(modified_timestamp) from messages where message_id = ?)";
+            for (String sql : MIGRATION){
+                statement.execute(sql);
+            }
 
+        } catch (SQLException ex){
+            logger.error("Failed to migrate the message tables", ex);
+        }
+    }
 
-    private static final String insertChannel = "insert into channels (channel_snowflake, channel_name, channel_permissions, channel_description) values (?, ?, ?, ?) on conflict do nothing;";
+    /**
+     * Reconciles the channel registry with the channels JDA can currently see, writing only what has changed
+     * (creations, renames, topic changes and deletions) in a single batch.
+     *
+     * @param liveChannels every text channel currently in JDA's cache
+     * @return the number of channels that were written.
+     */
+    public int syncChannels(Collection<TextChannel> liveChannels){
+        try (Connection connection = source.getConnection()){
+            loadChannelRegistry(connection);
+
+            List<ArchivedChannel> changes = new ArrayList<>();
+            Set<Long> seen = new HashSet<>();
+            for (TextChannel channel : liveChannels){
+                ArchivedChannel current = ArchivedChannel.fromChannel(channel);
+                seen.add(current.getSnowflake());
+                if (!current.equals(channelRegistry.get(current.getSnowflake()))){
+                    changes.add(current);
+                }
+            }
+            for (ArchivedChannel known : channelRegistry.values()){
+                if (!known.isDeleted() && !seen.contains(known.getSnowflake())){
+                    changes.add(known.asDeleted());
+                }
+            }
 
+            upsertChannels(connection, changes);
+            for (ArchivedChannel change : changes){
+                channelRegistry.put(change.getSnowflake(), change);
+            }
+            return changes.size();
+        } catch (SQLException ex){
+            logger.warn("Failed to sync channels", ex);
+        }
+        return -1;
+    }
 
-    private static final String updateChannel = "update channels set channel_name = ? where channel_snowflake = ?;";
+    /**
+     * Records a created or updated channel in the registry, queueing a write if anything we archive has changed.
+     * Repeated changes to the same channel before the next flush are coalesced into one write.
+     *
+     * @param channel the channel that was created or changed
+     */
+    public void queueChannelUpdate(TextChannel channel){
+        queueChannel(ArchivedChannel.fromChannel(channel));
+    }
 
-    MessageStorage(HikariDataSource source){
-        this.source = source;
+    /**
+     * Marks a channel as deleted in the registry, queueing a write if it was previously known.
+     *
+     * @param channelID the snowflake of the deleted channel
+     */
+    public void queueChannelDelete(long channelID){
+        ArchivedChannel known = channelRegistry.get(channelID);
+        if (known == null) return;
+        queueChannel(known.asDeleted());
     }
 
-    public void insertChannel(TextChannel channel){
-        try (Connection conn = source.getConnection()){
-            PreparedStatement ps = conn.prepareStatement(insertChannel);
-            ps.setLong(1, channel.getIdLong());
-            ps.setString(2, channel.getName());
-            ps.setLong(3, 0);
-            ps.setString(4, channel.getTopic());
+    private void queueChannel(ArchivedChannel channel){
+        ArchivedChannel previous = channelRegistry.put(channel.getSnowflake(), channel);
+        if (channel.equals(previous)) return;
+        pendingChannels.put(channel.getSnowflake(), channel);
+    }
 
-            ps.executeUpdate();
-        } catch (SQLException ex){
-            logger.warn("Failed to insert Channel", ex);
+    private void loadChannelRegistry(Connection connection) throws SQLException {
+        if (channelsLoaded) return;
+        try (PreparedStatement statement = connection.prepareStatement(fetchChannels);
+             ResultSet set = statement.executeQuery()){
+            while (set.next()){
+                ArchivedChannel channel = new ArchivedChannel(
+                        set.getLong("channel_snowflake"),
+                        set.getString("channel_name"),
+                        set.getString("channel_description"),
+                        set.getBoolean("deleted")
+                );
+                //anything changed by an event while we were loading is newer than the table
+                channelRegistry.putIfAbsent(channel.getSnowflake(), channel);
+            }
         }
+        channelsLoaded = true;
+        logger.info("Loaded {} channels into the registry", channelRegistry.size());
     }
 
-    public void updateChannel(TextChannel tc){
-        try (Connection conn = source.getConnection()){
-            PreparedStatement ps = conn.prepareStatement(updateChannel);
-            ps.setString(1, tc.getName());
-            ps.setLong(2, tc.getIdLong());
+    private void upsertChannels(Connection connection, Collection<ArchivedChannel> channels) throws SQLException {
+        if (channels.isEmpty()) return;
+        try (PreparedStatement statement = connection.prepareStatement(upsertChannel)){
+            for (ArchivedChannel channel : channels){
+                statement.setLong(1, channel.getSnowflake());
+                statement.setString(2, channel.getName());
+                statement.setString(3, channel.getDescription());
+                statement.setBoolean(4, channel.isDeleted());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
 
-            ps.executeUpdate();
-        } catch (SQLException ex){
-            logger.warn("Failed to update Channel", ex);
+    /**
+     * Queues a message revision to be archived, along with its attachments and embeds, on the next flush.
+     *
+     * @param message the message to archive
+     */
+    public void queueMessage(Message message){
+        enqueue(new PendingWrite(message, -1, null));
+    }
+
+    /**
+     * Queues a message to be marked as deleted on the next flush, after any revisions queued before it.
+     *
+     * @param messageID the snowflake of the deleted message
+     */
+    public void queueDelete(long messageID){
+        enqueue(new PendingWrite(null, messageID, null));
+    }
+
+    private void enqueue(PendingWrite write){
+        pendingWrites.add(write);
+        if (pendingCount.incrementAndGet() == FLUSH_THRESHOLD){
+            flushTimer.execute(this::flush);
         }
     }
 
-    public void insertMessage(Message message){
-        try (Connection connection = source.getConnection();
-             PreparedStatement statement = connection.prepareStatement(insertMessage)){
+    /**
+     * Writes out everything queued so far; channel changes, all message revisions in one batch, all media in one
+     * multi-row insert, and then the deletions.  Only ever run on the flush timer, so flushes never overlap.
+     * <p>
+     * Every write is idempotent, so a failed batch is simply tried again.  If the database can't be reached the whole
+     * batch waits for the next flush, however long that takes; otherwise the batch is retried one write at a time so
+     * that only the writes which fail on their own are held back, and eventually dropped.
+     *
+     * @return true if nothing is left waiting for a retry and nothing was dropped.
+     */
+    private boolean flush(){
+        List<PendingWrite> batch = new ArrayList<>(retrying);
+        retrying.clear();
+        PendingWrite write;
+        while ((write = pendingWrites.poll()) != null){
+            pendingCount.decrementAndGet();
+            batch.add(write);
+        }
+        for (Long channelID : pendingChannels.keySet()){
+            ArchivedChannel channel = pendingChannels.remove(channelID);
+            if (channel != null) batch.add(new PendingWrite(null, -1, channel));
+        }
+        if (batch.isEmpty()) return true;
 
-            addData(statement, message);
+        try (Connection connection = source.getConnection()){
+            writeBatch(connection, batch);
+            return true;
+        } catch (SQLException ex) {
+            if (isConnectionFailure(ex)){
+                logger.warn("Database unavailable, keeping " + batch.size() + " writes for the next flush.", ex);
+                retrying.addAll(batch);
+                return false;
+            }
+            logger.warn("Failed to flush " + batch.size() + " writes, retrying them one at a time.", ex);
+        } catch (Exception ex) {
+            logger.error("Unexpected error flushing messages, retrying them one at a time.", ex);
+        }
+        return flushSingly(batch);
+    }
 
-            statement.executeUpdate();
+    /**
+     * Retries a failed batch one write at a time, keeping the writes that fail for the next flush.
+     *
+     * @return true if every write went through.
+     */
+    private boolean flushSingly(List<PendingWrite> batch){
+        int dropped = 0;
+        int next = 0;
+        try (Connection connection = source.getConnection()){
+            for (; next < batch.size(); next++){
+                PendingWrite write = batch.get(next);
+                try {
+                    writeBatch(connection, Collections.singletonList(write));
+                } catch (SQLException ex) {
+                    if (isConnectionFailure(ex)) throw ex;
+                    if (!retryLater(write, ex)) dropped++;
+                } catch (Exception ex) {
+                    if (!retryLater(write, ex)) dropped++;
+                }
+            }
+        } catch (SQLException ex) {
+            //everything from the write that hit the failure onwards is untried, so none of it counts as an attempt
+            logger.warn("Database unavailable, keeping " + (batch.size() - next) + " writes for the next flush.", ex);
+            retrying.addAll(batch.subList(next, batch.size()));
+            return false;
+        }
+        return dropped == 0 && retrying.isEmpty();
+    }
+
+    private void writeBatch(Connection connection, List<PendingWrite> batch) throws SQLException {
+        List<ArchivedChannel> channels = new ArrayList<>();
+        List<Message> messages = new ArrayList<>();
+        List<Long> deletions = new ArrayList<>();
+        for (PendingWrite pending : batch){
+            if (pending.channel != null){
+                channels.add(pending.channel);
+            } else if (pending.message != null){
+                messages.add(pending.message);
+            } else {
+                deletions.add(pending.deletedID);
+            }
+        }
+
+        upsertChannels(connection, channels);
+        if (!messages.isEmpty()){
+            writeMessages(connection, messages);
+        }
+        if (!deletions.isEmpty()){
+            try (PreparedStatement statement = connection.prepareStatement(deleteMessage)){
+                for (long messageID : deletions){
+                    statement.setLong(1, messageID);
+                    statement.setLong(2, messageID);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+        }
+    }
+
+    /**
+     * Keeps a write that failed on its own to be tried again on the next flush, unless it has failed too many times.
+     *
+     * @return false if the write was dropped.
+     */
+    private boolean retryLater(PendingWrite write, Exception cause){
+        if (++write.attempts >= MAX_FLUSH_ATTEMPTS){
+            logger.error("Dropping " + write + " after " + write.attempts + " failed flushes.", cause);
+            return false;
+        }
+        logger.warn("Failed to write " + write + ", it will be retried on the next flush.", cause);
+        retrying.add(write);
+        return true;
+    }
+
+    /**
+     * @return true if the failure was in reaching the database, rather than in the statement itself.
+     */
+    private static boolean isConnectionFailure(SQLException ex){
+        //hikari throws SQLTransientConnectionException when it can't hand out a connection, and postgres uses class 08
+        return ex instanceof SQLTransientConnectionException
+                || ex instanceof SQLNonTransientConnectionException
+                || (ex.getSQLState() != null && ex.getSQLState().startsWith("08"));
+    }
+
+    /**
+     * Writes out everything queued so far, waiting for it to finish.
+     *
+     * @param timeoutMs how long to wait
+     * @return true if everything queued before the call is now in the database, false if anything is still waiting
+     *         for a retry or was dropped.
+     */
+    boolean drain(long timeoutMs){
+        Future<Boolean> drained = flushTimer.submit(this::flush);
+        try {
+            return drained.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex){
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException ex){
+            logger.warn("Failed to drain the message queue", ex);
+        }
+        return false;
+    }
+
+    /**
+     * Writes out everything still queued or waiting for a retry and stops the flush timer, for when the bot shuts down.
+     *
+     * @param timeoutMs how long to wait for the final flush
+     */
+    void close(long timeoutMs){
+        if (!drain(timeoutMs)){
+            logger.error("Shutting down before every queued message write was archived.");
+        }
+        flushTimer.shutdownNow();
+    }
+
+    public void insertMessage(Message message){
+        try (Connection connection = source.getConnection()){
+
+            writeMessages(connection, Collections.singletonList(message));
 
         } catch (SQLException ex) {
             logger.warn("Failed to insert message.", ex);
@@ -80,18 +528,128 @@ public class MessageStorage {
 
 
     public void insertBulkMessage(List<Message> messages){
-        try (Connection connection = source.getConnection();
-             PreparedStatement statement = connection.prepareStatement(insertMessage)){
+        try (Connection connection = source.getConnection()){
+
+            writeMessages(connection, messages);
+
+        } catch (SQLException ex) {
+            logger.warn("Failed to insert messages.", ex);
+        }
+    }
+
+    private void writeMessages(Connection connection, List<Message> messages) throws SQLException {
+        //a batch can hold several revisions of a message, and only the newest one's media is kept
+        Map<Long, Message> newest = new LinkedHashMap<>();
+        try (PreparedStatement statement = connection.prepareStatement(insertMessage)){
             for (Message message : messages) {
                 addData(statement, message);
                 statement.addBatch();
+                newest.merge(message.getIdLong(), message, (held, next) -> revisionTime(next) >= revisionTime(held) ? next : held);
             }
 
             statement.executeBatch();
+        }
+        List<MessageMedia> media = new ArrayList<>();
+        try (PreparedStatement statement = connection.prepareStatement(deleteStaleMedia)){
+            for (Message message : newest.values()){
+                List<MessageMedia> current = MessageMedia.fromMessage(message);
+                media.addAll(current);
+                statement.setLong(1, message.getIdLong());
+                statement.setInt(2, current.size());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+        insertMedia(connection, media);
+    }
+
+    private static long revisionTime(Message message){
+        return (message.getTimeEdited() != null ? message.getTimeEdited() : message.getTimeCreated()).toInstant().toEpochMilli();
+    }
+
+    private void insertMedia(Connection connection, List<MessageMedia> media) throws SQLException {
+        for (int start = 0; start < media.size(); start += MEDIA_ROWS_PER_STATEMENT){
+            List<MessageMedia> chunk = media.subList(start, Math.min(media.size(), start + MEDIA_ROWS_PER_STATEMENT));
+            String sql = chunk.size() == MEDIA_ROWS_PER_STATEMENT ? insertMediaChunk : buildInsertMedia(chunk.size());
+            try (PreparedStatement statement = connection.prepareStatement(sql)){
+                int param = 1;
+                for (MessageMedia item : chunk){
+                    statement.setLong(param++, item.getMessageId());
+                    statement.setLong(param++, item.getChannelId());
+                    statement.setInt(param++, item.getMediaIndex());
+                    statement.setString(param++, item.getMediaKind());
+                    statement.setString(param++, item.getUrl());
+                    setNullableInt(statement, param++, item.getSize());
+                    statement.setString(param++, item.getContentType());
+                    setNullableInt(statement, param++, item.getWidth());
+                    setNullableInt(statement, param++, item.getHeight());
+                    statement.setLong(param++, item.getCreated());
+                }
+                statement.executeUpdate();
+            }
+        }
+    }
+
+    private static void setNullableInt(PreparedStatement statement, int param, Integer value) throws SQLException {
+        if (value == null){
+            statement.setNull(param, Types.INTEGER);
+        } else {
+            statement.setInt(param, value);
+        }
+    }
 
+    private static Integer getNullableInt(ResultSet set, String column) throws SQLException {
+        int value = set.getInt(column);
+        return set.wasNull() ? null : value;
+    }
+
+    private static String buildInsertMedia(int rows){
+        StringBuilder sql = new StringBuilder(insertMediaPrefix.length() + rows * (insertMediaRow.length() + 2) + insertMediaSuffix.length());
+        sql.append(insertMediaPrefix);
+        for (int i = 0; i < rows; i++){
+            if (i > 0) sql.append(", ");
+            sql.append(insertMediaRow);
+        }
+        return sql.append(insertMediaSuffix).toString();
+    }
+
+    /**
+     * Fetches every attachment and embed posted in a channel within a time range.
+     *
+     * @param channelID the snowflake of the channel
+     * @param fromEpoch the start of the range, inclusive, in epoch milliseconds
+     * @param toEpoch   the end of the range, exclusive, in epoch milliseconds
+     * @return the media, oldest first, or null on failure.
+     */
+    public List<MessageMedia> getMediaForChannel(long channelID, long fromEpoch, long toEpoch){
+        try (Connection connection = source.getConnection();
+             PreparedStatement statement = connection.prepareStatement(fetchMediaForChannel)){
+
+            statement.setLong(1, channelID);
+            statement.setLong(2, fromEpoch);
+            statement.setLong(3, toEpoch);
+            List<MessageMedia> media = new ArrayList<>();
+            try (ResultSet set = statement.executeQuery()){
+                while (set.next()){
+                    media.add(new MessageMedia(
+                            set.getLong("message_id"),
+                            set.getLong("channel_id"),
+                            set.getInt("media_index"),
+                            set.getString("media_kind"),
+                            set.getString("url"),
+                            getNullableInt(set, "size_bytes"),
+                            set.getString("content_type"),
+                            getNullableInt(set, "width"),
+                            getNullableInt(set, "height"),
+                            set.getLong("created")
+                    ));
+                }
+            }
+            return media;
         } catch (SQLException ex) {
-            logger.warn("Failed to insert messages.", ex);
+            logger.warn("Failed to fetch media for channel.", ex);
         }
+        return null;
     }
 
 
@@ -118,8 +676,191 @@ public class MessageStorage {
                         message.getTimeEdited().toInstant() : message.getTimeCreated().toInstant(),
                 ZoneOffset.UTC)).getTime());
         statement.setLong(4, !message.getType().isSystem() ? message.getAuthor().getIdLong() : -1);
-        statement.setString(5, message.getContentRaw());
         statement.setString(6, message.getAttachments().size() > 0 ? message.getAttachments().get(0).getUrl() : null);
+        MessageContentCodec codec = activeCodec;
+        if (codec == null){
+            statement.setString(5, message.getContentRaw());
+            statement.setNull(7, Types.BINARY);
+            statement.setNull(8, Types.INTEGER);
+        } else {
+            statement.setNull(5, Types.VARCHAR);
+            statement.setBytes(7, codec.encode(message.getContentRaw()));
+            if (codec.getDictionaryId() < 0){
+                statement.setNull(8, Types.INTEGER);
+            } else {
+                statement.setInt(8, codec.getDictionaryId());
+            }
+        }
+    }
+
+    /**
+     * Fetches the most recent revision of a message's content, decompressing it if it was archived compressed.
+     *
+     * @param messageID the snowflake of the message
+     * @return the content, or null if the message was not found.
+     */
+    public String getMessageContent(long messageID){
+        try (Connection connection = source.getConnection();
+             PreparedStatement statement = connection.prepareStatement(fetchMessageContent)){
+
+            statement.setLong(1, messageID);
+            try (ResultSet set = statement.executeQuery()){
+                if (set.next()){
+                    return readContent(connection, set);
+                }
+            }
+        } catch (SQLException ex) {
+            logger.warn("Failed to fetch message content.", ex);
+        }
+        return null;
+    }
+
+    /**
+     * Trains a new dictionary from a sample of the archive and stores it as the latest version.
+     * If compression is enabled, new messages will be compressed with it from now on.
+     *
+     * @param sampleSize the maximum number of messages to train from
+     * @return the codec for the new dictionary, or null if it could not be stored.
+     */
+    public MessageContentCodec trainDictionary(int sampleSize){
+        try (Connection connection = source.getConnection()){
+            List<String> samples = sampleContent(connection, sampleTrainingContent, sampleSize);
+            byte[] dictionary = MessageContentCodec.train(samples);
+            try (PreparedStatement statement = connection.prepareStatement(insertDictionary)){
+                statement.setBytes(1, dictionary);
+                statement.setInt(2, samples.size());
+                try (ResultSet set = statement.executeQuery()){
+                    set.next();
+                    MessageContentCodec codec = new MessageContentCodec(set.getInt("dictionary_id"), dictionary);
+                    codecs.put(codec.getDictionaryId(), codec);
+                    if (compressContent){
+                        activeCodec = codec;
+                    }
+                    logger.info("Trained " + codec + " from " + samples.size() + " messages");
+                    return codec;
+                }
+            }
+        } catch (SQLException ex) {
+            logger.error("Failed to train message dictionary.", ex);
+        }
+        return null;
+    }
+
+    /**
+     * Compares plain deflate against the latest dictionary over a sample of the archive that was held back from
+     * training.
+     *
+     * @param sampleSize the maximum number of messages to benchmark against
+     * @return a human readable report of compression ratio and encode/decode cost.
+     */
+    public String benchmarkCompression(int sampleSize){
+        try (Connection connection = source.getConnection()){
+            List<String> samples = sampleContent(connection, sampleHeldOutContent, sampleSize);
+            MessageContentCodec latest = fetchLatestCodec();
+            StringBuilder report = new StringBuilder("Sampled from the 1 in " + HOLDOUT_BUCKETS + " messages held back from training; " +
+                    "dictionaries trained before the hold-back may have seen some of them.\n\n");
+            report.append(new MessageContentCodec(-1, null).benchmark(samples));
+            if (latest.getDictionaryId() >= 0){
+                report.append("\n\n").append(latest.benchmark(samples));
+            }
+            return report.toString();
+        } catch (SQLException ex) {
+            logger.error("Failed to benchmark message compression.", ex);
+            return "Failed: " + ex.getMessage();
+        }
+    }
+
+    public boolean isCompressingContent(){
+        return activeCodec != null;
+    }
+
+    private List<String> sampleContent(Connection connection, String query, int sampleSize) throws SQLException {
+        List<String> samples = new ArrayList<>();
+        try (PreparedStatement statement = connection.prepareStatement(query)){
+            statement.setDouble(1, SAMPLE_PERCENT);
+            statement.setInt(2, HOLDOUT_BUCKETS);
+            statement.setInt(3, sampleSize);
+            try (ResultSet set = statement.executeQuery()){
+                while (set.next()){
+                    samples.add(readContent(connection, set));
+                }
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Reads the content column of a messages row, decompressing it if necessary.
+     * The row must include message_content, message_content_compressed and dictionary_id.
+     */
+    String readContent(Connection connection, ResultSet set) throws SQLException {
+        byte[] compressed = set.getBytes("message_content_compressed");
+        if (compressed == null){
+            return set.getString("message_content");
+        }
+        int dictionaryId = set.getInt("dictionary_id");
+        if (set.wasNull()){
+            dictionaryId = -1;
+        }
+        return getCodec(connection, dictionaryId).decode(compressed);
+    }
+
+    private MessageContentCodec getCodec(Connection connection, int dictionaryId) throws SQLException {
+        MessageContentCodec codec = codecs.get(dictionaryId);
+        if (codec != null) return codec;
+        if (dictionaryId < 0){
+            codec = new MessageContentCodec(-1, null);
+        } else {
+            try (PreparedStatement statement = connection.prepareStatement(fetchDictionary)){
+                statement.setInt(1, dictionaryId);
+                try (ResultSet set = statement.executeQuery()){
+                    if (!set.next()){
+                        throw new SQLException("Missing message dictionary " + dictionaryId);
+                    }
+                    codec = new MessageContentCodec(dictionaryId, set.getBytes("dictionary"));
+                }
+            }
+        }
+        codecs.put(dictionaryId, codec);
+        return codec;
+    }
+
+    private MessageContentCodec fetchLatestCodec(){
+        try (Connection connection = source.getConnection();
+             PreparedStatement statement = connection.prepareStatement(fetchLatestDictionary);
+             ResultSet set = statement.executeQuery()){
+            if (set.next()){
+                MessageContentCodec codec = new MessageContentCodec(set.getInt("dictionary_id"), set.getBytes("dictionary"));
+                codecs.put(codec.getDictionaryId(), codec);
+                return codec;
+            }
+        } catch (SQLException ex) {
+            logger.warn("Failed to fetch latest message dictionary, falling back to plain deflate.", ex);
+        }
+        return new MessageContentCodec(-1, null);
+    }
+
+    private static class PendingWrite {
+        final Message message;
+        final long deletedID;
+        final ArchivedChannel channel;
+        /**
+         * How many flushes this write has failed on its own.  Only touched on the flush timer.
+         */
+        int attempts = 0;
+
+        PendingWrite(Message message, long deletedID, ArchivedChannel channel){
+            this.message = message;
+            this.deletedID = deletedID;
+            this.channel = channel;
+        }
+
+        @Override
+        public String toString(){
+            if (channel != null) return "channel " + channel.getSnowflake();
+            if (message != null) return "message " + message.getIdLong() + " in " + message.getChannel().getIdLong();
+            return "deletion of message " + deletedID;
+        }
     }
 
 }
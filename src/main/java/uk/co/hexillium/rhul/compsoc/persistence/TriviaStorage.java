@@ -14,6 +14,7 @@ import java.time.ZoneId;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.function.LongConsumer;
 
 public class TriviaStorage {
 
@@ -66,11 +67,20 @@ public class TriviaStorage {
 
     private final static String totalPages = "select count(*) as count from numvember where season_id = ?;";
     private HikariDataSource source;
+    private volatile LongConsumer onGuildChanged = guildID -> {};
 
     public TriviaStorage(HikariDataSource source) {
         this.source = source;
     }
 
+    /**
+     * @param onGuildChanged called after every score change.  Scores show up in every guild's member list, as they
+     *                       aren't kept per guild, so this is always called with {@link ExperienceStorage#ALL_GUILDS}
+     */
+    public void setOnGuildChanged(LongConsumer onGuildChanged){
+        this.onGuildChanged = onGuildChanged;
+    }
+
     public ScoreHistory[] fetchScoreHistory(int season, long guildId, long... userIDs){
         if (userIDs.length == 0) return new ScoreHistory[0];
         try (Connection connection = source.getConnection();
@@ -138,6 +148,7 @@ public class TriviaStorage {
                 statement.executeUpdate();
             }
             connection.prepareStatement("COMMIT TRANSACTION;");
+            onGuildChanged.accept(ExperienceStorage.ALL_GUILDS);
         } catch (SQLException ex) {
             LOGGER.error("Failed to update score", ex);
         }
@@ -0,0 +1,71 @@
+package uk.co.hexillium.rhul.compsoc.persistence.entities;
+
+import net.dv8tion.jda.api.entities.TextChannel;
+
+import java.util.Objects;
+
+public class ArchivedChannel {
+
+    final long snowflake;
+    final String name;
+    final String description;
+    final boolean deleted;
+
+    public static ArchivedChannel fromChannel(TextChannel channel){
+        return new ArchivedChannel(channel.getIdLong(), channel.getName(), channel.getTopic(), false);
+    }
+
+    public ArchivedChannel(long snowflake, String name, String description, boolean deleted) {
+        this.snowflake = snowflake;
+        this.name = name;
+        this.description = description;
+        this.deleted = deleted;
+    }
+
+    public ArchivedChannel asDeleted(){
+        return new ArchivedChannel(snowflake, name, description, true);
+    }
+
+    public long getSnowflake() {
+        return snowflake;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public boolean isDeleted() {
+        return deleted;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        ArchivedChannel that = (ArchivedChannel) o;
+
+        return snowflake == that.snowflake
+                && deleted == that.deleted
+                && Objects.equals(name, that.name)
+                && Objects.equals(description, that.description);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(snowflake, name, description, deleted);
+    }
+
+    @Override
+    public String toString() {
+        return "ArchivedChannel{" +
+                "snowflake=" + snowflake +
+                ", name='" + name + '\'' +
+                ", deleted=" + deleted +
+                '}';
+    }
+}
@@ -0,0 +1,30 @@
+package uk.co.hexillium.rhul.compsoc.persistence.entities;
+
+public class ChannelActivity {
+
+    long channelID;
+    long messages;
+    int authors;
+
+    public ChannelActivity(long channelID, long messages, int authors) {
+        this.channelID = channelID;
+        this.messages = messages;
+        this.authors = authors;
+    }
+
+    public long getChannelId() {
+        return channelID;
+    }
+
+    public String getChannelId_str() {
+        return String.valueOf(channelID);
+    }
+
+    public long getMessages() {
+        return messages;
+    }
+
+    public int getAuthors() {
+        return authors;
+    }
+}
@@ -0,0 +1,20 @@
+package uk.co.hexillium.rhul.compsoc.persistence.entities;
+
+import java.util.List;
+
+public class GuildXPPage extends GuildXPData {
+
+    String nextCursor;
+
+    public GuildXPPage(List<MemberXPData> leaderboard, String guildName, String guildAvatar, long guildID, String nextCursor) {
+        super(leaderboard, guildName, guildAvatar, guildID);
+        this.nextCursor = nextCursor;
+    }
+
+    /**
+     * @return the cursor for the page after this one, or null if this is the last page.
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
@@ -0,0 +1,23 @@
+package uk.co.hexillium.rhul.compsoc.persistence.entities;
+
+public class HourlyActivity {
+
+    long hour;
+    long messages;
+
+    public HourlyActivity(long hour, long messages) {
+        this.hour = hour;
+        this.messages = messages;
+    }
+
+    /**
+     * @return the start of the hour, in epoch milliseconds
+     */
+    public long getHour() {
+        return hour;
+    }
+
+    public long getMessages() {
+        return messages;
+    }
+}
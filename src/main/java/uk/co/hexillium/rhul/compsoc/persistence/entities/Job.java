@@ -10,20 +10,56 @@ public class Job {
     String jobType;
     long targetEpoch;
     DataObject data;
+    long recurringID;
+    int attempts = 0;
+    String lastError;
     volatile boolean completed = false;
+    volatile long handedOffEpoch;
 
     public Job(long jobID, long initiatedEpoch, long targetEpoch, String jobType, DataObject data) {
+        this(jobID, initiatedEpoch, targetEpoch, jobType, data, -1);
+    }
+
+    /**
+     * @param recurringID the recurring job definition this is an occurrence of, or -1 for a one-off job
+     */
+    public Job(long jobID, long initiatedEpoch, long targetEpoch, String jobType, DataObject data, long recurringID) {
         this.jobID = jobID;
         this.initiatedEpoch = initiatedEpoch;
         this.jobType = jobType;
         this.targetEpoch = targetEpoch;
         this.data = data;
+        this.recurringID = recurringID;
     }
 
     public void setJobID(long jobID) {
         this.jobID = jobID;
     }
 
+    public void setTargetEpoch(long targetEpoch) {
+        this.targetEpoch = targetEpoch;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    public void setLastError(String lastError) {
+        this.lastError = lastError;
+    }
+
+    /**
+     * @param handedOffEpoch when the scheduler took this job out of its wheel to run it
+     */
+    public void setHandedOffEpoch(long handedOffEpoch) {
+        this.handedOffEpoch = handedOffEpoch;
+    }
+
+    @JsonIgnore
+    public long getHandedOffEpoch() {
+        return handedOffEpoch;
+    }
+
     public boolean isCompleted() {
         return completed;
     }
@@ -48,6 +84,25 @@ public class Job {
         return initiatedEpoch;
     }
 
+    public long getRecurringID() {
+        return recurringID;
+    }
+
+    public boolean isRecurring() {
+        return recurringID >= 0;
+    }
+
+    /**
+     * @return how many times this job has failed so far.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
     public String getSerialisedData(){
         return data.toString();
     }
@@ -80,6 +135,8 @@ public class Job {
                 ", jobType='" + jobType + '\'' +
                 ", targetEpoch=" + targetEpoch +
                 ", data=`" + data.toString() + "`" +
+                ", recurringID=" + recurringID +
+                ", attempts=" + attempts +
                 ", completed=" + completed +
                 '}';
     }
@@ -0,0 +1,130 @@
+package uk.co.hexillium.rhul.compsoc.persistence.entities;
+
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.MessageEmbed;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class MessageMedia {
+
+    public static final String KIND_ATTACHMENT = "attachment";
+    public static final String KIND_EMBED_PREFIX = "embed_";
+
+    long messageId;
+    long channelId;
+    int mediaIndex;
+    String mediaKind;
+    String url;
+    Integer size;
+    String contentType;
+    Integer width;
+    Integer height;
+    long created;
+
+    public static List<MessageMedia> fromMessage(Message message){
+        List<MessageMedia> media = new ArrayList<>();
+        long created = message.getTimeCreated().toInstant().toEpochMilli();
+        int index = 0;
+        for (Message.Attachment attachment : message.getAttachments()){
+            media.add(new MessageMedia(message.getIdLong(), message.getChannel().getIdLong(), index++, KIND_ATTACHMENT,
+                    attachment.getUrl(), attachment.getSize(), attachment.getContentType(),
+                    dimension(attachment.getWidth()), dimension(attachment.getHeight()), created));
+        }
+        for (MessageEmbed embed : message.getEmbeds()){
+            String url = embed.getUrl();
+            int width = -1, height = -1;
+            if (embed.getImage() != null){
+                if (url == null) url = embed.getImage().getUrl();
+                width = embed.getImage().getWidth();
+                height = embed.getImage().getHeight();
+            } else if (embed.getVideoInfo() != null){
+                if (url == null) url = embed.getVideoInfo().getUrl();
+                width = embed.getVideoInfo().getWidth();
+                height = embed.getVideoInfo().getHeight();
+            } else if (embed.getThumbnail() != null){
+                if (url == null) url = embed.getThumbnail().getUrl();
+                width = embed.getThumbnail().getWidth();
+                height = embed.getThumbnail().getHeight();
+            }
+            media.add(new MessageMedia(message.getIdLong(), message.getChannel().getIdLong(), index++,
+                    KIND_EMBED_PREFIX + embed.getType().name().toLowerCase(),
+                    url, null, null, dimension(width), dimension(height), created));
+        }
+        return media;
+    }
+
+    /**
+     * @return the width or height, or null if JDA doesn't know it.
+     */
+    private static Integer dimension(int value){
+        return value > 0 ? value : null;
+    }
+
+    /**
+     * @param size   the size in bytes, or null if unknown
+     * @param width  the width in pixels, or null if unknown or not an image
+     * @param height the height in pixels, or null if unknown or not an image
+     */
+    public MessageMedia(long messageId, long channelId, int mediaIndex, String mediaKind, String url, Integer size,
+                        String contentType, Integer width, Integer height, long created) {
+        this.messageId = messageId;
+        this.channelId = channelId;
+        this.mediaIndex = mediaIndex;
+        this.mediaKind = mediaKind;
+        this.url = url;
+        this.size = size;
+        this.contentType = contentType;
+        this.width = width;
+        this.height = height;
+        this.created = created;
+    }
+
+    public long getMessageId() {
+        return messageId;
+    }
+
+    public String getMessageId_str() {
+        return String.valueOf(messageId);
+    }
+
+    public long getChannelId() {
+        return channelId;
+    }
+
+    public String getChannelId_str() {
+        return String.valueOf(channelId);
+    }
+
+    public int getMediaIndex() {
+        return mediaIndex;
+    }
+
+    public String getMediaKind() {
+        return mediaKind;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public Integer getSize() {
+        return size;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public Integer getWidth() {
+        return width;
+    }
+
+    public Integer getHeight() {
+        return height;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+}
@@ -0,0 +1,253 @@
+package uk.co.hexillium.rhul.compsoc.time;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Locale;
+
+/**
+ * A five field cron expression ({@code minute hour day-of-month month day-of-week}) evaluated in a time zone.
+ * <p>
+ * Each field is compiled to a bitset when parsed, so finding the next fire time jumps straight to the next allowed
+ * month, day, hour and minute in turn instead of stepping through every minute.  Fields accept {@code *}, single
+ * values, ranges ({@code 1-5}), steps ({@code *}{@code /15}, {@code 10-40/10}) and comma separated lists; months and
+ * days of the week also accept three letter names.  The macros {@code @hourly}, {@code @daily}, {@code @weekly},
+ * {@code @monthly} and {@code @yearly} are supported too.
+ * <p>
+ * As with standard cron, when both day-of-month and day-of-week are restricted a day matching either will do.
+ * Times that fall into a daylight saving gap fire at the first valid time after the gap.
+ */
+public class CronExpression {
+
+    private static final String[] MONTH_NAMES = {"JAN", "FEB", "MAR", "APR", "MAY", "JUN", "JUL", "AUG", "SEP", "OCT", "NOV", "DEC"};
+    private static final String[] DAY_NAMES = {"SUN", "MON", "TUE", "WED", "THU", "FRI", "SAT"};
+
+    /**
+     * No expression can go longer than this many years without firing (29th February on a Monday is 28 years)
+     */
+    private static final int MAX_YEARS_SEARCHED = 30;
+
+    private final String expression;
+    private final ZoneId zone;
+    private final long minutes;     // bits 0-59
+    private final long hours;       // bits 0-23
+    private final long daysOfMonth; // bits 1-31
+    private final long months;      // bits 1-12
+    private final long daysOfWeek;  // bits 0-6, Sunday is 0
+    private final boolean dayOfMonthRestricted;
+    private final boolean dayOfWeekRestricted;
+
+    private CronExpression(String expression, ZoneId zone, String[] fields) {
+        this.expression = expression;
+        this.zone = zone;
+        this.minutes = parseField(fields[0], 0, 59, null);
+        this.hours = parseField(fields[1], 0, 23, null);
+        this.daysOfMonth = parseField(fields[2], 1, 31, null);
+        this.months = parseField(fields[3], 1, 12, MONTH_NAMES);
+        long dow = parseField(fields[4], 0, 7, DAY_NAMES);
+        //7 is also Sunday
+        this.daysOfWeek = (dow | (dow >>> 7)) & 0x7F;
+        this.dayOfMonthRestricted = !fields[2].equals("*") && !fields[2].equals("?");
+        this.dayOfWeekRestricted = !fields[4].equals("*") && !fields[4].equals("?");
+    }
+
+    /**
+     * Parses a cron expression.
+     *
+     * @param expression the expression, either five fields or one of the macros
+     * @param zone       the time zone the expression is evaluated in
+     * @return the compiled expression
+     * @throws IllegalArgumentException if the expression is malformed, or can never fire
+     */
+    public static CronExpression parse(String expression, ZoneId zone) {
+        String trimmed = expression.trim();
+        String[] fields;
+        switch (trimmed.toLowerCase(Locale.ROOT)) {
+            case "@hourly":
+                fields = new String[]{"0", "*", "*", "*", "*"};
+                break;
+            case "@daily":
+            case "@midnight":
+                fields = new String[]{"0", "0", "*", "*", "*"};
+                break;
+            case "@weekly":
+                fields = new String[]{"0", "0", "*", "*", "0"};
+                break;
+            case "@monthly":
+                fields = new String[]{"0", "0", "1", "*", "*"};
+                break;
+            case "@yearly":
+            case "@annually":
+                fields = new String[]{"0", "0", "1", "1", "*"};
+                break;
+            default:
+                fields = trimmed.split("\\s+");
+        }
+        if (fields.length != 5) {
+            throw new IllegalArgumentException("A cron expression needs five fields: minute hour day-of-month month day-of-week");
+        }
+        CronExpression cron = new CronExpression(trimmed, zone, fields);
+        if (cron.next(System.currentTimeMillis()) < 0) {
+            throw new IllegalArgumentException("`" + trimmed + "` never fires");
+        }
+        return cron;
+    }
+
+    public String getExpression() {
+        return expression;
+    }
+
+    public ZoneId getZone() {
+        return zone;
+    }
+
+    /**
+     * Finds the first time strictly after the one given that matches the expression.
+     *
+     * @param after the time to search from, in epoch milliseconds
+     * @return the next fire time, in epoch milliseconds, or -1 if it never fires again.
+     */
+    public long next(long after) {
+        //cron works in whole minutes, so start at the minute after
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(after), zone)
+                .withSecond(0).withNano(0).plusMinutes(1);
+        int lastYear = time.getYear() + MAX_YEARS_SEARCHED;
+
+        while (time.getYear() <= lastYear) {
+            int month = nextBit(months, time.getMonthValue());
+            if (month < 0 || month > 12) {
+                time = LocalDateTime.of(time.getYear() + 1, 1, 1, 0, 0);
+                continue;
+            }
+            if (month != time.getMonthValue()) {
+                time = LocalDateTime.of(time.getYear(), month, 1, 0, 0);
+            }
+
+            int day = nextBit(dayMask(time.toLocalDate()), time.getDayOfMonth());
+            if (day < 0) {
+                time = time.withDayOfMonth(1).plusMonths(1).withHour(0).withMinute(0);
+                continue;
+            }
+            if (day != time.getDayOfMonth()) {
+                time = time.withDayOfMonth(day).withHour(0).withMinute(0);
+            }
+
+            int hour = nextBit(hours, time.getHour());
+            if (hour < 0) {
+                time = time.plusDays(1).withHour(0).withMinute(0);
+                continue;
+            }
+            if (hour != time.getHour()) {
+                time = time.withHour(hour).withMinute(0);
+            }
+
+            int minute = nextBit(minutes, time.getMinute());
+            if (minute < 0) {
+                time = time.withMinute(0).plusHours(1);
+                continue;
+            }
+            time = time.withMinute(minute);
+
+            long epoch = ZonedDateTime.ofLocal(time, zone, null).toInstant().toEpochMilli();
+            if (epoch > after) {
+                return epoch;
+            }
+            //the clocks went back and this wall time has already passed once
+            time = time.plusMinutes(1);
+        }
+        return -1;
+    }
+
+    /**
+     * @return the days of the given month that match, as bits 1-31.
+     */
+    private long dayMask(LocalDate date) {
+        int length = date.lengthOfMonth();
+        long inMonth = ((1L << (length + 1)) - 1) & ~1L;
+        long byDayOfMonth = daysOfMonth & inMonth;
+        if (!dayOfWeekRestricted) {
+            return byDayOfMonth;
+        }
+        //day-of-week of the 1st, with Sunday as 0
+        int firstDow = date.withDayOfMonth(1).getDayOfWeek().getValue() % 7;
+        long byDayOfWeek = 0;
+        for (int dow = 0; dow < 7; dow++) {
+            if ((daysOfWeek & (1L << dow)) == 0) continue;
+            for (int day = 1 + Math.floorMod(dow - firstDow, 7); day <= length; day += 7) {
+                byDayOfWeek |= 1L << day;
+            }
+        }
+        if (!dayOfMonthRestricted) {
+            return byDayOfWeek;
+        }
+        return byDayOfMonth | byDayOfWeek;
+    }
+
+    /**
+     * @return the lowest set bit at or above from, or -1 if there are none.
+     */
+    private static int nextBit(long mask, int from) {
+        if (from > 63) return -1;
+        long remaining = mask & (-1L << from);
+        return remaining == 0 ? -1 : Long.numberOfTrailingZeros(remaining);
+    }
+
+    private static long parseField(String field, int min, int max, String[] names) {
+        long mask = 0;
+        for (String part : field.split(",")) {
+            int step = 1;
+            int slash = part.indexOf('/');
+            if (slash >= 0) {
+                step = parseValue(part.substring(slash + 1), 1, max, null, 0);
+                part = part.substring(0, slash);
+            }
+            int from, to;
+            if (part.equals("*") || part.equals("?")) {
+                from = min;
+                to = max;
+            } else {
+                int dash = part.indexOf('-');
+                if (dash > 0) {
+                    from = parseValue(part.substring(0, dash), min, max, names, min);
+                    to = parseValue(part.substring(dash + 1), min, max, names, min);
+                } else {
+                    from = parseValue(part, min, max, names, min);
+                    //"5/15" means every 15 from 5
+                    to = slash >= 0 ? max : from;
+                }
+            }
+            if (from > to) {
+                throw new IllegalArgumentException("Range `" + part + "` runs backwards");
+            }
+            for (int i = from; i <= to; i += step) {
+                mask |= 1L << i;
+            }
+        }
+        return mask;
+    }
+
+    private static int parseValue(String value, int min, int max, String[] names, int nameOffset) {
+        if (names != null) {
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].equalsIgnoreCase(value)) return i + nameOffset;
+            }
+        }
+        int parsed;
+        try {
+            parsed = Integer.parseInt(value);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("`" + value + "` is not a valid cron value");
+        }
+        if (parsed < min || parsed > max) {
+            throw new IllegalArgumentException("`" + value + "` is outside of " + min + "-" + max);
+        }
+        return parsed;
+    }
+
+    @Override
+    public String toString() {
+        return expression + " (" + zone + ")";
+    }
+}
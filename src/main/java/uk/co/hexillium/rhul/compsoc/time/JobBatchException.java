@@ -0,0 +1,29 @@
+package uk.co.hexillium.rhul.compsoc.time;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Thrown by the handle of a coalescing job type when only some jobs of a batch failed.  The jobs it names are
+ * retried, or dead-lettered, on their own, and the rest of the batch counts as done.
+ */
+public class JobBatchException extends RuntimeException {
+
+    private final Map<Integer, Throwable> failures;
+
+    /**
+     * @param failures why each job failed, by its index in the batch handed to the handle
+     */
+    public JobBatchException(Map<Integer, Throwable> failures) {
+        super(failures.size() + " jobs of the batch failed");
+        this.failures = Collections.unmodifiableMap(failures);
+        failures.values().forEach(this::addSuppressed);
+    }
+
+    /**
+     * @return why each job failed, by its index in the batch; jobs not in here succeeded.
+     */
+    public Map<Integer, Throwable> getFailures() {
+        return failures;
+    }
+}
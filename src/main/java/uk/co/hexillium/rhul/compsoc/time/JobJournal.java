@@ -0,0 +1,346 @@
+package uk.co.hexillium.rhul.compsoc.time;
+
+import net.dv8tion.jda.api.utils.data.DataObject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import uk.co.hexillium.rhul.compsoc.persistence.entities.Job;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of short-lived jobs, kept in a memory-mapped file so they survive the process dying without
+ * a round trip to the database.
+ * <p>
+ * Every change to a job appends a record: the whole job when it is added or rescheduled, or just its ID once it is
+ * done.  Replaying the file on startup gives back every job that was still pending.  A record's length is written
+ * last, after its body and checksum, so a record torn by the process dying mid-write reads as the end of the log.
+ * When the file fills up, the pending jobs are written in full to a fresh file, which then atomically replaces it, so
+ * a crash part way through leaves the old journal in place.
+ * <p>
+ * Writes land in the page cache and are not forced to disk, so the journal survives the process crashing but not
+ * the machine losing power.
+ * <p>
+ * Journal jobs have IDs counting down from {@link #FIRST_ID}, so they never collide with the database's.
+ */
+public class JobJournal implements Closeable {
+
+    /**
+     * The first ID handed out; -1 already means a job that failed to insert
+     */
+    public static final long FIRST_ID = -2;
+
+    private static final int MAGIC = 0x4A4F424A; // "JOBJ"
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final byte RECORD_ADD = 1;
+    private static final byte RECORD_DONE = 2;
+
+    private static final Logger logger = LogManager.getLogger(JobJournal.class);
+
+    private final Path path;
+    private long size;
+    private FileChannel channel;
+    private FileLock lock;
+    private MappedByteBuffer buffer;
+    /**
+     * Every job still pending, by ID, in the order they were added
+     */
+    private final Map<Long, Job> pending;
+    private long nextID = FIRST_ID;
+
+    /**
+     * Opens the journal, creating it if need be, and replays it.
+     *
+     * @param path the journal file
+     * @param size how large the file is to start with; it doubles whenever the pending jobs alone would fill it
+     * @throws IOException if the file could not be opened, or is already in use by another process
+     */
+    public JobJournal(Path path, long size) throws IOException {
+        this.path = path;
+        this.pending = new LinkedHashMap<>();
+        open(Math.max(size, Files.exists(path) ? Files.size(path) : 0));
+        replay();
+    }
+
+    public static boolean isJournalID(long jobID) {
+        return jobID <= FIRST_ID;
+    }
+
+    private void open(long size) throws IOException {
+        this.size = size;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        lock = channel.tryLock();
+        if (lock == null) {
+            channel.close();
+            throw new IOException(path + " is in use by another process");
+        }
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private void replay() {
+        if (buffer.getInt(0) != MAGIC) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, 0);
+            buffer.position(HEADER_SIZE);
+            return;
+        }
+        buffer.position(HEADER_SIZE);
+        int records = 0;
+        while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining()) {
+                buffer.position(start);
+                break;
+            }
+            ByteBuffer body = buffer.slice();
+            body.limit(length);
+            if (checksum(body) != checksum) {
+                logger.warn("Job journal " + path + " has a torn record at " + start + ", ignoring the rest");
+                buffer.position(start);
+                break;
+            }
+            try {
+                readRecord(body);
+            } catch (BufferUnderflowException | IllegalArgumentException ex) {
+                logger.warn("Job journal " + path + " has an unreadable record at " + start + ", ignoring the rest", ex);
+                buffer.position(start);
+                break;
+            }
+            buffer.position(start + RECORD_HEADER_SIZE + length);
+            records++;
+        }
+        //clear out anything after the last good record so it can't be mistaken for one later
+        int end = buffer.position();
+        for (int i = end; i < Math.min(end + RECORD_HEADER_SIZE, buffer.capacity()); i++) {
+            buffer.put(i, (byte) 0);
+        }
+        if (records > 0) {
+            logger.info("Replayed " + records + " journal records, " + pending.size() + " jobs still pending");
+        }
+    }
+
+    private void readRecord(ByteBuffer body) {
+        byte kind = body.get();
+        long jobID = body.getLong();
+        nextID = Math.min(nextID, jobID - 1);
+        if (kind == RECORD_DONE) {
+            pending.remove(jobID);
+            return;
+        }
+        if (kind != RECORD_ADD) {
+            throw new IllegalArgumentException("Unknown record kind " + kind);
+        }
+        long initiated = body.getLong();
+        long target = body.getLong();
+        int attempts = body.getInt();
+        String type = readString(body);
+        String data = readString(body);
+        String lastError = body.get() == 1 ? readString(body) : null;
+        Job job = new Job(jobID, initiated, target, type, DataObject.fromJson(data));
+        job.setAttempts(attempts);
+        job.setLastError(lastError);
+        pending.put(jobID, job);
+    }
+
+    /**
+     * @return every job still pending, in the order they were added.
+     */
+    public synchronized List<Job> getPending() {
+        return new ArrayList<>(pending.values());
+    }
+
+    /**
+     * Adds a job to the journal, giving it an ID.
+     *
+     * @param job the job to add
+     * @return true if the job was written.
+     */
+    public synchronized boolean add(Job job) {
+        long jobID = nextID--;
+        job.setJobID(jobID);
+        return update(job);
+    }
+
+    /**
+     * Records a change to a job already in the journal, such as a new target time after a failed attempt.
+     *
+     * @param job the job, as it now is
+     * @return true if the job was written.
+     */
+    public synchronized boolean update(Job job) {
+        if (!append(encode(job))) {
+            return false;
+        }
+        pending.put(job.getJobID(), job);
+        return true;
+    }
+
+    /**
+     * @return the body of a record holding the whole job.
+     */
+    private static ByteBuffer encode(Job job) {
+        byte[] type = job.getJobType().getBytes(StandardCharsets.UTF_8);
+        byte[] data = job.getSerialisedData().getBytes(StandardCharsets.UTF_8);
+        byte[] error = job.getLastError() == null ? null : job.getLastError().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer body = ByteBuffer.allocate(1 + 8 + 8 + 8 + 4 + 4 + type.length + 4 + data.length + 1 + (error == null ? 0 : 4 + error.length));
+        body.put(RECORD_ADD).putLong(job.getJobID()).putLong(job.getInitiatedEpoch()).putLong(job.getTargetEpoch()).putInt(job.getAttempts());
+        body.putInt(type.length).put(type);
+        body.putInt(data.length).put(data);
+        if (error == null) {
+            body.put((byte) 0);
+        } else {
+            body.put((byte) 1).putInt(error.length).put(error);
+        }
+        body.flip();
+        return body;
+    }
+
+    /**
+     * Records that a job is done with, whether it ran, was cancelled or was handed over to the database.
+     *
+     * @param jobID the ID of the job
+     */
+    public synchronized void remove(long jobID) {
+        if (pending.remove(jobID) == null) return;
+        ByteBuffer body = ByteBuffer.allocate(1 + 8);
+        body.put(RECORD_DONE).putLong(jobID);
+        body.flip();
+        append(body);
+    }
+
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    private boolean append(ByteBuffer body) {
+        int needed = RECORD_HEADER_SIZE + body.remaining();
+        if (buffer.remaining() < needed + RECORD_HEADER_SIZE) {
+            try {
+                compact(needed);
+            } catch (IOException ex) {
+                logger.error("Failed to compact job journal " + path, ex);
+                return false;
+            }
+        }
+        writeRecord(buffer, body);
+        return true;
+    }
+
+    private static void writeRecord(ByteBuffer target, ByteBuffer body) {
+        int start = target.position();
+        int length = body.remaining();
+        int checksum = checksum(body);
+        target.position(start + RECORD_HEADER_SIZE);
+        target.put(body);
+        target.putInt(start + 4, checksum);
+        //the length goes in last, as it is what marks the record as present
+        target.putInt(start, length);
+    }
+
+    /**
+     * Rewrites the pending jobs to a new file, which then replaces the journal.  The old journal stays in place until
+     * the new one is complete, so a crash at any point leaves one or the other whole.
+     *
+     * @param needed room needed for the record waiting to be written
+     */
+    private void compact(int needed) throws IOException {
+        List<Job> live = new ArrayList<>(pending.values());
+        Path temp = path.resolveSibling(path.getFileName() + ".compact");
+        Files.deleteIfExists(temp);
+
+        long newSize = size;
+        long estimate = HEADER_SIZE + needed + RECORD_HEADER_SIZE;
+        for (Job job : live) {
+            estimate += RECORD_HEADER_SIZE + 64 + job.getJobType().length() * 4L + job.getSerialisedData().length() * 4L +
+                    (job.getLastError() == null ? 0 : job.getLastError().length() * 4L);
+        }
+        while (newSize < estimate * 2) {
+            newSize *= 2;
+        }
+        if (newSize > Integer.MAX_VALUE) {
+            throw new IOException("Job journal would be too large");
+        }
+
+        int end;
+        try (FileChannel compactChannel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer compacted = compactChannel.map(FileChannel.MapMode.READ_WRITE, 0, newSize);
+            compacted.putInt(0, MAGIC);
+            compacted.putInt(4, 0);
+            compacted.position(HEADER_SIZE);
+            for (Job job : live) {
+                ByteBuffer body = encode(job);
+                if (compacted.remaining() < RECORD_HEADER_SIZE + body.remaining() + RECORD_HEADER_SIZE) {
+                    throw new IOException("Compacted job journal would not fit in " + newSize + " bytes");
+                }
+                writeRecord(compacted, body);
+            }
+            compacted.force();
+            end = compacted.position();
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(temp);
+            throw ex;
+        }
+
+        int oldEnd = buffer.position();
+        close();
+        try {
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            //carry on with the old journal, which is still whole
+            open(size);
+            buffer.position(oldEnd);
+            Files.deleteIfExists(temp);
+            throw ex;
+        }
+        open(newSize);
+        buffer.position(end);
+        logger.info("Compacted job journal " + path + " to " + live.size() + " jobs in " + newSize + " bytes");
+    }
+
+    private static String readString(ByteBuffer body) {
+        int length = body.getInt();
+        if (length < 0 || length > body.remaining()) {
+            throw new IllegalArgumentException("Bad string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        body.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int checksum(ByteBuffer body) {
+        CRC32 crc = new CRC32();
+        crc.update(body.duplicate());
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (buffer != null) {
+            buffer.force();
+        }
+        if (lock != null && lock.isValid()) {
+            lock.release();
+        }
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
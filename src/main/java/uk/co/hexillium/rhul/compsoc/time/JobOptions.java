@@ -0,0 +1,78 @@
+package uk.co.hexillium.rhul.compsoc.time;
+
+/**
+ * How the jobs of one type are run: how many may run at once, how long each may take, how failures are retried, and
+ * what happens to jobs that were missed while the bot was down.
+ */
+public class JobOptions {
+
+    public static final JobOptions DEFAULT = new JobOptions(2, 5 * 60 * 1000, 5, 30 * 1000);
+
+    private static final long MAX_BACKOFF_MS = 60 * 60 * 1000;
+    private static final int QUEUE_PER_THREAD = 500;
+
+    private final int threads;
+    private final long timeoutMs;
+    private final int maxAttempts;
+    private final long backoffMs;
+    private final MisfirePolicy misfirePolicy;
+
+    public JobOptions(int threads, long timeoutMs, int maxAttempts, long backoffMs) {
+        this(threads, timeoutMs, maxAttempts, backoffMs, MisfirePolicy.FIRE_ALL);
+    }
+
+    /**
+     * @param threads       how many jobs of this type may run at once
+     * @param timeoutMs     how long a job may run before it is interrupted and counted as failed; it is not retried
+     *                      until its handler actually returns, so handlers should give up when interrupted, and must be
+     *                      idempotent, as a timed out attempt may have done part of its work
+     * @param maxAttempts   how many times a job is tried before it is dead-lettered
+     * @param backoffMs     how long to wait before the first retry; this doubles with each further attempt, up to an hour
+     * @param misfirePolicy what to do with jobs found long overdue
+     */
+    public JobOptions(int threads, long timeoutMs, int maxAttempts, long backoffMs, MisfirePolicy misfirePolicy) {
+        if (threads < 1 || timeoutMs < 1 || maxAttempts < 1 || backoffMs < 0 || misfirePolicy == null) {
+            throw new IllegalArgumentException("Invalid job options");
+        }
+        this.threads = threads;
+        this.timeoutMs = timeoutMs;
+        this.maxAttempts = maxAttempts;
+        this.backoffMs = backoffMs;
+        this.misfirePolicy = misfirePolicy;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public long getTimeoutMs() {
+        return timeoutMs;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public MisfirePolicy getMisfirePolicy() {
+        return misfirePolicy;
+    }
+
+    public int getQueueCapacity() {
+        return threads * QUEUE_PER_THREAD;
+    }
+
+    /**
+     * @param attempts how many attempts have failed so far
+     * @return how long to wait before the next attempt, with up to a fifth added at random so retries spread out.
+     */
+    public long getBackoffMs(int attempts) {
+        long backoff = backoffMs << Math.min(Math.max(attempts - 1, 0), 20);
+        backoff = Math.min(backoff, MAX_BACKOFF_MS);
+        return backoff + (long) (Math.random() * backoff / 5);
+    }
+
+    @Override
+    public String toString() {
+        return threads + " threads, " + timeoutMs + "ms timeout, " + maxAttempts + " attempts, " + backoffMs + "ms backoff, misfires: " + misfirePolicy;
+    }
+}
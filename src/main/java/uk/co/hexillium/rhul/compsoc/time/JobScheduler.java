@@ -6,50 +6,182 @@ import net.dv8tion.jda.api.utils.data.DataObject;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import uk.co.hexillium.rhul.compsoc.persistence.Database;
+import uk.co.hexillium.rhul.compsoc.persistence.JobNotificationListener;
 import uk.co.hexillium.rhul.compsoc.persistence.entities.Job;
 
-import java.util.*;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
+/**
+ * Fires scheduled jobs from a hierarchical {@link TimingWheel}.
+ * <p>
+ * Every pending job due within {@link #MILLISECONDS_HORIZON} is held in the wheel, so a newly submitted job goes
+ * straight in and costs nothing until it fires.  A single ticker thread advances the wheel and only hands due jobs
+ * off to be claimed.  Each job type then runs on its own bounded pool with its own timeout (see {@link JobOptions}),
+ * so a slow or hanging type cannot hold up any other.  Failed jobs are retried with exponential backoff, tracked in
+ * {@code job_schedule}, and are dead-lettered once they run out of attempts.
+ * <p>
+ * Types registered with {@link #registerCoalescingHandle} have jobs that come due close together and share a group
+ * key held back for a short window and handed over as one batch, so a burst of jobs aimed at the same place can be
+ * dealt with in one go.  A batch succeeds or fails as one, unless its handle throws a {@link JobBatchException}
+ * naming the jobs that failed.
+ * <p>
+ * New rows in {@code job_schedule} are announced by a trigger and picked up by a {@link JobNotificationListener},
+ * so jobs inserted by other processes are scheduled within moments.  The periodic reconciliation, which pages
+ * through the jobs due within the horizon and adds any the wheel does not already know about, is only a safety net,
+ * and is also run whenever the listener reconnects to catch anything announced while it was away.
+ * <p>
+ * Reconciliation is also how jobs missed during downtime are recovered.  Jobs it finds that are more than
+ * {@link #MILLISECONDS_MISFIRE_THRESHOLD} overdue are dealt with by their type's {@link MisfirePolicy}, with the
+ * skipped and moved jobs updated a page at a time.  Overdue jobs of types with no handle yet are left for the pass
+ * that runs shortly after a handle is registered.
+ * <p>
+ * Jobs submitted to run within {@link #MILLISECONDS_LOCAL_HORIZON} skip the database altogether: they are written to
+ * a local {@link JobJournal} and belong to this instance alone.  One whose retry would take it past that horizon is
+ * moved into {@code job_schedule}, as is one that is dead-lettered.
+ * <p>
+ * Jobs that finish cleanly are marked as triggered in batches, once per tick, and finished jobs are moved to
+ * {@code job_schedule_archive} once they are {@link #MILLISECONDS_ARCHIVE_AGE} old so the live table stays small.
+ * <p>
+ * Any number of instances may share {@code job_schedule}: every instance holds every job, but a due job only runs
+ * on the instance that claims its lease.  Leases are renewed while a job runs, and jobs whose lease runs out
+ * without being finished - because their instance died - are picked up again by whoever notices first.
+ */
 public class JobScheduler {
 
-    //executor service
-    //keep scraping it
-    //build entities based off of it
-    //run them when it gets time to
-    //also have a submit option
-
     /**
-     * How often jobs should be registered into the scheduler
+     * The resolution of the timing wheel
+     */
+    static private final long MILLISECONDS_PER_TICK = 100;
+    /**
+     * Levels in the timing wheel; four levels of 64 slots at 100ms covers a little over 19 days
+     */
+    static private final int WHEEL_LEVELS = 4;
+    /**
+     * How far in advance jobs are held in the wheel
+     */
+    static private final long MILLISECONDS_HORIZON = 7L * 24 * 60 * 60 * 1000; // 7 days
+    /**
+     * How often the database is reconciled against the wheel
+     */
+    static private final long MILLISECONDS_TO_RECONCILE = 30 * 60 * 1000; // 30 mins
+    /**
+     * How long to wait before trying a job again if nothing has registered to handle it yet
+     */
+    static private final long MILLISECONDS_UNHANDLED_RETRY = 30 * 1000;
+    /**
+     * How long a claimed job is leased to this instance before another may take it over
+     */
+    static private final long MILLISECONDS_LEASE = 2 * 60 * 1000; // 2 mins
+    /**
+     * How often the leases on running jobs are extended
+     */
+    static private final long MILLISECONDS_TO_RENEW_LEASES = MILLISECONDS_LEASE / 4;
+    /**
+     * How long to wait before trying to claim a job again if the claim itself failed
+     */
+    static private final long MILLISECONDS_CLAIM_RETRY = 5 * 1000;
+    /**
+     * How many jobs are fetched per page during reconciliation
      */
-    static private final long MILLISECONDS_TO_REGISTER_JOBS = 2 * 60 * 1000; // 1 mins
+    static private final int RECONCILE_PAGE_SIZE = 1000;
     /**
-     * How far in advance jobs should be registered into the scheduler
+     * How overdue a job found by reconciliation must be before its type's misfire policy applies to it
      */
-    static private final long MILLISECONDS_ADVANCE_REGISTER_JOBS = 2 * 60 * 1000; // 3 mins
+    static private final long MILLISECONDS_MISFIRE_THRESHOLD = 60 * 1000;
     /**
-     * How often the database should be polled for new jobs
+     * How long after a handle is registered to look for its overdue jobs, so that handles registered together share
+     * one pass
      */
-    static private final long MILLISECONDS_TO_FETCH_JOBS = 6 * 60 * 1000; // 10 mins
+    static private final long MILLISECONDS_RECOVERY_DELAY = 5 * 1000;
     /**
-     * How far in advance new jobs in the database can be to still be pulled into the queue
+     * How often finished jobs are archived
      */
-    static private final long MILLISECONDS_ADVANCE_FETCH_JOBS = 25 * 60 * 1000; // 25 mins
+    static private final long MILLISECONDS_TO_ARCHIVE = 6 * 60 * 60 * 1000; // 6 hours
+    /**
+     * How long after its target time a finished job stays in job_schedule
+     */
+    static private final long MILLISECONDS_ARCHIVE_AGE = 30L * 24 * 60 * 60 * 1000; // 30 days
+    /**
+     * How many jobs are archived per statement
+     */
+    static private final int ARCHIVE_BATCH_SIZE = 5000;
+    /**
+     * Jobs due within this long of being submitted are kept in the local journal rather than the database
+     */
+    static private final long MILLISECONDS_LOCAL_HORIZON = 5 * 60 * 1000; // 5 mins
+    static private final String JOURNAL_FILE = "jobs.journal";
+    static private final long JOURNAL_SIZE = 4 * 1024 * 1024;
+    static private final int MAX_ERROR_LENGTH = 2000;
 
     private final Database database;
     private final JDA jda;
-    private final HashMap<String, Consumer<DataObject>> triggerMap;
-    //    private final ArrayDeque<Job> upcomingJobs;
-    private final PriorityQueue<Job> upcomingJobs;
-    private final ScheduledExecutorService scheduler;
-    private final ReentrantReadWriteLock queueLock;
-    private final HashSet<Job> scheduledJobs;
+    private final Map<String, JobType> triggerMap;
+    private final TimingWheel<Job> wheel;
+    /**
+     * Every job in the wheel or currently running, by ID.  Guarded by the wheel.
+     */
+    private final HashMap<Long, TimingWheel.Entry<Job>> known;
+    /**
+     * Jobs that have finished, with the time they did so, kept until a reconciliation that started afterwards has
+     * completed - an earlier one may have read them before they were marked as triggered.  Guarded by the wheel.
+     */
+    private final HashMap<Long, Long> finished;
+    private final ScheduledExecutorService ticker;
+    private final ScheduledExecutorService reconciler;
+    private final ExecutorService claimer;
+    private final SchedulerMetrics metrics;
+    private final ScheduledExecutorService timeouts;
+    /**
+     * Jobs of coalescing types waiting out their window, by type and group key.  Guarded by itself.
+     */
+    private final HashMap<String, List<Job>> coalescing;
+    private final JobNotificationListener listener;
+    private final String leaseOwner;
+    /**
+     * IDs of the jobs this instance has claimed and is currently running.
+     */
+    private final Set<Long> running;
+    private final AtomicBoolean recoveryPending;
+    /**
+     * IDs of jobs that have finished but are not yet marked as triggered in the database
+     */
+    private final ConcurrentLinkedQueue<Long> completions;
+    private final AtomicBoolean flushPending;
+    /**
+     * Null if the journal couldn't be opened, in which case every job goes to the database
+     */
+    private final JobJournal journal;
 
-    private long recentDBPoll = 0, recentQueuePush = 0;
+    private volatile long recentReconcile = 0, recentTick = 0;
+    private volatile int recentReconcileJobs = 0;
 
     private static final Logger logger = LogManager.getLogger(JobScheduler.class);
 
@@ -60,104 +192,905 @@ public class JobScheduler {
     public JobScheduler(Database database, JDA jda) {
         this.database = database;
         this.jda = jda;
-        this.triggerMap = new HashMap<>();
-        this.scheduledJobs = new HashSet<>();
-        upcomingJobs = new PriorityQueue<>((a, b) -> (int) Math.signum(a.getTargetEpoch() - b.getTargetEpoch()));
-        scheduler = Executors.newSingleThreadScheduledExecutor();
-        queueLock = new ReentrantReadWriteLock();
+        this.triggerMap = new ConcurrentHashMap<>();
+        this.wheel = new TimingWheel<>(MILLISECONDS_PER_TICK, WHEEL_LEVELS, System.currentTimeMillis());
+        this.known = new HashMap<>();
+        this.finished = new HashMap<>();
+        ticker = Executors.newSingleThreadScheduledExecutor();
+        reconciler = Executors.newSingleThreadScheduledExecutor();
+        claimer = Executors.newSingleThreadExecutor();
+        timeouts = Executors.newSingleThreadScheduledExecutor();
+        coalescing = new HashMap<>();
+        metrics = new SchedulerMetrics(() -> {
+            synchronized (wheel) {
+                return wheel.size();
+            }
+        });
+        leaseOwner = createLeaseOwner();
+        running = ConcurrentHashMap.newKeySet();
+        recoveryPending = new AtomicBoolean(false);
+        completions = new ConcurrentLinkedQueue<>();
+        flushPending = new AtomicBoolean(false);
+        journal = openJournal();
+        listener = new JobNotificationListener(database.getSource(), this::onNotified, () -> reconciler.execute(this::reconcile));
     }
 
     public void initialise() {
         if (initialised) return;
-        scheduler.scheduleAtFixedRate(this::enqueueNewJobs, 0, MILLISECONDS_TO_FETCH_JOBS, TimeUnit.MILLISECONDS);
-        scheduler.scheduleAtFixedRate(this::registerUpcomingJobs, 30 * 1000, MILLISECONDS_TO_REGISTER_JOBS, TimeUnit.MILLISECONDS);
+        if (journal != null) {
+            for (Job job : journal.getPending()) {
+                schedule(job);
+            }
+        }
+        ticker.scheduleAtFixedRate(this::tick, MILLISECONDS_PER_TICK, MILLISECONDS_PER_TICK, TimeUnit.MILLISECONDS);
+        reconciler.scheduleWithFixedDelay(this::reconcile, 0, MILLISECONDS_TO_RECONCILE, TimeUnit.MILLISECONDS);
+        reconciler.scheduleWithFixedDelay(this::renewLeases, MILLISECONDS_TO_RENEW_LEASES, MILLISECONDS_TO_RENEW_LEASES, TimeUnit.MILLISECONDS);
+        reconciler.scheduleWithFixedDelay(this::reclaimExpiredLeases, MILLISECONDS_LEASE, MILLISECONDS_LEASE, TimeUnit.MILLISECONDS);
+        reconciler.scheduleWithFixedDelay(this::archiveFinishedJobs, MILLISECONDS_TO_ARCHIVE, MILLISECONDS_TO_ARCHIVE, TimeUnit.MILLISECONDS);
+        timeouts.scheduleAtFixedRate(() -> metrics.rollMinute(System.currentTimeMillis()), 1, 1, TimeUnit.MINUTES);
+        listener.start();
         initialised = true;
     }
 
-    private List<Job> pollDB() {
-        return Database.JOB_STORAGE.getNonFinishedJobsBeforeTime(System.currentTimeMillis() + MILLISECONDS_ADVANCE_FETCH_JOBS);
-        // this might cause issues with DST
+    private static JobJournal openJournal() {
+        try {
+            return new JobJournal(Path.of(JOURNAL_FILE), JOURNAL_SIZE);
+        } catch (IOException ex) {
+            logger.error("Failed to open the job journal, short jobs will go to the database", ex);
+            return null;
+        }
     }
 
-    private void enqueueNewJobs() {
-        this.recentDBPoll = System.currentTimeMillis();
-        logger.debug("Running enqueueNewJobs() scheduled task");
-        queueLock.writeLock().lock();
+    private static String createLeaseOwner() {
+        String host;
         try {
-            List<Job> newJobs = pollDB();
-            newJobs.removeAll(scheduledJobs);
-            newJobs.removeAll(upcomingJobs);
-            upcomingJobs.addAll(newJobs);
-        } finally {
-            queueLock.writeLock().unlock();
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException ex) {
+            host = "unknown";
+        }
+        return host + "/" + ProcessHandle.current().pid() + "/" + UUID.randomUUID().toString().substring(0, 8);
+    }
+
+    private void tick() {
+        long now = System.currentTimeMillis();
+        recentTick = now;
+        List<Job> due;
+        synchronized (wheel) {
+            due = wheel.advance(now);
+        }
+        List<Job> toClaim = new ArrayList<>(due.size());
+        for (Job job : due) {
+            if (job.isCompleted()) {
+                logger.debug("Completed job preventing duplicate execution " + job.getJobID());
+                metrics.increment(SchedulerMetrics.Counter.DUPLICATE_SUPPRESSED);
+                continue;
+            }
+            job.setCompleted(true);
+            job.setHandedOffEpoch(now);
+            toClaim.add(job);
+        }
+        if (!toClaim.isEmpty()) {
+            claimer.execute(() -> claimAndRun(toClaim));
+        }
+        if (!completions.isEmpty() && flushPending.compareAndSet(false, true)) {
+            claimer.execute(this::flushCompletions);
+        }
+    }
+
+    /**
+     * Marks every job that has finished since the last flush as triggered, in one statement.
+     */
+    private void flushCompletions() {
+        flushPending.set(false);
+        List<Long> ids = new ArrayList<>();
+        Long id;
+        while ((id = completions.poll()) != null) {
+            ids.add(id);
+        }
+        if (ids.isEmpty()) return;
+        if (!Database.JOB_STORAGE.finishJobsById(ids)) {
+            //try again next tick; until then the jobs are in the finished set, so won't be run again here
+            completions.addAll(ids);
+        }
+    }
+
+    /**
+     * Claims everything that came due in one tick with a single statement, then runs whatever this instance won.
+     */
+    private void claimAndRun(List<Job> due) {
+        long now = System.currentTimeMillis();
+        List<Long> ids = new ArrayList<>(due.size());
+        for (Job job : due) {
+            //journal jobs, and any whose insert failed, only exist here, so there is nothing to claim
+            if (job.getJobID() >= 0) ids.add(job.getJobID());
+        }
+        Set<Long> claimed = ids.isEmpty() ? Set.of() : Database.JOB_STORAGE.claimJobs(ids, leaseOwner, now + MILLISECONDS_LEASE, now);
+        if (claimed == null) {
+            for (Job job : due) {
+                retryLater(job, MILLISECONDS_CLAIM_RETRY);
+            }
+            return;
+        }
+        for (Job job : due) {
+            if (job.getJobID() < 0 || claimed.contains(job.getJobID())) {
+                running.add(job.getJobID());
+                runJob(job);
+            } else {
+                //already finished, or running on another instance; reclaimExpiredLeases will bring it back if that instance dies
+                logger.debug("Job " + job.getJobID() + " was claimed elsewhere");
+                metrics.increment(SchedulerMetrics.Counter.DUPLICATE_SUPPRESSED);
+                synchronized (wheel) {
+                    known.remove(job.getJobID());
+                }
+            }
+        }
+    }
+
+    private void retryLater(Job job, long delay) {
+        job.setCompleted(false);
+        synchronized (wheel) {
+            if (known.containsKey(job.getJobID())) {
+                known.put(job.getJobID(), wheel.schedule(System.currentTimeMillis() + delay, job));
+            }
         }
     }
 
-    private void registerJob(Job job) {
-        scheduledJobs.add(job);
-        scheduler.schedule(() -> {
-                    if (job.isCompleted()){
-                        logger.debug("Completed job preventing duplicate execution " + job.getJobID());
-                        return;
+    private void runJob(Job job) {
+        JobType type = triggerMap.get(job.getJobType());
+        if (type == null) {
+            //commands register their handles once JDA is ready, which may be after the first jobs are due
+            logger.warn("No handle registered for job type " + job.getJobType() + ", retrying job " + job.getJobID() + " later");
+            running.remove(job.getJobID());
+            retryLater(job, MILLISECONDS_UNHANDLED_RETRY);
+            return;
+        }
+        if (type.groupKey == null) {
+            submit(List.of(job), type);
+            return;
+        }
+        String key;
+        try {
+            key = job.getJobType() + "/" + type.groupKey.apply(job.getData());
+        } catch (Exception ex) {
+            logger.warn("Failed to find the group of job " + job.getJobID() + ", running it alone", ex);
+            submit(List.of(job), type);
+            return;
+        }
+        synchronized (coalescing) {
+            List<Job> group = coalescing.get(key);
+            if (group == null) {
+                group = new ArrayList<>();
+                coalescing.put(key, group);
+                //the window runs from when the first job was due; the floor lets the rest of this tick's batch join
+                long delay = Math.max(MILLISECONDS_PER_TICK, job.getTargetEpoch() + type.windowMs - System.currentTimeMillis());
+                timeouts.schedule(() -> flushGroup(key, type), delay, TimeUnit.MILLISECONDS);
+            }
+            group.add(job);
+        }
+    }
+
+    private void flushGroup(String key, JobType type) {
+        List<Job> group;
+        synchronized (coalescing) {
+            group = coalescing.remove(key);
+        }
+        if (group != null && !group.isEmpty()) {
+            logger.debug("Coalesced " + group.size() + " jobs for " + key);
+            submit(group, type);
+        }
+    }
+
+    private void submit(List<Job> jobs, JobType type) {
+        Execution execution = new Execution(jobs, type);
+        try {
+            execution.future = type.pool.submit(() -> execute(execution));
+        } catch (RejectedExecutionException ex) {
+            //this type is badly backed up; leave it a moment rather than count it as a failure
+            logger.warn("Too many " + type.name + " jobs queued, delaying " + jobs.size() + " jobs");
+            for (Job job : jobs) {
+                running.remove(job.getJobID());
+                retryLater(job, MILLISECONDS_CLAIM_RETRY);
+            }
+        }
+    }
+
+    private void execute(Execution execution) {
+        List<Job> jobs = execution.jobs;
+        long started = System.currentTimeMillis();
+        execution.started = started;
+        long timeout = execution.type.options.getTimeoutMs();
+        execution.timeout = timeouts.schedule(() -> {
+            Future<?> future = execution.future;
+            if (future != null) future.cancel(true);
+            complete(execution, new TimeoutException("Timed out after " + timeout + "ms"));
+        }, timeout, TimeUnit.MILLISECONDS);
+
+        Throwable failure = null;
+        try {
+            List<DataObject> data = new ArrayList<>(jobs.size());
+            for (Job job : jobs) {
+                logger.debug("Job execution " + job.getJobID() + ", attempt " + (job.getAttempts() + 1));
+                metrics.recordStart(execution.type.name, started - job.getTargetEpoch(), started - job.getHandedOffEpoch());
+                data.add(job.getData());
+            }
+            execution.type.handle.accept(data);
+        } catch (Throwable ex) {
+            failure = ex;
+        }
+        complete(execution, failure);
+        settle(execution);
+    }
+
+    /**
+     * Records the outcome of an execution, exactly once; whichever of the job finishing and its timeout comes first
+     * wins.  The jobs are only finished once the handler has returned as well, see {@link #settle(Execution)}.
+     */
+    private void complete(Execution execution, Throwable failure) {
+        if (!execution.done.compareAndSet(false, true)) return;
+        ScheduledFuture<?> timeout = execution.timeout;
+        if (timeout != null) timeout.cancel(false);
+        long duration = System.currentTimeMillis() - execution.started;
+        Throwable[] failures = new Throwable[execution.jobs.size()];
+        for (int i = 0; i < failures.length; i++) {
+            if (failure instanceof JobBatchException) {
+                failures[i] = ((JobBatchException) failure).getFailures().get(i);
+            } else {
+                failures[i] = failure;
+            }
+            metrics.recordFinish(execution.type.name, duration, failures[i] != null);
+        }
+        execution.failures = failures;
+        settle(execution);
+    }
+
+    /**
+     * Finishes an execution's jobs once both its outcome is recorded and its handler has returned.  A timed out
+     * handler is only interrupted, and may carry on for a while, so retrying before it returns could run a job twice
+     * at once; until then the jobs stay running, and can't be claimed again.  The database work is done off of the
+     * job type's pool.
+     */
+    private void settle(Execution execution) {
+        if (execution.unsettled.decrementAndGet() != 0) return;
+        Throwable[] failures = execution.failures;
+        Database.runLater(() -> {
+            for (int i = 0; i < failures.length; i++) {
+                finish(execution.jobs.get(i), execution.type.options, failures[i]);
+            }
+        });
+    }
+
+    private void finish(Job job, JobOptions options, Throwable failure) {
+        long now = System.currentTimeMillis();
+        //a journal job may be moved to the database below, which changes its ID
+        long jobID = job.getJobID();
+        boolean local = JobJournal.isJournalID(jobID);
+        Job next = null;
+        boolean retrying = false;
+        boolean done = true;
+        if (failure == null) {
+            if (local) {
+                journal.remove(jobID);
+            } else if (job.isRecurring()) {
+                next = Database.JOB_STORAGE.finishRecurringJob(job, null);
+            } else {
+                completions.add(jobID);
+            }
+        } else {
+            int attempts = job.getAttempts() + 1;
+            String error = describe(failure);
+            if (attempts >= options.getMaxAttempts()) {
+                logger.error("Job " + job.getJobID() + " of type " + job.getJobType() + " failed " + attempts + " times, dead-lettering it", failure);
+                if (local) {
+                    job.setAttempts(attempts);
+                    deadLetterLocal(job, error);
+                } else if (job.isRecurring()) {
+                    next = Database.JOB_STORAGE.finishRecurringJob(job, error);
+                } else {
+                    Database.JOB_STORAGE.deadLetterJob(job.getJobID(), error);
+                }
+            } else {
+                long target = now + options.getBackoffMs(attempts);
+                logger.warn("Job " + job.getJobID() + " of type " + job.getJobType() + " failed, attempt " + attempts +
+                        " of " + options.getMaxAttempts() + ", retrying in " + (target - now) + "ms", failure);
+                if (local) {
+                    job.setAttempts(attempts);
+                    job.setLastError(error);
+                    job.setTargetEpoch(target);
+                    retryLocal(job, now);
+                    retrying = true;
+                } else {
+                    retrying = Database.JOB_STORAGE.retryJob(job.getJobID(), target, error);
+                    if (retrying) {
+                        job.setAttempts(attempts);
+                        job.setLastError(error);
+                        job.setTargetEpoch(target);
+                    } else {
+                        //still leased to us; once the lease runs out, reclaimExpiredLeases will pick it up again
+                        done = false;
                     }
-                    logger.debug("Job first execution " + job.getJobID());
-                    job.setCompleted(true);
-                    triggerMap.get(job.getJobType()).accept(job.getData());
-                    Database.JOB_STORAGE.finishJobById(job.getJobID());
-                    scheduledJobs.remove(job);
-                },
-                Math.max(0, job.getTargetEpoch() - System.currentTimeMillis()),
-                TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+        running.remove(jobID);
+        synchronized (wheel) {
+            known.remove(jobID);
+            if (done && !retrying) {
+                finished.put(jobID, now);
+            }
+        }
+        if (retrying) {
+            job.setCompleted(false);
+            schedule(job);
+        }
+        if (next != null) {
+            schedule(next);
+        }
     }
 
+    /**
+     * Records a journal job's next attempt, moving it to the database if that is now beyond the local horizon.
+     */
+    private void retryLocal(Job job, long now) {
+        long jobID = job.getJobID();
+        if (job.getTargetEpoch() > now + MILLISECONDS_LOCAL_HORIZON) {
+            int id = Database.JOB_STORAGE.addJob(job);
+            if (id >= 0) {
+                journal.remove(jobID);
+                job.setJobID(id);
+                return;
+            }
+        }
+        journal.update(job);
+    }
 
+    /**
+     * Moves a journal job that has run out of attempts into the database, already dead-lettered, where it can be
+     * inspected and retried like any other.
+     */
+    private void deadLetterLocal(Job job, String error) {
+        job.setLastError(error);
+        if (Database.JOB_STORAGE.addDeadLetterJob(job) < 0) {
+            logger.error("Lost dead-lettered job " + job);
+        }
+        journal.remove(job.getJobID());
+    }
 
-    private void registerUpcomingJobs() {
-        this.recentQueuePush = System.currentTimeMillis();
-        logger.debug("Running registerUpcomingJobs() scheduled task");
-        queueLock.readLock().lock();
+    private static String describe(Throwable failure) {
+        String error = failure.getClass().getSimpleName() + ": " + failure.getMessage();
+        return error.length() > MAX_ERROR_LENGTH ? error.substring(0, MAX_ERROR_LENGTH) : error;
+    }
+
+    private void renewLeases() {
+        if (running.isEmpty()) return;
         try {
+            List<Long> ids = new ArrayList<>(running);
+            int renewed = Database.JOB_STORAGE.renewLeases(ids, leaseOwner, System.currentTimeMillis() + MILLISECONDS_LEASE);
+            if (renewed >= 0 && renewed < ids.size()) {
+                logger.debug("Renewed " + renewed + " of " + ids.size() + " job leases");
+            }
+        } catch (Exception ex) {
+            logger.error("Failed to renew job leases", ex);
+        }
+    }
 
-            while (!upcomingJobs.isEmpty()
-                    && upcomingJobs.peek().getTargetEpoch()<= System.currentTimeMillis() + MILLISECONDS_ADVANCE_REGISTER_JOBS){
-                registerJob(upcomingJobs.poll());  //foolish IntelliJ.
+    /**
+     * Moves finished jobs that are long past out of job_schedule, a batch at a time.
+     */
+    private void archiveFinishedJobs() {
+        try {
+            long before = System.currentTimeMillis() - MILLISECONDS_ARCHIVE_AGE;
+            int archived = 0, moved;
+            do {
+                moved = Database.JOB_STORAGE.archiveFinishedJobs(before, ARCHIVE_BATCH_SIZE);
+                if (moved > 0) archived += moved;
+            } while (moved == ARCHIVE_BATCH_SIZE);
+            if (archived > 0) {
+                logger.info("Archived " + archived + " finished jobs");
             }
-        } finally {
-            queueLock.readLock().unlock();
+        } catch (Exception ex) {
+            logger.error("Failed to archive finished jobs", ex);
         }
     }
 
+    /**
+     * Picks up jobs that were claimed by an instance that then stopped without finishing them.  Only one page is
+     * taken per pass; anything left over is found on the next one.
+     */
+    private void reclaimExpiredLeases() {
+        try {
+            List<Job> expired = Database.JOB_STORAGE.getExpiredLeases(System.currentTimeMillis(), RECONCILE_PAGE_SIZE);
+            if (expired == null || expired.isEmpty()) return;
+            metrics.add(SchedulerMetrics.Counter.FETCHED, expired.size());
+            int added = 0;
+            for (Job job : expired) {
+                if (schedule(job)) added++;
+            }
+            if (added > 0) {
+                logger.info("Reclaiming " + added + " jobs with expired leases");
+            }
+        } catch (Exception ex) {
+            logger.error("Failed to reclaim expired job leases", ex);
+        }
+    }
+
+    /**
+     * Adds a job to the wheel, unless it is already there, has already run, or is beyond the horizon.
+     *
+     * @param job the job to schedule
+     * @return true if the job was added.
+     */
+    private boolean schedule(Job job) {
+        if (job.getTargetEpoch() > System.currentTimeMillis() + MILLISECONDS_HORIZON) {
+            return false;
+        }
+        synchronized (wheel) {
+            if (known.containsKey(job.getJobID()) || finished.containsKey(job.getJobID())) {
+                return false;
+            }
+            TimingWheel.Entry<Job> entry = wheel.schedule(job.getTargetEpoch(), job);
+            if (entry == null) {
+                return false;
+            }
+            known.put(job.getJobID(), entry);
+        }
+        metrics.increment(SchedulerMetrics.Counter.SCHEDULED);
+        return true;
+    }
+
+    /**
+     * Schedules newly inserted jobs announced by the database, fetching only those due within the horizon.
+     *
+     * @param jobs the IDs of the new jobs, mapped to their target epochs
+     */
+    private void onNotified(Map<Long, Long> jobs) {
+        long horizon = System.currentTimeMillis() + MILLISECONDS_HORIZON;
+        List<Long> wanted = new ArrayList<>();
+        synchronized (wheel) {
+            for (Map.Entry<Long, Long> job : jobs.entrySet()) {
+                //jobs submitted by this process will usually be here already
+                if (known.containsKey(job.getKey()) || finished.containsKey(job.getKey())) {
+                    metrics.increment(SchedulerMetrics.Counter.DUPLICATE_SUPPRESSED);
+                } else if (job.getValue() <= horizon) {
+                    wanted.add(job.getKey());
+                }
+            }
+        }
+        if (wanted.isEmpty()) return;
+        List<Job> fetched = Database.JOB_STORAGE.getNonFinishedJobsById(wanted);
+        if (fetched == null) return;
+        metrics.add(SchedulerMetrics.Counter.FETCHED, fetched.size());
+        for (Job job : fetched) {
+            schedule(job);
+        }
+    }
+
+    private void reconcile() {
+        long started = System.currentTimeMillis();
+        this.recentReconcile = started;
+        logger.debug("Running reconcile() scheduled task");
+        long lastID = -1;
+        int added = 0, deferred = 0;
+        List<Job> misfired = new ArrayList<>();
+        try {
+            List<Job> page;
+            do {
+                page = Database.JOB_STORAGE.getNonFinishedJobsBeforeTime(started + MILLISECONDS_HORIZON, lastID, RECONCILE_PAGE_SIZE);
+                if (page == null) {
+                    //leave the finished set alone, as this pass saw nothing
+                    return;
+                }
+                metrics.add(SchedulerMetrics.Counter.FETCHED, page.size());
+                for (Job job : page) {
+                    lastID = job.getJobID();
+                    if (!isMisfire(job, started)) {
+                        if (schedule(job)) added++;
+                    } else if (triggerMap.containsKey(job.getJobType())) {
+                        misfired.add(job);
+                    } else {
+                        deferred++;
+                    }
+                }
+            } while (page.size() == RECONCILE_PAGE_SIZE);
+
+            if (!misfired.isEmpty()) {
+                added += recoverMisfires(misfired, started);
+            }
+            synchronized (wheel) {
+                finished.values().removeIf(time -> time < started);
+            }
+        } catch (Exception ex) {
+            logger.error("Failed to reconcile scheduled jobs", ex);
+        }
+        this.recentReconcileJobs = added;
+        if (added > 0) {
+            logger.info("Reconciliation added " + added + " jobs to the scheduler");
+        }
+        if (deferred > 0) {
+            logger.info("Left " + deferred + " overdue jobs with no handle registered for later");
+        }
+    }
+
+    /**
+     * @return true if the job should have run a while ago and is not already in hand.
+     */
+    private boolean isMisfire(Job job, long now) {
+        if (job.getTargetEpoch() >= now - MILLISECONDS_MISFIRE_THRESHOLD) {
+            return false;
+        }
+        synchronized (wheel) {
+            return !known.containsKey(job.getJobID()) && !finished.containsKey(job.getJobID());
+        }
+    }
+
+    /**
+     * Applies each type's misfire policy to the overdue jobs found by a reconciliation pass.  The policies need to
+     * see the whole backlog of a type, so this runs once the pass has read every page; the database is then updated
+     * with one statement per page of skipped or moved jobs.
+     *
+     * @param misfired the overdue jobs, all of types with a handle registered
+     * @param now      when the pass started
+     * @return how many jobs were added to the wheel.
+     */
+    private int recoverMisfires(List<Job> misfired, long now) {
+        metrics.add(SchedulerMetrics.Counter.MISFIRED, misfired.size());
+        Map<String, List<Job>> byType = new LinkedHashMap<>();
+        for (Job job : misfired) {
+            byType.computeIfAbsent(job.getJobType(), t -> new ArrayList<>()).add(job);
+        }
+        List<Job> fire = new ArrayList<>();
+        List<Job> skip = new ArrayList<>();
+        List<Job> move = new ArrayList<>();
+        byType.forEach((name, jobs) -> {
+            MisfirePolicy policy = triggerMap.get(name).options.getMisfirePolicy();
+            switch (policy.getKind()) {
+                case FIRE_ALL:
+                    fire.addAll(jobs);
+                    break;
+                case SKIP_OLDER_THAN:
+                    for (Job job : jobs) {
+                        (now - job.getTargetEpoch() > policy.getMs() ? skip : fire).add(job);
+                    }
+                    break;
+                case FIRE_ONCE: {
+                    //each recurring job keeps its own latest occurrence; one-off jobs of the type share one
+                    Map<Long, Job> latest = new HashMap<>();
+                    for (Job job : jobs) {
+                        long group = job.isRecurring() ? job.getRecurringID() : -1;
+                        Job kept = latest.get(group);
+                        if (kept == null || job.getTargetEpoch() > kept.getTargetEpoch()) {
+                            latest.put(group, job);
+                            if (kept != null) skip.add(kept);
+                        } else {
+                            skip.add(job);
+                        }
+                    }
+                    fire.addAll(latest.values());
+                    break;
+                }
+                case SPREAD: {
+                    jobs.sort(Comparator.comparingLong(Job::getTargetEpoch));
+                    double spacing = (double) policy.getMs() / jobs.size();
+                    for (int i = 0; i < jobs.size(); i++) {
+                        jobs.get(i).setTargetEpoch(now + (long) (i * spacing));
+                    }
+                    move.addAll(jobs);
+                    break;
+                }
+            }
+        });
+
+        int skipped = 0;
+        List<Long> oneOff = new ArrayList<>();
+        for (Job job : skip) {
+            if (job.isRecurring()) {
+                //recurring occurrences are skipped one at a time, as each inserts the next
+                if (skipRecurring(job)) skipped++;
+            } else {
+                oneOff.add(job.getJobID());
+            }
+        }
+        for (int from = 0; from < oneOff.size(); from += RECONCILE_PAGE_SIZE) {
+            List<Long> ids = oneOff.subList(from, Math.min(oneOff.size(), from + RECONCILE_PAGE_SIZE));
+            Set<Long> done = Database.JOB_STORAGE.skipJobs(ids, now);
+            if (done == null) continue;
+            synchronized (wheel) {
+                for (long id : done) {
+                    finished.put(id, now);
+                }
+            }
+            skipped += done.size();
+        }
+        metrics.add(SchedulerMetrics.Counter.MISFIRE_SKIPPED, skipped);
+
+        for (int from = 0; from < move.size(); from += RECONCILE_PAGE_SIZE) {
+            //the wheel keeps the new times even if this fails; claims stop anything running twice
+            Database.JOB_STORAGE.moveJobs(move.subList(from, Math.min(move.size(), from + RECONCILE_PAGE_SIZE)), now);
+        }
+
+        int added = 0;
+        for (Job job : fire) {
+            if (schedule(job)) added++;
+        }
+        for (Job job : move) {
+            if (schedule(job)) added++;
+        }
+        logger.info("Recovered " + misfired.size() + " overdue jobs: " + fire.size() + " fired, " + move.size() +
+                " spread out, " + skipped + " of " + skip.size() + " skipped");
+        return added;
+    }
+
+    private boolean skipRecurring(Job job) {
+        Job next = Database.JOB_STORAGE.finishRecurringJob(job, null, true);
+        synchronized (wheel) {
+            finished.put(job.getJobID(), System.currentTimeMillis());
+        }
+        if (next != null) {
+            schedule(next);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Stores a job and schedules it.  Jobs due within {@link #MILLISECONDS_LOCAL_HORIZON} are written to the local
+     * journal, and only ever run on this instance; anything later goes to the database.
+     *
+     * If the database can't take the job, it falls back to the journal as long as it is due within
+     * {@link #MILLISECONDS_HORIZON}, since nothing would load a journal job from further off; otherwise the job is
+     * dropped and logged.
+     *
+     * @param job the job to run; its ID is assigned when it is stored
+     */
     public void submitJob(Job job) {
+        if (journal != null && job.getTargetEpoch() <= System.currentTimeMillis() + MILLISECONDS_LOCAL_HORIZON && journal.add(job)) {
+            schedule(job);
+            return;
+        }
         Database.runLater(() -> {
             int id = Database.JOB_STORAGE.addJob(job);
-            job.setJobID(id);
-            if ((job.getTargetEpoch() - System.currentTimeMillis()) < MILLISECONDS_ADVANCE_REGISTER_JOBS) {
-                registerJob(job);
-            } else if ((job.getTargetEpoch() - System.currentTimeMillis()) < MILLISECONDS_ADVANCE_FETCH_JOBS){
-                queueLock.writeLock().lock();
-                try {
-                    upcomingJobs.add(job);
-                } finally {
-                    queueLock.writeLock().unlock();
-                }
+            if (id != -1) {
+                job.setJobID(id);
+                schedule(job);
+                return;
+            }
+            //every failed insert would share the ID -1, and the scheduler only keeps one job per ID
+            if (journal != null && job.getTargetEpoch() <= System.currentTimeMillis() + MILLISECONDS_HORIZON && journal.add(job)) {
+                logger.warn("Failed to store job of type " + job.getJobType() + " in the database, keeping it in the local journal as " + job.getJobID());
+                schedule(job);
+                return;
+            }
+            logger.error("Failed to store job of type " + job.getJobType() + " due at " + job.getTargetEpoch() + ", it will not run: " + job.getSerialisedData());
+        });
+    }
+
+    /**
+     * Cancels a pending job so that it never fires.
+     *
+     * @param jobID the ID of the job to cancel
+     * @return true if the job was waiting in the scheduler, false if it had already started or was not yet loaded.
+     * The job is marked as triggered in the database either way, with the next batch of completions.
+     */
+    public boolean cancelJob(long jobID) {
+        boolean cancelled = unschedule(jobID);
+        if (!JobJournal.isJournalID(jobID)) {
+            completions.add(jobID);
+        } else if (journal != null) {
+            journal.remove(jobID);
+        }
+        return cancelled;
+    }
+
+    private boolean unschedule(long jobID) {
+        synchronized (wheel) {
+            TimingWheel.Entry<Job> entry = known.get(jobID);
+            boolean cancelled = entry != null && wheel.cancel(entry);
+            if (cancelled) {
+                known.remove(jobID);
+                finished.put(jobID, System.currentTimeMillis());
+            }
+            return cancelled;
+        }
+    }
+
+    /**
+     * Stores a recurring job and schedules its first occurrence.  Each occurrence inserts the next as it finishes.
+     *
+     * @param cron        when the job should run
+     * @param type        the type of job, as passed to {@link #registerHandle(String, Consumer)}
+     * @param data        the data handed to every occurrence; {@code recurring_id} is added to it
+     * @param onSubmitted called with the first occurrence once stored, or with null if that failed
+     */
+    public void submitRecurringJob(CronExpression cron, String type, DataObject data, Consumer<Job> onSubmitted) {
+        Database.runLater(() -> {
+            Job first = Database.JOB_STORAGE.addRecurringJob(cron, type, data);
+            if (first != null) {
+                schedule(first);
             }
+            onSubmitted.accept(first);
         });
     }
 
+    /**
+     * Stops a recurring job, cancelling its pending occurrence.  This blocks on the database.
+     *
+     * @param recurringID the recurring job to stop
+     * @return true if the job was stopped.
+     */
+    public boolean cancelRecurringJob(long recurringID) {
+        List<Long> cancelled = Database.JOB_STORAGE.disableRecurringJob(recurringID);
+        if (cancelled == null) return false;
+        for (long jobID : cancelled) {
+            unschedule(jobID);
+        }
+        return true;
+    }
+
+    /**
+     * Takes a dead-lettered job out of that state and runs it again straight away.  This blocks on the database.
+     *
+     * @param jobID the job to run again
+     * @return the job, or null if it was not dead-lettered.
+     */
+    public Job requeueJob(long jobID) {
+        Job job = Database.JOB_STORAGE.requeueDeadLetterJob(jobID, System.currentTimeMillis());
+        if (job == null) return null;
+        synchronized (wheel) {
+            finished.remove(jobID);
+        }
+        schedule(job);
+        return job;
+    }
+
     public void registerHandle(String type, Consumer<DataObject> onTrigger) {
-        if (this.triggerMap.get(type) != null) {
+        registerHandle(type, onTrigger, JobOptions.DEFAULT);
+    }
+
+    /**
+     * Registers the handle for a type of job, which will run on its own pool.
+     *
+     * @param type      the job type
+     * @param onTrigger called with the job's data when it runs; throwing counts as a failed attempt
+     * @param options   how many threads the type gets, its timeout and its retry policy
+     */
+    public void registerHandle(String type, Consumer<DataObject> onTrigger, JobOptions options) {
+        register(type, batch -> batch.forEach(onTrigger), null, 0, options);
+    }
+
+    /**
+     * Registers the handle for a type of job whose jobs are delivered in batches.  Jobs with the same group key that
+     * come due within the window of the first are held back until the window closes, then handed over together, so
+     * no job is held for longer than the window.  The batch succeeds or fails as one, unless the handle throws a
+     * {@link JobBatchException}, in which case only the jobs it names are failed.
+     *
+     * @param type      the job type
+     * @param groupKey  finds the group of a job from its data
+     * @param windowMs  how long to hold the first job of a group while others gather
+     * @param onTrigger called with the data of every job in the group
+     * @param options   how many threads the type gets, its timeout and its retry policy
+     */
+    public void registerCoalescingHandle(String type, Function<DataObject, String> groupKey, long windowMs,
+                                         Consumer<List<DataObject>> onTrigger, JobOptions options) {
+        register(type, onTrigger, groupKey, windowMs, options);
+    }
+
+    private void register(String type, Consumer<List<DataObject>> onTrigger, Function<DataObject, String> groupKey,
+                          long windowMs, JobOptions options) {
+        if (this.triggerMap.containsKey(type)) {
             throw new IllegalArgumentException("Trigger names must be unique.");
         }
-        triggerMap.put(type, onTrigger);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(options.getThreads(), options.getThreads(),
+                0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(options.getQueueCapacity()),
+                new NamedThreadFactory("job-" + type));
+        if (this.triggerMap.putIfAbsent(type, new JobType(type, onTrigger, groupKey, windowMs, options, pool)) != null) {
+            pool.shutdown();
+            throw new IllegalArgumentException("Trigger names must be unique.");
+        }
+        //overdue jobs of this type were left alone until now, as their misfire policy wasn't known
+        if (initialised && recoveryPending.compareAndSet(false, true)) {
+            reconciler.schedule(() -> {
+                recoveryPending.set(false);
+                reconcile();
+            }, MILLISECONDS_RECOVERY_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return a line per job type, showing its options and how busy its pool is.
+     */
+    public String getPoolInfo() {
+        StringBuilder info = new StringBuilder();
+        triggerMap.forEach((name, type) -> info.append(name).append(": ")
+                .append(type.pool.getActiveCount()).append(" running, ")
+                .append(type.pool.getQueue().size()).append(" queued, ")
+                .append(type.pool.getCompletedTaskCount()).append(" completed (")
+                .append(type.options).append(")\n"));
+        return info.toString();
+    }
+
+    /**
+     * @return each job type's pool, by type, for monitoring.
+     */
+    public Map<String, ThreadPoolExecutor> getPools() {
+        Map<String, ThreadPoolExecutor> pools = new LinkedHashMap<>();
+        triggerMap.forEach((name, type) -> pools.put(name, type.pool));
+        return pools;
+    }
+
+    public SchedulerMetrics getMetrics() {
+        return metrics;
     }
 
     public String getDebugInfo(){
-        return "Upcoming head: " + upcomingJobs.peek() + ",\n" +
-                "Upcoming size: " + upcomingJobs.size() + " items,\n" +
+        int pending, firing, recentlyFinished;
+        synchronized (wheel) {
+            pending = wheel.size();
+            firing = known.size() - pending;
+            recentlyFinished = finished.size();
+        }
+        return "Wheel size: " + pending + " items,\n" +
+                "Firing: " + firing + " items,\n" +
+                "Recently finished: " + recentlyFinished + " items,\n" +
                 "Trigger keys: " + triggerMap.keySet() + "\n" +
-                "RecentDBPoll: " + TimeFormat.DATE_TIME_LONG.format(recentDBPoll) + "\n" +
-                "RecentQueuePush: " + TimeFormat.DATE_TIME_LONG.format(recentQueuePush) + "\n" +
-                "Lock state: " + queueLock.toString();
+                "RecentReconcile: " + TimeFormat.DATE_TIME_LONG.format(recentReconcile) + " (" + recentReconcileJobs + " added)\n" +
+                "RecentTick: " + TimeFormat.DATE_TIME_LONG.format(recentTick) + "\n" +
+                "Lease owner: " + leaseOwner + ", running " + running.size() + " claimed jobs\n" +
+                "Journal: " + (journal == null ? "unavailable" : journal.size() + " pending jobs") + "\n" +
+                "Listener: " + (listener.isConnected() ? "connected" : "disconnected") + ", " + listener.getReceived() + " notifications received";
+    }
+
+    private static class JobType {
+        final String name;
+        final Consumer<List<DataObject>> handle;
+        /**
+         * Null if this type's jobs are not coalesced
+         */
+        final Function<DataObject, String> groupKey;
+        final long windowMs;
+        final JobOptions options;
+        final ThreadPoolExecutor pool;
+
+        JobType(String name, Consumer<List<DataObject>> handle, Function<DataObject, String> groupKey, long windowMs,
+                JobOptions options, ThreadPoolExecutor pool) {
+            this.name = name;
+            this.handle = handle;
+            this.groupKey = groupKey;
+            this.windowMs = windowMs;
+            this.options = options;
+            this.pool = pool;
+        }
+    }
+
+    private static class Execution {
+        final List<Job> jobs;
+        final JobType type;
+        final AtomicBoolean done = new AtomicBoolean(false);
+        /**
+         * Counts down as the outcome is recorded and as the handler returns; the jobs are finished when both have
+         */
+        final AtomicInteger unsettled = new AtomicInteger(2);
+        volatile Throwable[] failures;
+        volatile Future<?> future;
+        volatile ScheduledFuture<?> timeout;
+        volatile long started;
+
+        Execution(List<Job> jobs, JobType type) {
+            this.jobs = jobs;
+            this.type = type;
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable, prefix + "-" + count.incrementAndGet());
+        }
     }
 
 }
@@ -0,0 +1,60 @@
+package uk.co.hexillium.rhul.compsoc.time;
+
+/**
+ * What to do with jobs that were due while nothing was running to fire them, such as after an outage.
+ */
+public class MisfirePolicy {
+
+    public enum Kind {
+        /** fire every overdue job straight away */
+        FIRE_ALL,
+        /** fire only the most recent overdue job of the type (or of each recurring job), skipping the rest */
+        FIRE_ONCE,
+        /** skip overdue jobs older than the given age, firing the rest straight away */
+        SKIP_OLDER_THAN,
+        /** fire every overdue job, spaced out evenly over the given window */
+        SPREAD
+    }
+
+    public static final MisfirePolicy FIRE_ALL = new MisfirePolicy(Kind.FIRE_ALL, 0);
+    public static final MisfirePolicy FIRE_ONCE = new MisfirePolicy(Kind.FIRE_ONCE, 0);
+
+    private final Kind kind;
+    private final long ms;
+
+    private MisfirePolicy(Kind kind, long ms) {
+        this.kind = kind;
+        this.ms = ms;
+    }
+
+    public static MisfirePolicy skipOlderThan(long ageMs) {
+        return new MisfirePolicy(Kind.SKIP_OLDER_THAN, ageMs);
+    }
+
+    public static MisfirePolicy spreadOver(long windowMs) {
+        return new MisfirePolicy(Kind.SPREAD, windowMs);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return the maximum age for {@link Kind#SKIP_OLDER_THAN}, or the window for {@link Kind#SPREAD}, in milliseconds.
+     */
+    public long getMs() {
+        return ms;
+    }
+
+    @Override
+    public String toString() {
+        switch (kind) {
+            case SKIP_OLDER_THAN:
+                return "skip older than " + ms + "ms";
+            case SPREAD:
+                return "spread over " + ms + "ms";
+            default:
+                return kind.name().toLowerCase().replace('_', ' ');
+        }
+    }
+}
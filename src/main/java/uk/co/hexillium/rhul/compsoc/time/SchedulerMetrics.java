@@ -0,0 +1,276 @@
+package uk.co.hexillium.rhul.compsoc.time;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/**
+ * Counters and latency histograms for the {@link JobScheduler}, with a rolling per-minute time series.
+ * <p>
+ * Histograms use fixed, roughly logarithmic buckets, so recording is a couple of atomic increments and percentiles
+ * are read off the bucket bounds.  Everything is held in memory and lost on restart.
+ */
+public class SchedulerMetrics {
+
+    /**
+     * Upper bounds of the histogram buckets, in milliseconds; anything larger goes in a final overflow bucket
+     */
+    private static final long[] BOUNDS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500,
+            1_000, 2_000, 5_000, 10_000, 30_000, 60_000, 5 * 60_000, 30 * 60_000, 60 * 60_000
+    };
+    private static final int SERIES_MINUTES = 120;
+
+    public enum Counter {
+        /** jobs read from the database by reconciliation, notifications or lease recovery */
+        FETCHED,
+        /** jobs put into the wheel */
+        SCHEDULED,
+        /** jobs handed to their handler */
+        FIRED,
+        /** failed attempts, including timeouts */
+        FAILED,
+        /** jobs that were dropped because they were already scheduled, finished or claimed elsewhere */
+        DUPLICATE_SUPPRESSED,
+        /** overdue jobs found by reconciliation and dealt with by their type's misfire policy */
+        MISFIRED,
+        /** overdue jobs that their type's misfire policy skipped without running */
+        MISFIRE_SKIPPED
+    }
+
+    private final LongAdder[] counters = new LongAdder[Counter.values().length];
+    private final Map<String, TypeMetrics> types = new ConcurrentHashMap<>();
+    private final ArrayDeque<Sample> series = new ArrayDeque<>();
+    private final IntSupplier wheelSize;
+
+    private Histogram minuteLateness = new Histogram();
+    private long[] lastCounts = new long[Counter.values().length];
+
+    SchedulerMetrics(IntSupplier wheelSize) {
+        this.wheelSize = wheelSize;
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+    }
+
+    void increment(Counter counter) {
+        counters[counter.ordinal()].increment();
+    }
+
+    void add(Counter counter, long amount) {
+        counters[counter.ordinal()].add(amount);
+    }
+
+    /**
+     * @param lateness  how long after its target the job started, in milliseconds
+     * @param residency how long the job waited between being handed off by the ticker and starting, in milliseconds
+     */
+    void recordStart(String type, long lateness, long residency) {
+        TypeMetrics metrics = typeMetrics(type);
+        metrics.lateness.record(lateness);
+        metrics.residency.record(residency);
+        minuteLateness.record(lateness);
+        increment(Counter.FIRED);
+    }
+
+    void recordFinish(String type, long duration, boolean failed) {
+        TypeMetrics metrics = typeMetrics(type);
+        metrics.duration.record(duration);
+        if (failed) {
+            metrics.failed.increment();
+            increment(Counter.FAILED);
+        }
+    }
+
+    private TypeMetrics typeMetrics(String type) {
+        return types.computeIfAbsent(type, t -> new TypeMetrics());
+    }
+
+    /**
+     * Closes off the current minute of the time series.  Called once a minute by the scheduler.
+     */
+    synchronized void rollMinute(long now) {
+        long[] counts = new long[counters.length];
+        long[] deltas = new long[counters.length];
+        for (int i = 0; i < counters.length; i++) {
+            counts[i] = counters[i].sum();
+            deltas[i] = counts[i] - lastCounts[i];
+        }
+        lastCounts = counts;
+        Histogram lateness = minuteLateness;
+        minuteLateness = new Histogram();
+        series.addLast(new Sample(now, deltas, wheelSize.getAsInt(), lateness.percentile(0.5), lateness.percentile(0.95), lateness.max()));
+        while (series.size() > SERIES_MINUTES) {
+            series.removeFirst();
+        }
+    }
+
+    /**
+     * @return everything, as plain maps and lists ready to be serialised.
+     */
+    public synchronized Map<String, Object> snapshot() {
+        Map<String, Object> out = new LinkedHashMap<>();
+        out.put("counters", counterMap(counters));
+        out.put("wheelSize", wheelSize.getAsInt());
+        Map<String, Object> byType = new TreeMap<>();
+        types.forEach((name, metrics) -> {
+            Map<String, Object> type = new LinkedHashMap<>();
+            type.put("lateness", metrics.lateness.toMap());
+            type.put("duration", metrics.duration.toMap());
+            type.put("residency", metrics.residency.toMap());
+            type.put("failed", metrics.failed.sum());
+            byType.put(name, type);
+        });
+        out.put("types", byType);
+        List<Map<String, Object>> samples = new ArrayList<>(series.size());
+        for (Sample sample : series) {
+            samples.add(sample.toMap());
+        }
+        out.put("series", samples);
+        return out;
+    }
+
+    /**
+     * @return the current value of every counter, by its lower case name.
+     */
+    public Map<String, Long> getCounters() {
+        return counterMap(counters);
+    }
+
+    /**
+     * @return a short human readable summary.
+     */
+    public synchronized String report() {
+        StringBuilder report = new StringBuilder();
+        for (Counter counter : Counter.values()) {
+            report.append(counter.name().toLowerCase()).append(": ").append(counters[counter.ordinal()].sum()).append("\n");
+        }
+        report.append("wheel size: ").append(wheelSize.getAsInt()).append("\n");
+        types.forEach((name, metrics) -> report.append("\n").append(name).append(" (").append(metrics.failed.sum()).append(" failed)\n")
+                .append("  lateness  ").append(metrics.lateness.summary()).append("\n")
+                .append("  duration  ").append(metrics.duration.summary()).append("\n")
+                .append("  residency ").append(metrics.residency.summary()).append("\n"));
+        Sample last = series.peekLast();
+        if (last != null) {
+            report.append("\nlast minute: ").append(last.deltas[Counter.FIRED.ordinal()]).append(" fired, ")
+                    .append(last.deltas[Counter.FAILED.ordinal()]).append(" failed, lateness p95 <= ")
+                    .append(last.latenessP95).append("ms\n");
+        }
+        return report.toString();
+    }
+
+    private static Map<String, Long> counterMap(LongAdder[] counters) {
+        Map<String, Long> map = new LinkedHashMap<>();
+        for (Counter counter : Counter.values()) {
+            map.put(counter.name().toLowerCase(), counters[counter.ordinal()].sum());
+        }
+        return map;
+    }
+
+    private static class TypeMetrics {
+        final Histogram lateness = new Histogram();
+        final Histogram duration = new Histogram();
+        final Histogram residency = new Histogram();
+        final LongAdder failed = new LongAdder();
+    }
+
+    private static class Sample {
+        final long epoch;
+        final long[] deltas;
+        final int wheelSize;
+        final long latenessP50, latenessP95, latenessMax;
+
+        Sample(long epoch, long[] deltas, int wheelSize, long latenessP50, long latenessP95, long latenessMax) {
+            this.epoch = epoch;
+            this.deltas = deltas;
+            this.wheelSize = wheelSize;
+            this.latenessP50 = latenessP50;
+            this.latenessP95 = latenessP95;
+            this.latenessMax = latenessMax;
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("epoch", epoch);
+            for (Counter counter : Counter.values()) {
+                map.put(counter.name().toLowerCase(), deltas[counter.ordinal()]);
+            }
+            map.put("wheelSize", wheelSize);
+            map.put("latenessP50", latenessP50);
+            map.put("latenessP95", latenessP95);
+            map.put("latenessMax", latenessMax);
+            return map;
+        }
+    }
+
+    static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private volatile long max = 0;
+
+        void record(long value) {
+            value = Math.max(0, value);
+            int bucket = 0;
+            while (bucket < BOUNDS.length && value > BOUNDS[bucket]) {
+                bucket++;
+            }
+            buckets.incrementAndGet(bucket);
+            count.increment();
+            sum.add(value);
+            //racy, but only ever loses to a concurrent larger value
+            if (value > max) max = value;
+        }
+
+        long max() {
+            return max;
+        }
+
+        /**
+         * @return the upper bound of the bucket holding the given quantile, or the maximum if it is in the overflow.
+         */
+        long percentile(double quantile) {
+            long total = count.sum();
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return i < BOUNDS.length ? Math.min(BOUNDS[i], max) : max;
+                }
+            }
+            return max;
+        }
+
+        String summary() {
+            long total = count.sum();
+            return "n=" + total + " mean=" + (total == 0 ? 0 : sum.sum() / total) + "ms p50<=" + percentile(0.5) +
+                    "ms p95<=" + percentile(0.95) + "ms p99<=" + percentile(0.99) + "ms max=" + max + "ms";
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            long total = count.sum();
+            map.put("count", total);
+            map.put("sum", sum.sum());
+            map.put("max", max);
+            map.put("p50", percentile(0.5));
+            map.put("p95", percentile(0.95));
+            map.put("p99", percentile(0.99));
+            Map<String, Long> bucketMap = new LinkedHashMap<>();
+            for (int i = 0; i < buckets.length(); i++) {
+                bucketMap.put(i < BOUNDS.length ? String.valueOf(BOUNDS[i]) : "+Inf", buckets.get(i));
+            }
+            map.put("buckets", bucketMap);
+            return map;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package uk.co.hexillium.rhul.compsoc.time;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel, holding timers in buckets by deadline rather than in a sorted structure.
+ * <p>
+ * Each level has {@link #SLOTS} buckets; a bucket on level 0 spans one tick, and a bucket on each level above spans
+ * a whole revolution of the level below.  Timers are placed on the lowest level whose range covers their deadline,
+ * and are cascaded down a level each time the wheel reaches their bucket, so every timer is touched at most once
+ * per level.  Buckets are intrusive doubly linked lists, which makes both scheduling and cancelling O(1).
+ * <p>
+ * The wheel is not thread safe on its own; callers are expected to synchronise on it.
+ *
+ * @param <T> the type of the value carried by each timer
+ */
+public class TimingWheel<T> {
+
+    private static final int SLOT_BITS = 6;
+    public static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    private final long tickMs;
+    private final int levels;
+    private final Entry<T>[][] heads;
+    private long currentTick;
+    private int size = 0;
+
+    /**
+     * @param tickMs    the resolution of the wheel, in milliseconds
+     * @param levels    how many levels to use; the wheel can hold timers up to tickMs * 64^levels into the future
+     * @param startTime the time to start the wheel at, in epoch milliseconds
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long tickMs, int levels, long startTime) {
+        if (levels < 1 || levels * SLOT_BITS >= 62) {
+            throw new IllegalArgumentException("Unsupported number of levels: " + levels);
+        }
+        this.tickMs = tickMs;
+        this.levels = levels;
+        this.heads = new Entry[levels][SLOTS];
+        this.currentTick = startTime / tickMs;
+    }
+
+    /**
+     * @return how far past the current time a timer may be scheduled, in milliseconds
+     */
+    public long getHorizonMs() {
+        return tickMs * (1L << (SLOT_BITS * levels));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getCurrentTime() {
+        return currentTick * tickMs;
+    }
+
+    /**
+     * Schedules a new timer.
+     *
+     * @param deadline when the timer should fire, in epoch milliseconds
+     * @param value    the value to hand back when it fires
+     * @return the timer, which can be passed to {@link #cancel(Entry)}, or null if the deadline is beyond the horizon.
+     * Deadlines that have already passed will be returned by the next call to {@link #advance(long)}.
+     */
+    public Entry<T> schedule(long deadline, T value) {
+        long deadlineTick = Math.max(deadline / tickMs, currentTick + 1);
+        if (deadlineTick - currentTick >= (1L << (SLOT_BITS * levels))) {
+            return null;
+        }
+        Entry<T> entry = new Entry<>(deadline, deadlineTick, value);
+        place(entry);
+        size++;
+        return entry;
+    }
+
+    /**
+     * Removes a timer from the wheel, if it has not already fired or been cancelled.
+     *
+     * @param entry the timer to cancel
+     * @return true if the timer was removed.
+     */
+    public boolean cancel(Entry<T> entry) {
+        if (entry == null || entry.level < 0) return false;
+        unlink(entry);
+        size--;
+        return true;
+    }
+
+    /**
+     * Moves the wheel forward, collecting every timer that is now due.
+     *
+     * @param now the current time, in epoch milliseconds
+     * @return the values of the due timers, in approximate deadline order.
+     */
+    public List<T> advance(long now) {
+        List<T> due = new ArrayList<>();
+        long targetTick = now / tickMs;
+        while (currentTick < targetTick) {
+            currentTick++;
+            //cascade from the top down, so anything landing on level 0 this tick is collected below
+            for (int level = levels - 1; level > 0; level--) {
+                if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                    int slot = (int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+                    Entry<T> entry = detach(level, slot);
+                    while (entry != null) {
+                        Entry<T> next = entry.next;
+                        entry.next = entry.prev = null;
+                        place(entry);
+                        entry = next;
+                    }
+                }
+            }
+            Entry<T> entry = detach(0, (int) (currentTick & SLOT_MASK));
+            while (entry != null) {
+                Entry<T> next = entry.next;
+                entry.next = entry.prev = null;
+                entry.level = -1;
+                size--;
+                due.add(entry.value);
+                entry = next;
+            }
+        }
+        return due;
+    }
+
+    private void place(Entry<T> entry) {
+        long delta = Math.max(entry.deadlineTick - currentTick, 0);
+        int level = 0;
+        while (level < levels - 1 && delta >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        //anything already due is put in the very next level 0 bucket
+        long tick = Math.max(entry.deadlineTick, currentTick + 1);
+        int slot = (int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK);
+        entry.level = level;
+        entry.slot = slot;
+        entry.prev = null;
+        entry.next = heads[level][slot];
+        if (entry.next != null) entry.next.prev = entry;
+        heads[level][slot] = entry;
+    }
+
+    private void unlink(Entry<T> entry) {
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        } else {
+            heads[entry.level][entry.slot] = entry.next;
+        }
+        if (entry.next != null) entry.next.prev = entry.prev;
+        entry.next = entry.prev = null;
+        entry.level = -1;
+    }
+
+    private Entry<T> detach(int level, int slot) {
+        Entry<T> head = heads[level][slot];
+        heads[level][slot] = null;
+        return head;
+    }
+
+    public static final class Entry<T> {
+        final long deadline;
+        final long deadlineTick;
+        final T value;
+        int level = -1;
+        int slot;
+        Entry<T> prev, next;
+
+        private Entry(long deadline, long deadlineTick, T value) {
+            this.deadline = deadline;
+            this.deadlineTick = deadlineTick;
+            this.value = value;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        public T getValue() {
+            return value;
+        }
+
+        public boolean isPending() {
+            return level >= 0;
+        }
+    }
+}
@@ -8,9 +8,77 @@ create table job_schedule
     job_type        text   not null,
     triggered       boolean default false,
     initiated_epoch bigint,
-    job_data        jsonb
+    job_data        jsonb,
+    lease_owner     text,
+    lease_expiry    bigint,
+    recurring_id    integer,
+    attempts        integer not null default 0,
+    last_error      text,
+    dead_letter     boolean not null default false,
+    skipped         boolean not null default false
 );
 
+create table recurring_jobs
+(
+    recurring_id     serial
+        constraint recurring_jobs_pk
+            primary key,
+    cron             text    not null,
+    time_zone        text    not null,
+    job_type         text    not null,
+    job_data         jsonb,
+    enabled          boolean not null default true,
+    created_epoch    bigint  not null,
+    last_fired_epoch bigint,
+    run_count        integer not null default 0
+);
+
+alter table job_schedule
+    add constraint job_schedule_recurring_jobs_recurring_id_fk
+        foreign key (recurring_id) references recurring_jobs;
+
+create index job_schedule_recurring_id_index
+    on job_schedule (recurring_id)
+    where triggered = false;
+
+create index job_schedule_pending_target_index
+    on job_schedule (target_epoch)
+    where not triggered;
+
+create index job_schedule_dead_letter_index
+    on job_schedule (job_id)
+    where dead_letter;
+
+create table job_schedule_archive
+(
+    job_id          integer not null
+        constraint job_schedule_archive_pk
+            primary key,
+    initiated_epoch bigint,
+    target_epoch    bigint  not null,
+    job_type        text    not null,
+    job_data        jsonb,
+    recurring_id    integer,
+    attempts        integer not null default 0,
+    last_error      text,
+    skipped         boolean not null default false,
+    archived_epoch  bigint  not null
+);
+
+create or replace function job_schedule_notify() returns trigger as
+$$
+begin
+    perform pg_notify('job_schedule', new.job_id || ':' || new.target_epoch);
+    return new;
+end;
+$$ language plpgsql;
+
+create trigger job_schedule_notify_trigger
+    after insert
+    on job_schedule
+    for each row
+execute procedure job_schedule_notify();
+
 create table student_verification
 (
     student_pk                             integer default nextval('student_id_student_pk_seq'::regclass) not null
@@ -40,6 +108,10 @@ create table member_levels
         primary key (member_id, guild_id)
 );
 
+create index member_levels_guild_xp_index
+    on member_levels (guild_id, xp_total, member_id)
+    where hidden = false;
+
 create table api_tokens
 (
     token_id        serial
@@ -48,9 +120,27 @@ create table api_tokens
     token_string    bytea not null,
     token_expiry    bigint  default 0,
     token_comment   varchar(255),
-    token_invalided boolean default false
+    token_invalided boolean default false,
+    token_modified  bigint  not null default 0
 );
 
+create index api_tokens_modified_index
+    on api_tokens (token_modified);
+
+create or replace function api_tokens_touch() returns trigger as
+$$
+begin
+    new.token_modified = (extract(epoch from clock_timestamp()) * 1000)::bigint;
+    return new;
+end;
+$$ language plpgsql;
+
+create trigger api_tokens_touch_trigger
+    before insert or update
+    on api_tokens
+    for each row
+execute procedure api_tokens_touch();
+
 create table member_information
 (
     member_id  bigint      not null,
@@ -75,6 +165,16 @@ create table numvember
 create index numvember_correct_answers_index
     on numvember (score desc);
 
+create table message_dictionaries
+(
+    dictionary_id serial
+        constraint message_dictionaries_pk
+        primary key,
+    dictionary    bytea   not null,
+    sample_size   integer not null,
+    created       timestamp with time zone default now()
+);
+
 create table messages
 (
     channel_id         bigint                not null,
@@ -83,7 +183,62 @@ create table messages
     author_id          bigint,
     message_content    varchar(4000),
     attachment_url     varchar(512),
-    deleted            boolean default false not null
+    deleted            boolean default false not null,
+    message_content_compressed bytea,
+    dictionary_id      integer
+        constraint messages_message_dictionaries_dictionary_id_fk
+        references message_dictionaries,
+    message_seq        bigserial             not null,
+    sequenced_epoch    bigint default (extract(epoch from clock_timestamp()) * 1000)::bigint
+);
+
+create unique index messages_message_seq_uindex
+    on messages (message_seq);
+
+create table export_watermarks
+(
+    export_name varchar(64) not null
+        constraint export_watermarks_pk
+        primary key,
+    last_seq    bigint      not null,
+    updated     timestamp with time zone default now()
+);
+
+create table export_schedules
+(
+    export_name varchar(64) not null
+        constraint export_schedules_pk
+        primary key,
+    schedule_id bigint      not null
+);
+
+create table message_media
+(
+    message_id   bigint      not null,
+    channel_id   bigint      not null,
+    media_index  smallint    not null,
+    media_kind   varchar(32) not null,
+    url          varchar(2048),
+    size_bytes   integer,
+    content_type varchar(128),
+    width        integer,
+    height       integer,
+    created      bigint      not null,
+    constraint message_media_pk
+        primary key (message_id, media_index)
+);
+
+create index message_media_channel_id_created_index
+    on message_media (channel_id, created);
+
+create table channel_activity
+(
+    channel_id    bigint            not null,
+    hour          bigint            not null,
+    author_id     bigint            not null,
+    message_count integer default 0 not null,
+    constraint channel_activity_pk
+        primary key (channel_id, hour, author_id)
 );
 
 create table game_account_bindings